@@ -0,0 +1,153 @@
+
+/*
+ * Copyright (C) 2014 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.msrp;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * A pool of reusable {@link ByteBuffer}s.
+ *
+ * <p>
+ * Buffers are grouped into power-of-two size classes; {@link #acquire acquire()} returns a cleared buffer
+ * whose capacity is the smallest size class that is at least the requested size. Buffers should be returned
+ * via {@link #release release()} when no longer needed. Only a limited number of idle buffers are retained
+ * in each size class; any excess are left for the garbage collector.
+ * </p>
+ *
+ * <p>
+ * Instances are thread safe.
+ * </p>
+ */
+class BufferPool {
+
+    /**
+     * Smallest buffer size handed out by {@link #acquire acquire()}.
+     */
+    static final int MIN_BUFFER_SIZE = 64;
+
+    /**
+     * Default maximum number of idle buffers retained per size class.
+     */
+    static final int DEFAULT_MAX_IDLE_PER_CLASS = 64;
+
+    private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+    private static final int NUM_CLASSES = 31 - MIN_SHIFT;
+
+    private final boolean direct;
+    private final int maxIdlePerClass;
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<ByteBuffer>[] idle = (ArrayDeque<ByteBuffer>[])new ArrayDeque<?>[NUM_CLASSES];
+
+    /**
+     * Constructor.
+     *
+     * @param direct true to allocate direct (off-heap) buffers, false for heap buffers
+     */
+    BufferPool(boolean direct) {
+        this(direct, DEFAULT_MAX_IDLE_PER_CLASS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param direct true to allocate direct (off-heap) buffers, false for heap buffers
+     * @param maxIdlePerClass maximum number of idle buffers to retain in each size class
+     * @throws IllegalArgumentException if {@code maxIdlePerClass} is negative
+     */
+    BufferPool(boolean direct, int maxIdlePerClass) {
+        if (maxIdlePerClass < 0)
+            throw new IllegalArgumentException("maxIdlePerClass < 0");
+        this.direct = direct;
+        this.maxIdlePerClass = maxIdlePerClass;
+        for (int i = 0; i < this.idle.length; i++)
+            this.idle[i] = new ArrayDeque<>();
+    }
+
+    /**
+     * Determine whether this pool allocates direct buffers.
+     *
+     * @return true if buffers are direct
+     */
+    public boolean isDirect() {
+        return this.direct;
+    }
+
+    /**
+     * Acquire a buffer having at least the given capacity.
+     *
+     * <p>
+     * The returned buffer is cleared, i.e., its position is zero and its limit equals its capacity.
+     * </p>
+     *
+     * @param size minimum required capacity
+     * @return buffer with capacity at least {@code size}
+     * @throws IllegalArgumentException if {@code size} is negative or too large
+     */
+    public ByteBuffer acquire(int size) {
+        final int sizeClass = BufferPool.sizeClass(size);
+        ByteBuffer buf;
+        synchronized (this) {
+            buf = this.idle[sizeClass].pollLast();
+        }
+        if (buf == null) {
+            final int capacity = MIN_BUFFER_SIZE << sizeClass;
+            buf = this.direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        }
+        return buf;
+    }
+
+    /**
+     * Return a buffer previously obtained from {@link #acquire acquire()} to this pool.
+     *
+     * <p>
+     * The caller must not access {@code buf} (or any slice or duplicate of it) after invoking this method.
+     * Ownership is not tracked: any writable buffer that is direct if and only if this pool is direct, and whose
+     * capacity is one of this pool's size classes, is retained. Other buffers are ignored.
+     * </p>
+     *
+     * @param buf buffer to release
+     * @throws IllegalArgumentException if {@code buf} is null
+     */
+    public void release(ByteBuffer buf) {
+        if (buf == null)
+            throw new IllegalArgumentException("null buf");
+        final int capacity = buf.capacity();
+        if (buf.isDirect() != this.direct
+          || buf.isReadOnly()
+          || capacity < MIN_BUFFER_SIZE
+          || Integer.bitCount(capacity) != 1)
+            return;
+        final ArrayDeque<ByteBuffer> queue = this.idle[Integer.numberOfTrailingZeros(capacity) - MIN_SHIFT];
+        buf.clear();
+        synchronized (this) {
+            if (queue.size() < this.maxIdlePerClass)
+                queue.addLast(buf);
+        }
+    }
+
+    /**
+     * Get the buffer capacity that {@link #acquire acquire()} would return for the given requested size.
+     *
+     * @param size minimum required capacity
+     * @return actual buffer capacity
+     * @throws IllegalArgumentException if {@code size} is negative or too large
+     */
+    public static int capacityFor(int size) {
+        return MIN_BUFFER_SIZE << BufferPool.sizeClass(size);
+    }
+
+    private static int sizeClass(int size) {
+        if (size < 0)
+            throw new IllegalArgumentException("size < 0");
+        if (size <= MIN_BUFFER_SIZE)
+            return 0;
+        final int sizeClass = 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+        if (sizeClass >= NUM_CLASSES)
+            throw new IllegalArgumentException("size too large");
+        return sizeClass;
+    }
+}
@@ -9,9 +9,14 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.dellroad.msrp.msg.MsrpInputParser;
 import org.dellroad.msrp.msg.MsrpMessage;
@@ -20,37 +25,84 @@ import org.slf4j.LoggerFactory;
 
 class Connection {
 
-    private static final int BUFFER_SIZE = 1460;
+    // Maximum number of buffers passed to a single gathering write
+    private static final int MAX_GATHER = 64;
+
+    // Placeholder in the output queue for the file region at the head of the file region queue
+    private static final ByteBuffer FILE_REGION = ByteBuffer.allocate(0);
 
     private final Logger log = LoggerFactory.getLogger(this.getClass());
     private final Msrp msrp;
+    private final EventLoop eventLoop;
     private final Endpoint endpoint;
     private final SocketChannel socketChannel;
     private final SelectionKey selectionKey;
+    private final BufferPool bufferPool;
+
+    // Output state - guarded by this instance's lock
     private final ArrayDeque<ByteBuffer> outputQueue = new ArrayDeque<>();
+    private final ArrayDeque<ByteBuffer> pooledOutput = new ArrayDeque<>();      // output buffers to recycle when written
+    private final ArrayDeque<FileRegion> fileRegions = new ArrayDeque<>();      // file regions, in FILE_REGION order
+    private final ByteBuffer[] gatherBuffers = new ByteBuffer[MAX_GATHER];
+    private final FileRegionSink outputSink = new FileRegionSink() {
+        @Override
+        public ByteBuffer acquire(int size) {
+            final ByteBuffer buf = Connection.this.bufferPool.acquire(size);
+            Connection.this.pooledOutput.add(buf);
+            return buf;
+        }
+        @Override
+        public void write(ByteBuffer data) {
+            Connection.this.outputQueue.add(data);
+        }
+        @Override
+        public void writeFileRegion(FileContent content, long position, long length) {
+            if (length == 0)
+                return;
+            content.retain();
+            Connection.this.fileRegions.add(new FileRegion(content, position, length));
+            Connection.this.outputQueue.add(FILE_REGION);
+        }
+    };
+    private final ArrayList<Session> writeWaiters = new ArrayList<>();          // sessions waiting for output to drain
+    private TimerWheel.Timeout timeout;                                         // next connect/idle timeout check
+    private final HashSet<Object> readPausers = new HashSet<>();                // whoever has paused reading, if anyone
+    private final Set<Session> sessions = ConcurrentHashMap.newKeySet();        // bound sessions; concurrent, not guarded by lock
+
+    // Input state - accessed only by the event loop thread
     private final MsrpInputParser parser = new MsrpInputParser();
+    private final ReceiveBufferSizer receiveBufferSizer;
 
-    private long lastActiveTime;
-    private boolean closed;
+    private volatile long lastActiveTime;
+    private volatile boolean readPaused;
+    private volatile boolean closed;
 
     /**
      * Connecting constructor.
      *
+     * @param eventLoop event loop that will service this connection
      * @param endpoint remote endpoint
      * @throws IllegalArgumentException if {@code endpoint} is null
      */
-    Connection(Msrp msrp, Endpoint endpoint, SocketChannel socketChannel) throws IOException {
+    Connection(Msrp msrp, EventLoop eventLoop, Endpoint endpoint, SocketChannel socketChannel) throws IOException {
         if (msrp == null)
             throw new IllegalArgumentException("null msrp");
+        if (eventLoop == null)
+            throw new IllegalArgumentException("null eventLoop");
         if (endpoint == null)
             throw new IllegalArgumentException("null endpoint");
         if (socketChannel == null)
             throw new IllegalArgumentException("null socketChannel");
         this.msrp = msrp;
+        this.eventLoop = eventLoop;
         this.endpoint = endpoint;
         this.socketChannel = socketChannel;
+        this.bufferPool = this.msrp.getBufferPool();
+        final int minReceiveBufferSize = this.msrp.getMinReceiveBufferSize();
+        this.receiveBufferSizer = new ReceiveBufferSizer(minReceiveBufferSize,
+          Math.max(minReceiveBufferSize, this.msrp.getMaxReceiveBufferSize()));
         this.lastActiveTime = System.nanoTime();
-        this.selectionKey = this.msrp.createSelectionKey(this.socketChannel, new SelectorService() {
+        this.selectionKey = this.eventLoop.register(this.socketChannel, new SelectorService() {
             @Override
             public void serviceIO(SelectionKey key) throws IOException {
                 try {
@@ -70,11 +122,14 @@ class Connection {
             }
         });
 
-        // Set up selection
-        if (this.socketChannel.isConnectionPending())
+        // Set up selection and timeout
+        if (this.socketChannel.isConnectionPending()) {
             this.selectFor(SelectionKey.OP_CONNECT, true);
-        else
+            this.scheduleTimeoutCheck(this.msrp.getConnectTimeout());
+        } else {
             this.selectFor(SelectionKey.OP_READ, true);
+            this.scheduleTimeoutCheck(this.msrp.getMaxIdleTime());
+        }
     }
 
     /**
@@ -84,6 +139,20 @@ class Connection {
         return this.endpoint;
     }
 
+    /**
+     * Get the {@link EventLoop} that services this connection.
+     */
+    public EventLoop getEventLoop() {
+        return this.eventLoop;
+    }
+
+    /**
+     * Determine whether this connection is closed.
+     */
+    public boolean isClosed() {
+        return this.closed;
+    }
+
     /**
      * Get time in milliseconds since last activity.
      */
@@ -97,11 +166,144 @@ class Connection {
     public void write(MsrpMessage message) throws IOException {
         if (message == null)
             throw new IllegalArgumentException("null message");
-        this.outputQueue.add(ByteBuffer.wrap(message.encode(true)));
-        if (this.socketChannel.isConnected())
-            this.selectFor(SelectionKey.OP_WRITE, true);
+        try {
+            synchronized (this) {
+                if (this.closed)
+                    throw new IOException("connection is closed");
+                this.encode(message);
+                if (this.socketChannel.isConnected())
+                    this.selectFor(SelectionKey.OP_WRITE, true);
+            }
+        } finally {
+            if (message instanceof FileChunkRequest)
+                ((FileChunkRequest)message).release();                 // any queued file region has its own reference
+        }
         this.lastActiveTime = System.nanoTime();
-        this.msrp.wakeup();
+        if (!this.eventLoop.inEventLoop())
+            this.eventLoop.wakeup();
+    }
+
+    // Encode message onto the output queue; if encoding fails, undo any partial output so the queues stay in step
+    private void encode(MsrpMessage message) {
+        assert Thread.holdsLock(this);
+        final int outputQueueSize = this.outputQueue.size();
+        final int pooledOutputSize = this.pooledOutput.size();
+        final int fileRegionsSize = this.fileRegions.size();
+        boolean success = false;
+        try {
+            message.encodeTo(this.outputSink, true);
+            success = true;
+        } finally {
+            if (!success) {
+                while (this.outputQueue.size() > outputQueueSize)
+                    this.outputQueue.removeLast();
+                while (this.pooledOutput.size() > pooledOutputSize)
+                    this.bufferPool.release(this.pooledOutput.removeLast());
+                while (this.fileRegions.size() > fileRegionsSize)
+                    this.fileRegions.removeLast().release();
+            }
+        }
+    }
+
+    /**
+     * Determine whether all data written to this connection has been handed off to the socket.
+     *
+     * @return true if the output queue is empty
+     */
+    public synchronized boolean isOutputQueueEmpty() {
+        return this.outputQueue.isEmpty();
+    }
+
+    /**
+     * Determine whether any session is bound to this connection.
+     *
+     * @return true if this connection has bound sessions
+     */
+    public boolean hasSessions() {
+        return !this.sessions.isEmpty();
+    }
+
+    /**
+     * Get the sessions currently bound to this connection.
+     *
+     * @return mutable snapshot of bound sessions
+     */
+    public ArrayList<Session> getSessions() {
+        return new ArrayList<>(this.sessions);
+    }
+
+    /**
+     * Record that a session has been bound to this connection.
+     *
+     * @param session session now bound to this connection
+     */
+    public void addSession(Session session) {
+        this.sessions.add(session);
+    }
+
+    /**
+     * Record that a session is no longer bound to this connection.
+     *
+     * @param session session no longer bound to this connection
+     */
+    public void removeSession(Session session) {
+        this.sessions.remove(session);
+    }
+
+    /**
+     * Register a session to be {@linkplain Session#markReady marked ready} once this connection's output queue drains.
+     *
+     * @return true if registered, false if the output queue is already empty (or this connection is closed)
+     */
+    public synchronized boolean addWriteWaiter(Session session) {
+        if (this.closed || this.outputQueue.isEmpty())
+            return false;
+        if (!this.writeWaiters.contains(session))
+            this.writeWaiters.add(session);
+        return true;
+    }
+
+    /**
+     * Stop reading from this connection until {@link #resumeReading resumeReading()} is invoked with the same key.
+     * Reading stays paused as long as any key has it paused.
+     *
+     * @param key identifies the party pausing reading
+     */
+    public synchronized void pauseReading(Object key) {
+        if (this.closed || !this.readPausers.add(key) || this.readPausers.size() > 1)
+            return;
+        if (this.log.isTraceEnabled())
+            this.log.trace(this + ": pausing reading");
+        this.readPaused = true;
+        try {
+            this.selectFor(SelectionKey.OP_READ, false);
+        } catch (IOException e) {
+            // selection key was canceled, so we're being closed anyway
+        }
+    }
+
+    /**
+     * Undo a previous invocation of {@link #pauseReading pauseReading()}. Does nothing if not paused with the given key.
+     *
+     * @param key identifies the party that paused reading
+     */
+    public void resumeReading(Object key) {
+        synchronized (this) {
+            if (this.closed || !this.readPausers.remove(key) || !this.readPausers.isEmpty())
+                return;
+            if (this.log.isTraceEnabled())
+                this.log.trace(this + ": resuming reading");
+            this.readPaused = false;
+            if (this.socketChannel.isConnectionPending())
+                return;
+            try {
+                this.selectFor(SelectionKey.OP_READ, true);
+            } catch (IOException e) {
+                // selection key was canceled, so we're being closed anyway
+            }
+        }
+        if (!this.eventLoop.inEventLoop())
+            this.eventLoop.wakeup();                                // so the selector sees the new interest set
     }
 
     /**
@@ -111,16 +313,31 @@ class Connection {
      * @return true if this instance was closed, false if this instance was already closed
      */
     public boolean close(Exception cause) {
-        if (this.closed)
-            return false;
-        this.closed = true;
-        if (this.log.isDebugEnabled())
-            this.log.debug("closing " + this + ", cause: " + cause);
-        try {
-            this.socketChannel.close();
-        } catch (IOException e) {
-            // ignore
+        synchronized (this) {
+            if (this.closed)
+                return false;
+            this.closed = true;
+            if (this.log.isDebugEnabled())
+                this.log.debug("closing " + this + ", cause: " + cause);
+            if (this.timeout != null) {
+                this.timeout.cancel();
+                this.timeout = null;
+            }
+            try {
+                this.socketChannel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            this.outputQueue.clear();
+            this.writeWaiters.clear();
+            this.readPausers.clear();
+            for (FileRegion region; (region = this.fileRegions.pollFirst()) != null; )
+                region.release();
+            for (ByteBuffer buf; (buf = this.pooledOutput.pollFirst()) != null; )
+                this.bufferPool.release(buf);
         }
+
+        // Notify Msrp without holding our lock, because closing sessions will acquire their locks
         this.msrp.handleConnectionClosed(this, cause);
         return true;
     }
@@ -138,8 +355,10 @@ class Connection {
             throw new IOException("connection failed");
         if (this.log.isDebugEnabled())
             this.log.debug(this + ": connection succeeded");
-        this.selectFor(SelectionKey.OP_READ, true);
-        this.selectFor(SelectionKey.OP_WRITE, !this.outputQueue.isEmpty());
+        synchronized (this) {
+            this.selectFor(SelectionKey.OP_READ, this.readPausers.isEmpty());
+            this.selectFor(SelectionKey.OP_WRITE, !this.outputQueue.isEmpty());
+        }
         this.lastActiveTime = System.nanoTime();
     }
 
@@ -149,49 +368,163 @@ class Connection {
             // Update timestamp
             this.lastActiveTime = System.nanoTime();
 
-            // Read bytes
-            final ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
-            final long len = this.socketChannel.read(buf);
-            if (len == -1)
-                throw new EOFException("connection closed");
+            // Read bytes into a pooled buffer sized according to recent reads
+            final int size = this.receiveBufferSizer.getSize();
+            final ByteBuffer buf = this.bufferPool.acquire(size);
+            final int len;
+            try {
+                buf.limit(size);
+                len = this.socketChannel.read(buf);
+                if (len == -1)
+                    throw new EOFException("connection closed");
+                this.receiveBufferSizer.record(len);
 
-            // Parse bytes and handle message(s)
-            for (int i = 0; i < len; i++) {
-                final MsrpMessage message = this.parser.inputMessageByte(buf.get(i));
-                if (message != null)
+                // Parse bytes and handle message(s); the parser copies whatever it retains
+                buf.flip();
+                for (MsrpMessage message; (message = this.parser.inputMessageBytes(buf)) != null; )
                     this.msrp.handleMessage(this, message);
+            } finally {
+                this.bufferPool.release(buf);
             }
 
-            // Done reading?
-            if (len < BUFFER_SIZE)
+            // Done reading, or has a session asked us to stop?
+            if (len < size || this.readPaused)
                 return;
         }
     }
 
     private void handleWritable() throws IOException {
-        final ByteBuffer buf = this.outputQueue.peekFirst();
-        if (buf != null) {
-            this.socketChannel.write(buf);
-            if (!buf.hasRemaining())
-                this.outputQueue.removeFirst();
+        final int maxSpins = this.msrp.getWriteSpinCount();
+        final long maxBytes = this.msrp.getMaxWriteBytesPerEvent();
+        final Session[] waiters;
+        synchronized (this) {
+            this.writeOutputQueue(maxSpins, maxBytes);
+            if (!this.outputQueue.isEmpty() || this.writeWaiters.isEmpty())
+                return;
+            waiters = this.writeWaiters.toArray(new Session[this.writeWaiters.size()]);
+            this.writeWaiters.clear();
+        }
+        for (Session session : waiters)
+            session.markReady();
+    }
+
+    // Caller must hold the lock on this instance
+    private void writeOutputQueue(int maxSpins, long budget) throws IOException {
+        for (int spin = 0; spin < maxSpins && budget > 0 && !this.outputQueue.isEmpty(); spin++) {
+
+            // Transfer file region directly from the file, if that's what's next
+            if (this.outputQueue.peekFirst() == FILE_REGION) {
+                final FileRegion region = this.fileRegions.peekFirst();
+                final long len = region.transferTo(this.socketChannel, budget);
+                if (region.isDone()) {
+                    this.outputQueue.removeFirst();
+                    this.fileRegions.removeFirst().release();
+                }
+                if (len <= 0)
+                    break;
+                budget -= len;
+                this.lastActiveTime = System.nanoTime();
+                continue;
+            }
+
+            // Gather as many queued buffers as our budget allows, up to the next file region
+            int count = 0;
+            long gathered = 0;
+            for (ByteBuffer buf : this.outputQueue) {
+                if (count == this.gatherBuffers.length || gathered >= budget || buf == FILE_REGION)
+                    break;
+                this.gatherBuffers[count++] = buf;
+                gathered += buf.remaining();
+            }
+
+            // Write them all at once
+            final long len;
+            try {
+                len = this.socketChannel.write(this.gatherBuffers, 0, count);
+            } finally {
+                for (int i = 0; i < count; i++)
+                    this.gatherBuffers[i] = null;
+            }
+
+            // Discard buffers that were completely written, recycling any pooled buffers
+            while (!this.outputQueue.isEmpty() && this.outputQueue.peekFirst() != FILE_REGION
+              && !this.outputQueue.peekFirst().hasRemaining()) {
+                if (this.outputQueue.removeFirst() == this.pooledOutput.peekFirst())
+                    this.bufferPool.release(this.pooledOutput.removeFirst());
+            }
+
+            // Stop if socket send buffer is full
+            if (len <= 0)
+                break;
+            budget -= len;
             this.lastActiveTime = System.nanoTime();
         }
         this.selectFor(SelectionKey.OP_WRITE, !this.outputQueue.isEmpty());
     }
 
-    void performHousekeeping(boolean active) throws IOException {
+    // Invoked by our timer; activity does not reschedule the timer, we just check again when it fires
+    private void checkTimeout() {
+        if (this.closed)
+            return;
+        final long idleTime = this.getIdleTime();
+        final long limit;
         if (this.socketChannel.isConnectionPending()) {
-            if (this.getIdleTime() >= this.msrp.getConnectTimeout())
-                throw new IOException("connection unsuccessful after " + this.getIdleTime() + "ms");
+            limit = this.msrp.getConnectTimeout();
+            if (idleTime >= limit) {
+                this.close(new IOException("connection unsuccessful after " + idleTime + "ms"));
+                return;
+            }
         } else {
-            if (!active && this.getIdleTime() >= this.msrp.getMaxIdleTime())
-                throw new IOException("connection idle timeout after " + this.getIdleTime() + "ms");
+            limit = this.msrp.getMaxIdleTime();
+            if (idleTime >= limit && !this.hasSessions()) {
+                this.close(new IOException("connection idle timeout after " + idleTime + "ms"));
+                return;
+            }
         }
+        this.scheduleTimeoutCheck(idleTime < limit ? limit - idleTime : limit);
+    }
+
+    private synchronized void scheduleTimeoutCheck(long delay) {
+        if (!this.closed)
+            this.timeout = this.eventLoop.schedule(delay, this::checkTimeout);
     }
 
 // Helpers
 
-    private void selectFor(int ops, boolean enabled) throws IOException {
+    // A region of a file queued for output
+    private static class FileRegion {
+
+        private final FileContent content;
+        private long position;
+        private long remaining;
+
+        FileRegion(FileContent content, long position, long length) {
+            this.content = content;
+            this.position = position;
+            this.remaining = length;
+        }
+
+        public boolean isDone() {
+            return this.remaining == 0;
+        }
+
+        // Transfer up to maxBytes directly to the socket, returning the number of bytes transferred
+        public long transferTo(SocketChannel socketChannel, long maxBytes) throws IOException {
+            final FileChannel channel = this.content.getChannel();
+            final long len = channel.transferTo(this.position, Math.min(this.remaining, maxBytes), socketChannel);
+            if (len == 0 && this.position >= channel.size())
+                throw new IOException("file truncated while sending message content");
+            this.position += len;
+            this.remaining -= len;
+            return len;
+        }
+
+        public void release() {
+            this.content.release();
+        }
+    }
+
+    private synchronized void selectFor(int ops, boolean enabled) throws IOException {
         if (this.selectionKey != null) {
             try {
                 final int currentOps = this.selectionKey.interestOps();
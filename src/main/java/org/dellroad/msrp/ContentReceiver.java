@@ -0,0 +1,51 @@
+
+/*
+ * Copyright (C) 2014 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.msrp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the content of one incoming MSRP message as it arrives.
+ *
+ * <p>
+ * Invocations for the same message are never concurrent and are delivered in the order the chunks were received.
+ * Chunks are not necessarily received in offset order, and a retransmitted chunk may be delivered more than once,
+ * so content should be placed using the given offset.
+ * </p>
+ *
+ * @see StreamingSessionListener
+ */
+public interface ContentReceiver {
+
+    /**
+     * Receive one chunk of message content.
+     *
+     * @param offset offset of {@code data} in the message content, starting from zero
+     * @param data chunk content (read-only); only valid for the duration of this method call
+     */
+    void contentReceived(long offset, ByteBuffer data);
+
+    /**
+     * Notification that all message content has been received and delivered.
+     *
+     * <p>
+     * No further methods will be invoked.
+     * </p>
+     */
+    void contentComplete();
+
+    /**
+     * Notification that the message will not be completed, because the sender aborted it, the missing chunks
+     * never arrived, or the session was closed.
+     *
+     * <p>
+     * No further methods will be invoked.
+     * </p>
+     *
+     * @param cause description of the problem
+     */
+    void contentAborted(Exception cause);
+}
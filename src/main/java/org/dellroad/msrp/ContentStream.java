@@ -0,0 +1,228 @@
+
+/*
+ * Copyright (C) 2014 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.msrp;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.concurrent.Executor;
+
+import org.dellroad.msrp.msg.Header;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Delivers the content of one incoming message to a {@link StreamingSessionListener} as it arrives.
+ *
+ * <p>
+ * Notifications are run serially using the session's callback executor. Chunks that arrive faster than they are
+ * {@linkplain #request requested} are buffered here; once {@link #MAX_BUFFERED_CHUNKS} are buffered, reading
+ * from the connection is paused until the receiver catches up.
+ * </p>
+ */
+class ContentStream implements ContentSubscription {
+
+    /**
+     * Maximum number of undelivered chunks before reading from the connection is paused.
+     */
+    static final int MAX_BUFFERED_CHUNKS = 8;
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+    private final Session session;
+    private final StreamingSessionListener listener;
+    private final Executor callbackExecutor;
+    private final List<MsrpUri> fromPath;
+    private final String messageId;
+    private final String contentType;
+    private final SortedSet<Header> headers;
+    private final boolean successReport;
+    private final boolean failureReport;
+
+    // These are guarded by this instance's lock
+    private final ArrayDeque<Chunk> chunks = new ArrayDeque<>();
+    private ContentReceiver receiver;
+    private boolean started;                        // listener has been (or is being) notified
+    private boolean draining;                       // a drain task is scheduled or running
+    private boolean cancelled;
+    private boolean finished;                       // no more chunks will be offered
+    private boolean terminated;                     // receiver has been notified of completion or abort
+    private Exception abortCause;
+    private long demand;
+    private Connection pausedConnection;
+
+    ContentStream(Session session, StreamingSessionListener listener, Executor callbackExecutor, List<MsrpUri> fromPath,
+      String messageId, String contentType, SortedSet<Header> headers, boolean successReport, boolean failureReport) {
+        this.session = session;
+        this.listener = listener;
+        this.callbackExecutor = callbackExecutor;
+        this.fromPath = fromPath;
+        this.messageId = messageId;
+        this.contentType = contentType;
+        this.headers = headers;
+        this.successReport = successReport;
+        this.failureReport = failureReport;
+    }
+
+// ContentSubscription
+
+    @Override
+    public synchronized void request(long n) {
+        if (n <= 0)
+            throw new IllegalArgumentException("n <= 0");
+        this.demand = this.demand + n < 0 ? Long.MAX_VALUE : this.demand + n;
+        this.scheduleDrain();
+    }
+
+    @Override
+    public synchronized void cancel() {
+        if (this.cancelled)
+            return;
+        this.cancelled = true;
+        this.chunks.clear();
+        this.resumeReading();
+    }
+
+// Internal API
+
+    /**
+     * Start delivery by notifying the listener.
+     */
+    synchronized void start() {
+        this.scheduleDrain();
+    }
+
+    /**
+     * Add a received chunk, pausing reading from the given connection if too many chunks are now undelivered.
+     *
+     * @param connection connection on which the chunk was received
+     * @param offset offset of {@code data} in the message content
+     * @param data chunk content
+     */
+    synchronized void offer(Connection connection, long offset, byte[] data) {
+        if (this.finished || this.cancelled || data.length == 0)
+            return;
+        this.chunks.add(new Chunk(offset, data));
+        if (this.chunks.size() >= MAX_BUFFERED_CHUNKS && this.pausedConnection == null && connection != null) {
+            connection.pauseReading(this);
+            this.pausedConnection = connection;
+        }
+        this.scheduleDrain();
+    }
+
+    /**
+     * Indicate that no more chunks will be offered. Does nothing if already finished.
+     *
+     * @param cause reason the message was aborted, or null if the message is complete
+     */
+    synchronized void finish(Exception cause) {
+        if (this.finished)
+            return;
+        this.finished = true;
+        this.abortCause = cause;
+        if (cause != null)
+            this.chunks.clear();
+        this.resumeReading();
+        this.scheduleDrain();
+    }
+
+// Delivery
+
+    // Caller must hold our lock
+    private void scheduleDrain() {
+        if (this.draining || !this.hasWork())
+            return;
+        this.draining = true;
+        this.callbackExecutor.execute(this::drain);
+    }
+
+    private void drain() {
+        while (true) {
+            final Runnable action;
+            synchronized (this) {
+                if ((action = this.nextAction()) == null) {
+                    this.draining = false;
+                    return;
+                }
+            }
+            try {
+                action.run();
+            } catch (ThreadDeath t) {
+                throw t;
+            } catch (Throwable t) {
+                this.log.error("error in listener notification", t);
+                this.cancel();
+            }
+        }
+    }
+
+    // Determine whether there is a notification that can be delivered now. Caller must hold our lock.
+    private boolean hasWork() {
+        if (!this.started)
+            return true;
+        if (this.cancelled || this.terminated || this.receiver == null)
+            return false;
+        return !this.chunks.isEmpty() ? this.demand > 0 : this.finished;
+    }
+
+    // Determine the next notification to deliver, if any, and update state accordingly. Caller must hold our lock.
+    private Runnable nextAction() {
+        if (!this.hasWork())
+            return null;
+        if (!this.started) {
+            this.started = true;
+            return () -> {
+                final ContentReceiver newReceiver = this.listener.sessionReceivingMessage(this.session, this.fromPath,
+                  this.messageId, this.contentType, this.headers, this.successReport, this.failureReport, this);
+                synchronized (this) {
+                    this.receiver = newReceiver;
+                }
+                if (newReceiver == null)
+                    this.cancel();
+            };
+        }
+        final ContentReceiver currentReceiver = this.receiver;
+        if (!this.chunks.isEmpty()) {
+            this.demand--;
+            final Chunk chunk = this.chunks.removeFirst();
+            if (this.chunks.size() < MAX_BUFFERED_CHUNKS / 2)
+                this.resumeReading();
+            return () -> currentReceiver.contentReceived(chunk.getOffset(), ByteBuffer.wrap(chunk.getData()).asReadOnlyBuffer());
+        }
+        this.terminated = true;
+        final Exception cause = this.abortCause;
+        return cause != null ? () -> currentReceiver.contentAborted(cause) : currentReceiver::contentComplete;
+    }
+
+    // Caller must hold our lock
+    private void resumeReading() {
+        if (this.pausedConnection != null) {
+            this.pausedConnection.resumeReading(this);
+            this.pausedConnection = null;
+        }
+    }
+
+// Chunk
+
+    private static class Chunk {
+
+        private final long offset;
+        private final byte[] data;
+
+        Chunk(long offset, byte[] data) {
+            this.offset = offset;
+            this.data = data;
+        }
+
+        public long getOffset() {
+            return this.offset;
+        }
+
+        public byte[] getData() {
+            return this.data;
+        }
+    }
+}
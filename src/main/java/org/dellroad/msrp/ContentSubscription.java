@@ -0,0 +1,36 @@
+
+/*
+ * Copyright (C) 2014 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.msrp;
+
+/**
+ * Controls delivery of the content of one incoming MSRP message to a {@link ContentReceiver}.
+ *
+ * <p>
+ * Methods may be invoked from any thread, including from within {@link ContentReceiver} callbacks.
+ * </p>
+ *
+ * @see StreamingSessionListener
+ */
+public interface ContentSubscription {
+
+    /**
+     * Allow the given number of additional chunks to be delivered to the {@link ContentReceiver}.
+     *
+     * <p>
+     * Notifications of completion or abort do not require demand.
+     * </p>
+     *
+     * @param n number of additional chunks
+     * @throws IllegalArgumentException if {@code n} is not positive
+     */
+    void request(long n);
+
+    /**
+     * Stop delivering content. Any undelivered and subsequently received content is discarded,
+     * and no further {@link ContentReceiver} methods will be invoked. Does nothing if already canceled.
+     */
+    void cancel();
+}
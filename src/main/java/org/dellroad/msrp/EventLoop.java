@@ -0,0 +1,316 @@
+
+/*
+ * Copyright (C) 2014 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.msrp;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One selector thread belonging to an {@link Msrp} instance.
+ *
+ * <p>
+ * Each {@link Connection} is registered with exactly one event loop, and each {@link Session} is serviced by the event
+ * loop of its connection (or, if it has no connection yet, the event loop it was assigned when created).
+ * </p>
+ *
+ * <p>
+ * Each event loop also has a {@link TimerWheel} for protocol timeouts; the event loop thread sleeps in
+ * {@link Selector#select select()} only until the next timer tick that has something scheduled.
+ * </p>
+ *
+ * <p>
+ * Sessions with pending work {@linkplain #addReadySession add themselves} to their event loop's ready list;
+ * only those sessions are serviced on the next pass, so idle sessions cost nothing.
+ * </p>
+ */
+class EventLoop {
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+    private final Msrp msrp;
+    private final int index;
+    private final Selector selector;
+    private final Thread thread;
+    private final TimerWheel timerWheel = new TimerWheel();
+    private final ArrayList<Runnable> expiredTasks = new ArrayList<>();
+    private ArrayList<Session> readySessions = new ArrayList<>();               // guarded by this instance's lock
+    private ArrayList<Runnable> tasks = new ArrayList<>();                      // guarded by this instance's lock
+
+    private volatile boolean closed;
+
+    /**
+     * Constructor.
+     *
+     * @param msrp associated instance
+     * @param index index of this event loop
+     * @throws IOException if the selector cannot be created
+     */
+    EventLoop(Msrp msrp, int index) throws IOException {
+        if (msrp == null)
+            throw new IllegalArgumentException("null msrp");
+        this.msrp = msrp;
+        this.index = index;
+        this.selector = Selector.open();
+        this.thread = new Thread("MSRP Service Thread #" + index + " for " + msrp) {
+            @Override
+            public void run() {
+                EventLoop.this.run();
+            }
+        };
+    }
+
+    /**
+     * Get the index of this event loop.
+     *
+     * @return event loop index
+     */
+    public int getIndex() {
+        return this.index;
+    }
+
+    /**
+     * Get this event loop's {@link Selector}.
+     *
+     * @return selector
+     */
+    public Selector getSelector() {
+        return this.selector;
+    }
+
+    /**
+     * Determine whether this event loop has been closed.
+     *
+     * @return true if closed
+     */
+    public boolean isClosed() {
+        return this.closed;
+    }
+
+    /**
+     * Determine whether the current thread is this event loop's thread.
+     *
+     * @return true if invoked from this event loop
+     */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == this.thread;
+    }
+
+    /**
+     * Start this event loop's thread.
+     */
+    public void start() {
+        this.thread.start();
+    }
+
+    /**
+     * Register a channel with this event loop. The channel is initially registered with no interest ops.
+     *
+     * @param channel channel to register
+     * @param service handler for ready I/O
+     * @return selection key, or null if this event loop is closed
+     * @throws ClosedChannelException if {@code channel} is closed
+     */
+    public SelectionKey register(SelectableChannel channel, SelectorService service) throws ClosedChannelException {
+        if (channel == null)
+            throw new IllegalArgumentException("null channel");
+        if (service == null)
+            throw new IllegalArgumentException("null service");
+        if (this.closed)
+            return null;
+        this.wakeup();                                          // avoids blocking in channel.register()
+        return channel.register(this.selector, 0, service);
+    }
+
+    /**
+     * Run a task in this event loop's thread as soon as possible. Does nothing if this event loop is closed.
+     *
+     * @param task task to run
+     * @throws IllegalArgumentException if {@code task} is null
+     */
+    public void execute(Runnable task) {
+        if (task == null)
+            throw new IllegalArgumentException("null task");
+        final boolean wasEmpty;
+        synchronized (this) {
+            wasEmpty = this.tasks.isEmpty();
+            this.tasks.add(task);
+        }
+        if (wasEmpty && !this.inEventLoop())
+            this.wakeup();
+    }
+
+    /**
+     * Schedule a task to be run by this event loop's thread after the given delay.
+     *
+     * @param delayMillis delay in milliseconds
+     * @param task task to run
+     * @return handle that may be used to cancel the task
+     * @throws IllegalArgumentException if {@code task} is null
+     */
+    public TimerWheel.Timeout schedule(long delayMillis, Runnable task) {
+        final TimerWheel.Timeout timeout = this.timerWheel.schedule(delayMillis, task);
+        if (!this.inEventLoop())
+            this.wakeup();                                      // so our thread can recalculate its select() timeout
+        return timeout;
+    }
+
+    /**
+     * Wait for I/O readiness, a {@linkplain #wakeup wakeup}, or the next timer tick that has something scheduled.
+     * Does not wait at all if there are {@linkplain #addReadySession ready sessions} or {@linkplain #execute tasks}.
+     *
+     * <p>
+     * This should only be invoked by this event loop's thread.
+     * </p>
+     *
+     * @throws IOException if an I/O error occurs
+     * @throws java.nio.channels.ClosedSelectorException if this event loop has been closed
+     */
+    public void select() throws IOException {
+        final boolean haveWork;
+        synchronized (this) {
+            haveWork = !this.readySessions.isEmpty() || !this.tasks.isEmpty();
+        }
+        if (haveWork) {
+            this.selector.selectNow();
+            return;
+        }
+        final long wakeupTime = this.timerWheel.nextWakeupTime();
+        if (wakeupTime == -1) {
+            this.selector.select();
+            return;
+        }
+        final long delay = (wakeupTime - System.nanoTime() + 999999L) / 1000000L;
+        if (delay > 0)
+            this.selector.select(delay);
+        else
+            this.selector.selectNow();
+    }
+
+    /**
+     * Run any tasks submitted via {@link #execute execute()} and any scheduled tasks that are due.
+     *
+     * <p>
+     * This should only be invoked by this event loop's thread.
+     * </p>
+     */
+    public void runTasks() {
+        ArrayList<Runnable> currentTasks = null;
+        synchronized (this) {
+            if (!this.tasks.isEmpty()) {
+                currentTasks = this.tasks;
+                this.tasks = new ArrayList<>();
+            }
+        }
+        if (currentTasks != null)
+            this.runTasks(currentTasks);
+        this.timerWheel.expire(this.expiredTasks);
+        try {
+            this.runTasks(this.expiredTasks);
+        } finally {
+            this.expiredTasks.clear();
+        }
+    }
+
+    private void runTasks(List<Runnable> list) {
+        for (Runnable task : list) {
+            try {
+                task.run();
+            } catch (ThreadDeath t) {
+                throw t;
+            } catch (Throwable t) {
+                this.log.error("error in task " + task, t);
+            }
+        }
+    }
+
+    /**
+     * Add a session to the list of sessions that need to be serviced by this event loop,
+     * waking up this event loop's thread if necessary.
+     *
+     * @param session session with pending work
+     */
+    public void addReadySession(Session session) {
+        final boolean wasEmpty;
+        synchronized (this) {
+            wasEmpty = this.readySessions.isEmpty();
+            this.readySessions.add(session);
+        }
+        if (wasEmpty && !this.inEventLoop())
+            this.wakeup();
+    }
+
+    /**
+     * Take the current list of sessions that need to be serviced.
+     *
+     * <p>
+     * Sessions that become ready while the returned list is being processed will be returned by the next invocation.
+     * </p>
+     *
+     * @return ready sessions, possibly empty
+     */
+    public synchronized List<Session> takeReadySessions() {
+        if (this.readySessions.isEmpty())
+            return Collections.<Session>emptyList();
+        final ArrayList<Session> list = this.readySessions;
+        this.readySessions = new ArrayList<>();
+        return list;
+    }
+
+    /**
+     * Wakeup this event loop's thread.
+     */
+    public void wakeup() {
+        if (this.log.isTraceEnabled())
+            this.log.trace("wakeup " + this);
+        if (!this.closed)
+            this.selector.wakeup();
+    }
+
+    /**
+     * Close this event loop. Does nothing if already closed.
+     *
+     * @return this event loop's thread, if it should be waited for, otherwise null
+     */
+    public Thread close() {
+        if (this.closed)
+            return null;
+        this.closed = true;
+        try {
+            this.selector.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        this.thread.interrupt();
+        return this.inEventLoop() ? null : this.thread;
+    }
+
+    @Override
+    public String toString() {
+        return "EventLoop[" + this.index + "]";
+    }
+
+// Service
+
+    private void run() {
+        try {
+            this.msrp.service(this);
+        } catch (ThreadDeath t) {
+            throw t;
+        } catch (Throwable t) {
+            this.log.error("unexpected error in service thread", t);
+        }
+        if (this.log.isDebugEnabled())
+            this.log.debug(this.thread + " exiting");
+    }
+}
@@ -0,0 +1,115 @@
+
+/*
+ * Copyright (C) 2014 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.msrp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import org.dellroad.msrp.msg.BufferSink;
+import org.dellroad.msrp.msg.MsrpHeaders;
+import org.dellroad.msrp.msg.MsrpRequest;
+
+/**
+ * A {@code SEND} request whose body is a region of a file.
+ *
+ * <p>
+ * The file region is not a {@linkplain #getBody body} in the {@link MsrpRequest} sense: {@link #getBody} returns null,
+ * and the region is only read when this request is encoded. Setting a body via {@link #setBody setBody()} replaces
+ * the file region. When encoded into a {@link FileRegionSink}, the region is passed along as is so it can be transferred
+ * directly from the file to the socket. Instances hold a reference to their {@link FileContent}, which must be
+ * {@linkplain #release released} once the request has been encoded or discarded.
+ * </p>
+ */
+class FileChunkRequest extends MsrpRequest {
+
+    private static final ByteBuffer CRLF = ByteBuffer.wrap(new byte[] { '\r', '\n' }).asReadOnlyBuffer();
+
+    private final FileContent content;
+    private final long position;
+    private final long length;
+
+    private boolean released;
+
+    /**
+     * Constructor.
+     *
+     * @param transactionId transaction ID
+     * @param headers MSRP headers
+     * @param content file content; a new reference is retained
+     * @param position offset of the body in the file
+     * @param length length of the body
+     */
+    FileChunkRequest(String transactionId, MsrpHeaders headers, FileContent content, long position, long length) {
+        super(transactionId, MsrpConstants.METHOD_SEND, headers);
+        content.retain();
+        this.content = content;
+        this.position = position;
+        this.length = length;
+    }
+
+    /**
+     * Release this instance's reference to its file content. This method is idempotent.
+     */
+    public synchronized void release() {
+        if (this.released)
+            return;
+        this.released = true;
+        this.content.release();
+    }
+
+    // Determine whether this instance has been released
+    private synchronized boolean isReleased() {
+        return this.released;
+    }
+
+    @Override
+    protected void writePayload(OutputStream output) throws IOException {
+        if (this.getBody() != null) {
+            super.writePayload(output);
+            return;
+        }
+        if (this.isReleased())
+            throw new IOException("file content has been released");
+        final ByteBuffer buf = ByteBuffer.allocate((int)this.length);
+        this.readInto(buf);
+        output.write('\r');
+        output.write('\n');
+        output.write(buf.array());
+        output.write('\r');
+        output.write('\n');
+    }
+
+    @Override
+    protected void writePayload(BufferSink sink) throws IOException {
+        if (this.getBody() != null) {
+            super.writePayload(sink);
+            return;
+        }
+        if (this.isReleased())
+            throw new IOException("file content has been released");
+        sink.write(CRLF.duplicate());
+        if (sink instanceof FileRegionSink)
+            ((FileRegionSink)sink).writeFileRegion(this.content, this.position, this.length);
+        else if (this.length > 0) {
+            final ByteBuffer buf = sink.acquire((int)this.length);
+            buf.limit((int)this.length);
+            this.readInto(buf);
+            buf.flip();
+            sink.write(buf);
+        }
+        sink.write(CRLF.duplicate());
+    }
+
+    private void readInto(ByteBuffer buf) throws IOException {
+        for (long offset = this.position; buf.hasRemaining(); ) {
+            final int r = this.content.getChannel().read(buf, offset);
+            if (r < 0)
+                throw new IOException("file truncated");
+            offset += r;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+
+/*
+ * Copyright (C) 2014 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.msrp;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reference counted {@link FileChannel} supplying the content of an outgoing message.
+ *
+ * <p>
+ * The channel is shared by the {@link OutputChunks} sending the message and any {@link Connection}s that still have
+ * chunks of it queued for output. It is closed when the last reference is released.
+ * </p>
+ */
+class FileContent {
+
+    private final FileChannel channel;
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    /**
+     * Constructor. The new instance has one reference, owned by the caller.
+     *
+     * @param channel file channel
+     * @throws IllegalArgumentException if {@code channel} is null
+     */
+    FileContent(FileChannel channel) {
+        if (channel == null)
+            throw new IllegalArgumentException("null channel");
+        this.channel = channel;
+    }
+
+    /**
+     * Get the underlying channel. Only valid while holding a reference.
+     *
+     * @return file channel
+     */
+    public FileChannel getChannel() {
+        return this.channel;
+    }
+
+    /**
+     * Add a reference.
+     *
+     * @throws IllegalStateException if this instance has already been closed
+     */
+    public void retain() {
+        while (true) {
+            final int count = this.refs.get();
+            if (count <= 0)
+                throw new IllegalStateException("file content already closed");
+            if (this.refs.compareAndSet(count, count + 1))
+                return;
+        }
+    }
+
+    /**
+     * Release a reference, closing the channel if it was the last one.
+     */
+    public void release() {
+        if (this.refs.decrementAndGet() != 0)
+            return;
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+}
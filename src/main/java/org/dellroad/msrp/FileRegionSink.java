@@ -0,0 +1,29 @@
+
+/*
+ * Copyright (C) 2014 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.msrp;
+
+import org.dellroad.msrp.msg.BufferSink;
+
+/**
+ * A {@link BufferSink} that can also accept regions of a file, which it transfers without copying them through buffers.
+ *
+ * @see FileChunkRequest
+ */
+interface FileRegionSink extends BufferSink {
+
+    /**
+     * Append a region of a file.
+     *
+     * <p>
+     * The sink must {@linkplain FileContent#retain retain} {@code content} for as long as it needs it.
+     * </p>
+     *
+     * @param content file content
+     * @param position starting offset in the file
+     * @param length number of bytes
+     */
+    void writeFileRegion(FileContent content, long position, long length);
+}
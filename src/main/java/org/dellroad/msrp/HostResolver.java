@@ -0,0 +1,173 @@
+
+/*
+ * Copyright (C) 2014 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.msrp;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resolves host names for outgoing connections without blocking the event loop threads.
+ *
+ * <p>
+ * Lookups are performed by a small pool of resolver threads. Results, both positive and negative, are cached
+ * for a configurable time in a bounded LRU cache, and concurrent lookups of the same host share a single query.
+ * </p>
+ */
+class HostResolver {
+
+    /**
+     * Maximum number of cached hosts.
+     */
+    static final int MAX_CACHE_ENTRIES = 1024;
+
+    /**
+     * Maximum number of lookups performed at the same time.
+     */
+    static final int MAX_RESOLVER_THREADS = 4;
+
+    private static final long THREAD_KEEPALIVE_MILLIS = 60000L;                                // 60 seconds
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+    private final long ttl;
+    private final long negativeTtl;
+    private final ThreadPoolExecutor executor;
+
+    // These are guarded by this instance's lock
+    private final LinkedHashMap<String, CacheEntry> cache = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+            return this.size() > MAX_CACHE_ENTRIES;
+        }
+    };
+    private final HashMap<String, CompletableFuture<InetAddress>> pending = new HashMap<>();
+
+    /**
+     * Constructor.
+     *
+     * @param name name used for resolver threads
+     * @param ttl how long to cache successful lookups in milliseconds, or zero to not cache
+     * @param negativeTtl how long to cache failed lookups in milliseconds, or zero to not cache
+     */
+    HostResolver(final String name, long ttl, long negativeTtl) {
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(MAX_RESOLVER_THREADS, MAX_RESOLVER_THREADS,
+          THREAD_KEEPALIVE_MILLIS, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), action -> {
+            final Thread thread = new Thread(action, name + " #" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Resolve the given host name.
+     *
+     * <p>
+     * If the result is cached, the returned future will already be complete. Otherwise, it will be completed by
+     * a resolver thread, so callers should not perform any significant work in dependent actions.
+     * </p>
+     *
+     * @param host host name or IP address
+     * @return future address, which completes with null if {@code host} could not be resolved
+     * @throws IllegalArgumentException if {@code host} is null
+     */
+    public CompletableFuture<InetAddress> resolve(final String host) {
+        if (host == null)
+            throw new IllegalArgumentException("null host");
+        final CompletableFuture<InetAddress> future;
+        synchronized (this) {
+
+            // Check cache
+            final CacheEntry entry = this.cache.get(host);
+            if (entry != null) {
+                if (System.nanoTime() - entry.getExpiration() < 0)
+                    return CompletableFuture.completedFuture(entry.getAddress());
+                this.cache.remove(host);
+            }
+
+            // Join any lookup already in progress
+            final CompletableFuture<InetAddress> existing = this.pending.get(host);
+            if (existing != null)
+                return existing;
+
+            // Start a new lookup
+            future = new CompletableFuture<>();
+            this.pending.put(host, future);
+        }
+        try {
+            this.executor.execute(() -> this.lookup(host, future));
+        } catch (RejectedExecutionException e) {                    // we've been shut down
+            synchronized (this) {
+                this.pending.remove(host);
+            }
+            future.complete(null);
+        }
+        return future;
+    }
+
+    /**
+     * Shutdown this instance. Any lookups not yet started will never complete.
+     */
+    public void shutdown() {
+        this.executor.shutdownNow();
+    }
+
+    private void lookup(String host, CompletableFuture<InetAddress> future) {
+        if (this.log.isDebugEnabled())
+            this.log.debug("looking up DNS name `" + host + "'");
+        InetAddress address = null;
+        try {
+            address = InetAddress.getByName(host);
+        } catch (UnknownHostException | SecurityException e) {
+            if (this.log.isDebugEnabled())
+                this.log.debug("DNS lookup failure for `" + host + "': " + e);
+        }
+        if (address != null && this.log.isDebugEnabled())
+            this.log.debug("`" + host + "' resolves to " + address);
+        synchronized (this) {
+            this.pending.remove(host);
+            final long cacheTime = address != null ? this.ttl : this.negativeTtl;
+            if (cacheTime > 0)
+                this.cache.put(host, new CacheEntry(address, System.nanoTime() + cacheTime * 1000000L));
+        }
+        future.complete(address);
+    }
+
+// CacheEntry
+
+    private static class CacheEntry {
+
+        private final InetAddress address;
+        private final long expiration;
+
+        CacheEntry(InetAddress address, long expiration) {
+            this.address = address;
+            this.expiration = expiration;
+        }
+
+        public InetAddress getAddress() {
+            return this.address;
+        }
+
+        public long getExpiration() {
+            return this.expiration;
+        }
+    }
+}
@@ -0,0 +1,274 @@
+
+/*
+ * Copyright (C) 2014 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.msrp;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Predicate;
+
+/**
+ * Map from transaction or message ID to some value.
+ *
+ * <p>
+ * IDs generated by {@link org.dellroad.msrp.msg.MsrpMessage#randomId} are 16 lower case hex digits, so they are decoded
+ * back into the {@code long} they came from and stored in an open-addressing hash table with linear probing; lookups
+ * compare primitive keys and allocate nothing. Any other ID, e.g., a message ID chosen by the remote side, is kept
+ * in an ordinary {@link HashMap}.
+ * </p>
+ *
+ * <p>
+ * Null values are not permitted. Instances are not thread safe.
+ * </p>
+ *
+ * @param <V> value type
+ */
+class IdMap<V> implements Iterable<V> {
+
+    private static final int INITIAL_CAPACITY = 16;                 // must be a power of two
+    private static final int ID_LENGTH = 16;
+
+    private long[] keys = new long[INITIAL_CAPACITY];
+    private Object[] values = new Object[INITIAL_CAPACITY];         // null means empty slot
+    private int size;                                               // number of entries in the hash table
+    private HashMap<String, V> others;                              // created on demand
+
+    /**
+     * Get the number of entries in this map.
+     *
+     * @return number of entries
+     */
+    public int size() {
+        return this.size + (this.others != null ? this.others.size() : 0);
+    }
+
+    /**
+     * Determine whether this map is empty.
+     *
+     * @return true if this map is empty
+     */
+    public boolean isEmpty() {
+        return this.size() == 0;
+    }
+
+    /**
+     * Get the value associated with the given ID.
+     *
+     * @param id transaction or message ID
+     * @return associated value, or null if none
+     */
+    public V get(String id) {
+        final long key = IdMap.decode(id);
+        if (key == -1 && !IdMap.isEncoded(id))
+            return this.others != null ? this.others.get(id) : null;
+        final int slot = this.find(key);
+        return slot != -1 ? this.valueAt(slot) : null;
+    }
+
+    /**
+     * Associate a value with the given ID.
+     *
+     * @param id transaction or message ID
+     * @param value value
+     * @return previously associated value, or null if none
+     * @throws IllegalArgumentException if {@code value} is null
+     */
+    public V put(String id, V value) {
+        if (value == null)
+            throw new IllegalArgumentException("null value");
+        final long key = IdMap.decode(id);
+        if (key == -1 && !IdMap.isEncoded(id)) {
+            if (this.others == null)
+                this.others = new HashMap<>();
+            return this.others.put(id, value);
+        }
+        int slot = this.find(key);
+        if (slot != -1) {
+            final V previous = this.valueAt(slot);
+            this.values[slot] = value;
+            return previous;
+        }
+        if ((this.size + 1) * 2 > this.keys.length)                    // keep load factor at most 1/2
+            this.resize(this.keys.length * 2);
+        final int mask = this.keys.length - 1;
+        for (slot = IdMap.hash(key) & mask; this.values[slot] != null; slot = (slot + 1) & mask)
+            ;
+        this.keys[slot] = key;
+        this.values[slot] = value;
+        this.size++;
+        return null;
+    }
+
+    /**
+     * Remove the value associated with the given ID.
+     *
+     * @param id transaction or message ID
+     * @return previously associated value, or null if none
+     */
+    public V remove(String id) {
+        final long key = IdMap.decode(id);
+        if (key == -1 && !IdMap.isEncoded(id))
+            return this.others != null ? this.others.remove(id) : null;
+        final int slot = this.find(key);
+        if (slot == -1)
+            return null;
+        final V previous = this.valueAt(slot);
+        this.removeSlot(slot);
+        return previous;
+    }
+
+    /**
+     * Remove the given ID only if it is associated with the given value.
+     *
+     * @param id transaction or message ID
+     * @param value expected value
+     * @return true if the entry was removed
+     */
+    public boolean remove(String id, V value) {
+        if (value == null || this.get(id) != value)
+            return false;
+        this.remove(id);
+        return true;
+    }
+
+    /**
+     * Remove all entries whose values satisfy the given predicate.
+     *
+     * @param filter predicate selecting values to remove
+     */
+    public void removeIf(Predicate<? super V> filter) {
+        for (int slot = 0; slot < this.values.length; ) {
+            final V value = this.valueAt(slot);
+            if (value != null && filter.test(value))
+                this.removeSlot(slot);                  // another entry may have shifted into this slot, so look again
+            else
+                slot++;
+        }
+        if (this.others != null)
+            this.others.values().removeIf(filter);
+    }
+
+    /**
+     * Remove all entries.
+     */
+    public void clear() {
+        Arrays.fill(this.values, null);
+        this.size = 0;
+        this.others = null;
+    }
+
+    /**
+     * Iterate the values in this map, in no particular order. The returned iterator does not support removal,
+     * and this map must not be modified while the iteration is in progress.
+     *
+     * @return value iterator
+     */
+    @Override
+    public Iterator<V> iterator() {
+        return new Iterator<V>() {
+
+            private final Iterator<V> otherIterator = IdMap.this.others != null ? IdMap.this.others.values().iterator() : null;
+            private int slot;
+
+            @Override
+            public boolean hasNext() {
+                while (this.slot < IdMap.this.values.length) {
+                    if (IdMap.this.values[this.slot] != null)
+                        return true;
+                    this.slot++;
+                }
+                return this.otherIterator != null && this.otherIterator.hasNext();
+            }
+
+            @Override
+            public V next() {
+                if (!this.hasNext())
+                    throw new NoSuchElementException();
+                if (this.slot < IdMap.this.values.length)
+                    return IdMap.this.valueAt(this.slot++);
+                return this.otherIterator.next();
+            }
+        };
+    }
+
+// Internal methods
+
+    @SuppressWarnings("unchecked")
+    private V valueAt(int slot) {
+        return (V)this.values[slot];
+    }
+
+    // Find slot containing key, or -1 if not found
+    private int find(long key) {
+        final int mask = this.keys.length - 1;
+        for (int slot = IdMap.hash(key) & mask; this.values[slot] != null; slot = (slot + 1) & mask) {
+            if (this.keys[slot] == key)
+                return slot;
+        }
+        return -1;
+    }
+
+    // Remove the entry in the given slot, shifting back any following entries that would otherwise become unreachable
+    private void removeSlot(int hole) {
+        final int mask = this.keys.length - 1;
+        for (int slot = (hole + 1) & mask; this.values[slot] != null; slot = (slot + 1) & mask) {
+            final int home = IdMap.hash(this.keys[slot]) & mask;
+            if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                this.keys[hole] = this.keys[slot];
+                this.values[hole] = this.values[slot];
+                hole = slot;
+            }
+        }
+        this.values[hole] = null;
+        this.size--;
+    }
+
+    private void resize(int capacity) {
+        final long[] oldKeys = this.keys;
+        final Object[] oldValues = this.values;
+        this.keys = new long[capacity];
+        this.values = new Object[capacity];
+        final int mask = capacity - 1;
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] == null)
+                continue;
+            int slot = IdMap.hash(oldKeys[i]) & mask;
+            while (this.values[slot] != null)
+                slot = (slot + 1) & mask;
+            this.keys[slot] = oldKeys[i];
+            this.values[slot] = oldValues[i];
+        }
+    }
+
+    private static int hash(long key) {
+        return (int)((key * 0x9e3779b97f4a7c15L) >>> 32);
+    }
+
+    // Decode an ID generated by MsrpMessage.randomId(); returns -1 if not such an ID (or if the ID actually encodes -1)
+    static long decode(String id) {
+        if (id.length() != ID_LENGTH)
+            return -1;
+        long key = 0;
+        for (int i = 0; i < ID_LENGTH; i++) {
+            final char ch = id.charAt(i);
+            final int digit;
+            if (ch >= '0' && ch <= '9')
+                digit = ch - '0';
+            else if (ch >= 'a' && ch <= 'f')
+                digit = ch - 'a' + 10;
+            else
+                return -1;
+            key = (key << 4) | digit;
+        }
+        return key;
+    }
+
+    // Disambiguate a -1 return from decode()
+    private static boolean isEncoded(String id) {
+        return id.equals("ffffffffffffffff");
+    }
+}
@@ -5,7 +5,14 @@
 
 package org.dellroad.msrp;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.SortedSet;
@@ -20,13 +27,26 @@ import org.dellroad.msrp.msg.ProtocolException;
 
 /**
  * Represents one incoming MSRP message reassembled from multiple {@code SEND} {@link MsrpRequest} chunks.
+ *
+ * <p>
+ * Content is reassembled in memory until it exceeds the spill threshold, if any, after which it is written
+ * at its byte range offsets into a temporary file instead.
+ * Instances used for {@linkplain StreamingSessionListener streaming} reception track which byte ranges have been
+ * received, but do not retain the content itself.
+ * </p>
  */
 public class InputChunks {
 
+    // Largest array length the JVM reliably supports
+    private static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
     private final String messageId;
     private final long maxContentLength;
+    private final boolean buffered;
+    private final long spillThreshold;
+    private final Path spillDirectory;
     private final TreeSet<Header> headers = new TreeSet<Header>(Header.SORT_BY_NAME);
-    private final ArrayList<long[]> holes = new ArrayList<>();
+    private final RangeSet received = new RangeSet();
 
     private List<MsrpUri> fromPath;
     private boolean successReport;
@@ -36,7 +56,13 @@ public class InputChunks {
     private boolean aborted;
     private long contentLength = -1;
     private long timestamp;
+    private boolean hasBody;
+    private long extent;                                    // content length known so far
     private byte[] buf;
+    private Path spillFile;
+    private FileChannel spillChannel;                       // open while spillFile is being written
+    private TimerWheel.Timeout idleTimeout;                 // managed by the owning Session
+    private ContentStream contentStream;                    // managed by the owning Session
 
     /**
      * Constructor.
@@ -46,10 +72,27 @@ public class InputChunks {
      * @throws IllegalArgumentException if {@code messageId} is null
      */
     public InputChunks(String messageId, long maxContentLength) {
+        this(messageId, maxContentLength, true, -1, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param messageId incoming message ID
+     * @param maxContentLength maximum allowed message content length
+     * @param buffered true to reassemble the content, false to only track which byte ranges have been received
+     * @param spillThreshold content length above which to reassemble in a temporary file, or -1 to always use memory
+     * @param spillDirectory directory for the temporary file, or null for the system default
+     * @throws IllegalArgumentException if {@code messageId} is null
+     */
+    InputChunks(String messageId, long maxContentLength, boolean buffered, long spillThreshold, Path spillDirectory) {
         if (messageId == null)
             throw new IllegalArgumentException("null messageId");
         this.messageId = messageId;
         this.maxContentLength = maxContentLength;
+        this.buffered = buffered;
+        this.spillThreshold = spillThreshold;
+        this.spillDirectory = spillDirectory;
         this.timestamp = System.nanoTime();
     }
 
@@ -62,8 +105,9 @@ public class InputChunks {
      * @throws IllegalArgumentException if {@code request} is not a {@code SEND} request
      * @throws IllegalArgumentException if {@code request} has the wrong message ID
      * @throws ProtocolException if a protocol violation is detected
+     * @throws IOException if an error occurs writing to the temporary file
      */
-    public synchronized boolean handleSend(MsrpRequest request) throws ProtocolException {
+    public synchronized boolean handleSend(MsrpRequest request) throws ProtocolException, IOException {
 
         // Sanity check
         if (request == null)
@@ -98,7 +142,7 @@ public class InputChunks {
         // Get body; if none, check sanity
         final byte[] body = request.getBody();
         if (body == null) {
-            if (this.buf != null)
+            if (this.hasBody)
                 throw new ProtocolException("continuation request must have a body");
             final ByteRange byteRange = requestHeaders.getByteRange();
             if (byteRange != null && !byteRange.equals(ByteRange.EMPTY))
@@ -142,47 +186,107 @@ public class InputChunks {
 
         // Check content length not too big
         final long minimumLength = Math.max(limit, this.contentLength);
-        if (minimumLength > this.maxContentLength || minimumLength > Integer.MAX_VALUE)     // TODO: allow long length with stream
-            throw new ProtocolException("content is too large (" + minimumLength + " > " + this.maxContentLength + " bytes)");
-
-        // Create content buffer if it doesn't already exist
-        if (this.buf == null)
-            this.buf = new byte[0];
-
-        // Expand content buffer as needed and add a corresponding hole TODO: allow streaming to a file instead of into memory
-        if (this.buf.length < minimumLength) {
-            this.holes.add(new long[] { this.buf.length, minimumLength });
-            final byte[] newBuf = new byte[(int)minimumLength];
-            System.arraycopy(this.buf, 0, newBuf, 0, this.buf.length);
-            this.buf = newBuf;
+        final long maxLength = this.buffered && this.spillThreshold == -1 ?
+          Math.min(this.maxContentLength, MAX_ARRAY_LENGTH) : this.maxContentLength;
+        if (minimumLength > maxLength)
+            throw new ProtocolException("content is too large (" + minimumLength + " > " + maxLength + " bytes)");
+        this.hasBody = true;
+
+        // Switch to a temporary file once the content is too large to keep in memory
+        if (this.buffered && this.spillFile == null && this.spillThreshold != -1 && minimumLength > this.spillThreshold)
+            this.spill();
+
+        // Adopt the body as the content buffer if it's all the content we know of, otherwise make room in the buffer
+        final boolean inMemory = this.buffered && this.spillFile == null;
+        boolean adopted = false;
+        if (inMemory) {
+            if (this.buf == null && offset == 0 && body.length == minimumLength) {
+                this.buf = body;
+                adopted = true;
+            } else
+                this.ensureCapacity(minimumLength);
         }
+        this.extent = Math.max(this.extent, minimumLength);
 
-        // Merge new data into content buffer and update holes
-        System.arraycopy(body, 0, this.buf, (int)offset, body.length);
-        for (int i = 0; i < this.holes.size(); i++) {
-            final long[] hole = this.holes.get(i);
-            assert hole[0] < hole[1];
-            if (hole[1] <= offset || hole[0] >= limit)      // entirely before or after body (i.e., not a factor)
-                continue;
-            if (hole[0] >= offset && hole[1] <= limit)      // entirely contained within body
-                this.holes.remove(i--);
-            else if (hole[1] <= limit)                      // straddles body's left border
-                hole[1] = offset;
-            else if (hole[0] >= offset)                     // straddles body's right border
-                hole[0] = limit;
-            else {                                          // entirely contains body => split it in two
-                this.holes.set(i, new long[] { hole[0], offset });
-                this.holes.add(++i, new long[] { limit, hole[1] });
-            }
-        }
+        // Merge new data into content and record the range received
+        if (inMemory && !adopted)
+            System.arraycopy(body, 0, this.buf, (int)offset, body.length);
+        else if (this.spillFile != null)
+            this.writeSpillFile(ByteBuffer.wrap(body), offset);
+        this.received.add(offset, limit);
 
         // Are we complete now?
-        this.complete |= request.isComplete() && this.holes.isEmpty();
+        this.complete |= request.isComplete() && this.received.contains(0, this.extent);
+        if (this.complete && this.spillChannel != null) {
+            this.spillChannel.close();
+            this.spillChannel = null;
+        }
 
         // Done
         return this.complete;
     }
 
+    // Grow the content buffer to hold at least the given length. When the total length is known, minLength is the total
+    // and we allocate exactly that; otherwise, grow geometrically so reassembly does not copy the content on every chunk.
+    private void ensureCapacity(long minLength) {
+        if (this.buf != null && this.buf.length >= minLength)
+            return;
+        long capacity = minLength;
+        if (this.contentLength == -1 && this.buf != null) {
+            long limit = Math.min(this.maxContentLength, MAX_ARRAY_LENGTH);
+            if (this.spillThreshold != -1)
+                limit = Math.min(limit, this.spillThreshold);
+            capacity = Math.max(Math.min((long)this.buf.length * 2, limit), minLength);
+        }
+        final byte[] newBuf = new byte[(int)capacity];
+        if (this.buf != null)
+            System.arraycopy(this.buf, 0, newBuf, 0, (int)this.extent);
+        this.buf = newBuf;
+    }
+
+    // Move content received so far from memory into a new temporary file
+    private void spill() throws IOException {
+        final Path file = this.spillDirectory != null ?
+          Files.createTempFile(this.spillDirectory, "msrp", ".tmp") : Files.createTempFile("msrp", ".tmp");
+        this.spillFile = file;
+        try {
+            this.spillChannel = FileChannel.open(file, StandardOpenOption.WRITE);
+            if (this.buf != null)
+                this.writeSpillFile(ByteBuffer.wrap(this.buf, 0, (int)this.extent), 0);
+        } catch (IOException e) {
+            this.discard();
+            throw e;
+        }
+        this.buf = null;
+    }
+
+    private void writeSpillFile(ByteBuffer data, long position) throws IOException {
+        while (data.hasRemaining())
+            position += this.spillChannel.write(data, position);
+    }
+
+    /**
+     * Discard any temporary file. Invoked when this message is abandoned before its content file is delivered.
+     */
+    synchronized void discard() {
+        if (this.spillChannel != null) {
+            try {
+                this.spillChannel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            this.spillChannel = null;
+        }
+        if (this.spillFile != null) {
+            try {
+                Files.deleteIfExists(this.spillFile);
+            } catch (IOException e) {
+                // ignore
+            }
+            this.spillFile = null;
+        }
+    }
+
     /**
      * Get idle time of this instance.
      *
@@ -192,6 +296,31 @@ public class InputChunks {
         return (System.nanoTime() - this.timestamp) / 1000000L;
     }
 
+    // Get idle timer, if any
+    synchronized TimerWheel.Timeout getIdleTimeout() {
+        return this.idleTimeout;
+    }
+
+    // Set idle timer
+    synchronized void setIdleTimeout(TimerWheel.Timeout idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    // Get capacity of the in-memory content buffer, or -1 if there is none
+    synchronized int getBufferCapacity() {
+        return this.buf != null ? this.buf.length : -1;
+    }
+
+    // Get content stream, if streaming and started
+    synchronized ContentStream getContentStream() {
+        return this.contentStream;
+    }
+
+    // Set content stream
+    synchronized void setContentStream(ContentStream contentStream) {
+        this.contentStream = contentStream;
+    }
+
     /**
      * Get message ID.
      *
@@ -213,12 +342,39 @@ public class InputChunks {
     /**
      * Get message content.
      *
-     * @return message content, or null if this message does not contain any content
+     * @return message content, or null if this message does not contain any content or is not being buffered in memory
      */
     public synchronized byte[] getContent() {
+        if (this.buf != null && this.buf.length != this.extent)
+            this.buf = Arrays.copyOf(this.buf, (int)this.extent);             // trim excess capacity
         return this.buf;
     }
 
+    /**
+     * Get the temporary file containing the message content, if the content has exceeded the spill threshold.
+     *
+     * @return message content file, or null if the content is not in a temporary file
+     */
+    public synchronized Path getContentFile() {
+        return this.spillFile;
+    }
+
+    /**
+     * Get the byte ranges of the message content received so far, e.g., for use in {@code REPORT} requests.
+     *
+     * @return received content byte ranges in increasing order, possibly empty
+     */
+    public synchronized List<ByteRange> getReceivedRanges() {
+        final int size = this.received.size();
+        final ArrayList<ByteRange> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            final long start = this.received.getStart(i);
+            final long end = this.received.getEnd(i);
+            list.add(new ByteRange(start + 1, end, this.contentLength >= end ? this.contentLength : -1));
+        }
+        return list;
+    }
+
     /**
      * Get message content type.
      *
@@ -6,21 +6,29 @@
 package org.dellroad.msrp;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.channels.CancelledKeyException;
-import java.nio.channels.ClosedChannelException;
 import java.nio.channels.ClosedSelectorException;
-import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.dellroad.msrp.msg.MsrpInputParser;
 import org.dellroad.msrp.msg.MsrpMessage;
@@ -65,26 +73,143 @@ public class Msrp {
      */
     public static final long DEFAULT_CONNECT_TIMEOUT = 20 * 1000L;      // 20 sec
 
-    // Maximum age and quantity of "orphans" (unrecognized MsrpRequest's) to hang on to
-    private static final int MAX_ORPHANS = 100;
-    private static final int MAX_ORPHAN_HOLD_TIME = 500;                // 500 ms
+    /**
+     * Default minimum connection receive buffer size ({@value #DEFAULT_MIN_RECEIVE_BUFFER_SIZE} bytes).
+     *
+     * @see #getMinReceiveBufferSize
+     */
+    public static final int DEFAULT_MIN_RECEIVE_BUFFER_SIZE = 1024;           // 1K
+
+    /**
+     * Default maximum connection receive buffer size ({@value #DEFAULT_MAX_RECEIVE_BUFFER_SIZE} bytes).
+     *
+     * @see #getMaxReceiveBufferSize
+     */
+    public static final int DEFAULT_MAX_RECEIVE_BUFFER_SIZE = 64 * 1024;      // 64K
+
+    /**
+     * Default maximum number of bytes written to a connection per I/O readiness event
+     * ({@value #DEFAULT_MAX_WRITE_BYTES_PER_EVENT} bytes).
+     *
+     * @see #getMaxWriteBytesPerEvent
+     */
+    public static final long DEFAULT_MAX_WRITE_BYTES_PER_EVENT = 1024 * 1024L;    // 1M
+
+    /**
+     * Default maximum number of write attempts on a connection per I/O readiness event ({@value #DEFAULT_WRITE_SPIN_COUNT}).
+     *
+     * @see #getWriteSpinCount
+     */
+    public static final int DEFAULT_WRITE_SPIN_COUNT = 16;
+
+    /**
+     * Default number of event loop threads, which is equal to the number of available processors.
+     *
+     * @see #getEventLoopThreads
+     */
+    public static final int DEFAULT_EVENT_LOOP_THREADS = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Default time to cache successful DNS lookups ({@value #DEFAULT_DNS_CACHE_TTL} milliseconds).
+     *
+     * @see #getDnsCacheTtl
+     */
+    public static final long DEFAULT_DNS_CACHE_TTL = 30 * 1000L;        // 30 sec
+
+    /**
+     * Default time to cache failed DNS lookups ({@value #DEFAULT_DNS_NEGATIVE_CACHE_TTL} milliseconds).
+     *
+     * @see #getDnsNegativeCacheTtl
+     */
+    public static final long DEFAULT_DNS_NEGATIVE_CACHE_TTL = 10 * 1000L;   // 10 sec
+
+    /**
+     * Default maximum body size of outgoing {@code SEND} request chunks ({@value #DEFAULT_CHUNK_SIZE} bytes).
+     *
+     * @see #getChunkSize
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 2048;                  // 2K
+
+    /**
+     * Default ceiling for adaptive chunk sizing ({@value #DEFAULT_MAX_CHUNK_SIZE} bytes).
+     *
+     * @see #getMaxChunkSize
+     */
+    public static final int DEFAULT_MAX_CHUNK_SIZE = 256 * 1024;        // 256K
+
+    /**
+     * Default content length above which incoming messages are reassembled in a temporary file
+     * ({@value #DEFAULT_SPILL_THRESHOLD}, meaning never).
+     *
+     * @see #getSpillThreshold
+     */
+    public static final long DEFAULT_SPILL_THRESHOLD = -1;
+
+    /**
+     * Default maximum number of orphans to hold ({@value #DEFAULT_MAX_ORPHANS}).
+     *
+     * @see #getMaxOrphans
+     */
+    public static final int DEFAULT_MAX_ORPHANS = 1000;
+
+    /**
+     * Default maximum total content size of orphans to hold ({@value #DEFAULT_MAX_ORPHAN_BYTES} bytes).
+     *
+     * @see #getMaxOrphanBytes
+     */
+    public static final long DEFAULT_MAX_ORPHAN_BYTES = 4 * 1024 * 1024;    // 4M
+
+    /**
+     * Default orphan hold time ({@value #DEFAULT_ORPHAN_HOLD_TIME} milliseconds).
+     *
+     * @see #getOrphanHoldTime
+     */
+    public static final long DEFAULT_ORPHAN_HOLD_TIME = 500;                 // 500 ms
+
+    // Maximum number of threads reading outgoing message content
+    private static final int MAX_CONTENT_READER_THREADS = 4;
+    private static final long CONTENT_READER_KEEPALIVE_MILLIS = 60 * 1000L;   // 60 sec
 
     private final Logger log = LoggerFactory.getLogger(this.getClass());
-    private final TreeMap<MsrpUri, Session> sessionMap = new TreeMap<>(MsrpUriComparator.INSTANCE);
-    private final HashSet<Connection> connections = new HashSet<>();
-    private final HashSet<Orphan> orphans = new HashSet<>(MAX_ORPHANS);
-
-    private InetSocketAddress listenAddress;
-    private int maxSessions = DEFAULT_MAX_SESSIONS;
-    private long maxContentLength = MsrpInputParser.DEFAULT_MAX_CONTENT_LENGTH;
-    private long maxIdleTime = DEFAULT_MAX_IDLE_TIME;
-    private long connectTimeout = DEFAULT_CONNECT_TIMEOUT;
-    private boolean matchSessionId = true;
-
-    private ServerSocketChannel serverSocketChannel;
+    private final ConcurrentHashMap<MsrpUri.Key, Session> sessionMap = new ConcurrentHashMap<>();     // key is local URI
+    private final ConcurrentHashMap<String, Session[]> sessionIdMap = new ConcurrentHashMap<>();      // key is session ID
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    private final ConcurrentHashMap<Endpoint, Connection[]> endpointMap = new ConcurrentHashMap<>();  // open conns by endpoint
+    private final OrphanQueue orphans = new OrphanQueue();                              // guarded by its own lock
+    private TimerWheel.Timeout orphanTimeout;                                           // guarded by orphans' lock
+
+    // Configuration is volatile so I/O threads can read it without taking our lock
+    private volatile InetSocketAddress listenAddress;
+    private volatile int maxSessions = DEFAULT_MAX_SESSIONS;
+    private volatile long maxContentLength = MsrpInputParser.DEFAULT_MAX_CONTENT_LENGTH;
+    private volatile long maxIdleTime = DEFAULT_MAX_IDLE_TIME;
+    private volatile long connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private volatile boolean matchSessionId = true;
+    private volatile int minReceiveBufferSize = DEFAULT_MIN_RECEIVE_BUFFER_SIZE;
+    private volatile int maxReceiveBufferSize = DEFAULT_MAX_RECEIVE_BUFFER_SIZE;
+    private volatile boolean directBuffers;
+    private volatile long maxWriteBytesPerEvent = DEFAULT_MAX_WRITE_BYTES_PER_EVENT;
+    private volatile int writeSpinCount = DEFAULT_WRITE_SPIN_COUNT;
+    private volatile int eventLoopThreads = DEFAULT_EVENT_LOOP_THREADS;
+    private volatile long dnsCacheTtl = DEFAULT_DNS_CACHE_TTL;
+    private volatile long dnsNegativeCacheTtl = DEFAULT_DNS_NEGATIVE_CACHE_TTL;
+    private volatile int chunkSize = DEFAULT_CHUNK_SIZE;
+    private volatile int maxChunkSize = DEFAULT_MAX_CHUNK_SIZE;
+    private volatile boolean adaptiveChunkSize;
+    private volatile long spillThreshold = DEFAULT_SPILL_THRESHOLD;
+    private volatile Path spillDirectory;
+    private volatile int maxOrphans = DEFAULT_MAX_ORPHANS;
+    private volatile long maxOrphanBytes = DEFAULT_MAX_ORPHAN_BYTES;
+    private volatile long orphanHoldTime = DEFAULT_ORPHAN_HOLD_TIME;
+
+    // Set by start() and stop() while holding our lock; the volatile ones are also read without it
+    private volatile BufferPool bufferPool;
+    private volatile HostResolver hostResolver;
+    private volatile ThreadPoolExecutor contentReader;
+    private volatile ServerSocketChannel serverSocketChannel;
     private SelectionKey selectionKey;
-    private Selector selector;
-    private ServiceThread serviceThread;
+    private EventLoop[] eventLoops;
+    private int nextEventLoop;
 
     /**
      * Constructor.
@@ -99,7 +224,7 @@ public class Msrp {
      *
      * @return listen address, possibly null
      */
-    public synchronized InetSocketAddress getListenAddress() {
+    public InetSocketAddress getListenAddress() {
         return this.listenAddress;
     }
 
@@ -117,7 +242,7 @@ public class Msrp {
      *
      * @param listenAddress listen address, or null to listen on all interfaces on port {@link MsrpConstants#DEFAULT_PORT}
      */
-    public synchronized void setListenAddress(InetSocketAddress listenAddress) {
+    public void setListenAddress(InetSocketAddress listenAddress) {
         this.listenAddress = listenAddress;
     }
 
@@ -126,10 +251,10 @@ public class Msrp {
      *
      * @return maximum number of simultaneous sessions
      */
-    public synchronized int getMaxSessions() {
+    public int getMaxSessions() {
         return this.maxSessions;
     }
-    public synchronized void setMaxSessions(int maxSessions) {
+    public void setMaxSessions(int maxSessions) {
         this.maxSessions = maxSessions;
     }
 
@@ -138,22 +263,107 @@ public class Msrp {
      *
      * @return maximum message content size
      */
-    public synchronized long getMaxContentLength() {
+    public long getMaxContentLength() {
         return this.maxContentLength;
     }
-    public synchronized void setMaxContentLength(long maxContentLength) {
+    public void setMaxContentLength(long maxContentLength) {
         this.maxContentLength = maxContentLength;
     }
 
+    /**
+     * Get the content length above which incoming messages are reassembled in a temporary file instead of in memory.
+     * Default is {@value #DEFAULT_SPILL_THRESHOLD}, meaning all messages are reassembled in memory.
+     *
+     * <p>
+     * Messages that exceed this threshold are delivered via {@link SessionListener#sessionReceivedMessageFile
+     * SessionListener.sessionReceivedMessageFile()}. Only messages reassembled in a temporary file may be larger
+     * than 2GB (if allowed by the {@linkplain #getMaxContentLength maximum content length}).
+     * This setting does not apply to sessions having a {@link StreamingSessionListener}.
+     * </p>
+     *
+     * @return threshold content length in bytes, or -1 to never use a temporary file
+     */
+    public long getSpillThreshold() {
+        return this.spillThreshold;
+    }
+    public void setSpillThreshold(long spillThreshold) {
+        if (spillThreshold < -1 || spillThreshold > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("invalid spillThreshold " + spillThreshold);
+        this.spillThreshold = spillThreshold;
+    }
+
+    /**
+     * Get the directory in which temporary files for large incoming messages are created.
+     * Default is null, meaning the system default temporary directory.
+     *
+     * @return temporary file directory, or null for the system default
+     * @see #getSpillThreshold
+     */
+    public Path getSpillDirectory() {
+        return this.spillDirectory;
+    }
+    public void setSpillDirectory(Path spillDirectory) {
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * Get the maximum number of "orphans" to hold. Default is {@value #DEFAULT_MAX_ORPHANS}.
+     *
+     * <p>
+     * An orphan is an incoming request for which no matching session exists. This can happen when the remote side
+     * connects and starts sending before the corresponding local session has been created, e.g., because the
+     * SIP signaling completed on the remote side first. Orphans are held for up to the
+     * {@linkplain #getOrphanHoldTime orphan hold time} waiting for their session to show up; after that, or if
+     * there is no room to hold them, they are rejected with a {@link MsrpConstants#RESPONSE_CODE_SESSION_DOES_NOT_EXIST}
+     * response.
+     * </p>
+     *
+     * @return maximum number of orphans
+     * @see #getMaxOrphanBytes
+     */
+    public int getMaxOrphans() {
+        return this.maxOrphans;
+    }
+    public void setMaxOrphans(int maxOrphans) {
+        this.maxOrphans = maxOrphans;
+    }
+
+    /**
+     * Get the maximum total content size of held "orphans". Default is {@value #DEFAULT_MAX_ORPHAN_BYTES} bytes.
+     *
+     * @return maximum total orphan content length in bytes
+     * @see #getMaxOrphans
+     */
+    public long getMaxOrphanBytes() {
+        return this.maxOrphanBytes;
+    }
+    public void setMaxOrphanBytes(long maxOrphanBytes) {
+        this.maxOrphanBytes = maxOrphanBytes;
+    }
+
+    /**
+     * Get how long to hold "orphans" waiting for their session to be created. Default is
+     * {@value #DEFAULT_ORPHAN_HOLD_TIME} milliseconds.
+     *
+     * @return orphan hold time in milliseconds
+     * @see #getMaxOrphans
+     */
+    public long getOrphanHoldTime() {
+        return this.orphanHoldTime;
+    }
+    public void setOrphanHoldTime(long orphanHoldTime) {
+        this.orphanHoldTime = orphanHoldTime;
+    }
+
     /**
      * Get the maximum idle time for connections that have no associated sessions. Default is {@value #DEFAULT_MAX_IDLE_TIME}ms.
      *
      * @return maximum connection idle time
      */
-    public synchronized long getMaxIdleTime() {
+    public long getMaxIdleTime() {
         return this.maxIdleTime;
     }
-    public synchronized void setMaxIdleTime(long maxIdleTime) {
+    public void setMaxIdleTime(long maxIdleTime) {
         this.maxIdleTime = maxIdleTime;
     }
 
@@ -162,10 +372,10 @@ public class Msrp {
      *
      * @return connection timeout in milliseconds
      */
-    public synchronized long getConnectTimeout() {
+    public long getConnectTimeout() {
         return this.connectTimeout;
     }
-    public synchronized void setConnectTimeout(long connectTimeout) {
+    public void setConnectTimeout(long connectTimeout) {
         this.connectTimeout = connectTimeout;
     }
 
@@ -178,20 +388,228 @@ public class Msrp {
      * @return true to match by session ID only, otherwise false
      * @see <a href="https://tools.ietf.org/html/draft-ietf-simple-msrp-sessmatch-10">Session Matching Update for the Message Session Relay Protocol (MSRP)</a>
      */
-    public synchronized boolean isMatchSessionId() {
+    public boolean isMatchSessionId() {
         return this.matchSessionId;
     }
-    public synchronized void setMatchSessionId(boolean matchSessionId) {
+    public void setMatchSessionId(boolean matchSessionId) {
         this.matchSessionId = matchSessionId;
     }
 
+    /**
+     * Get the minimum size of the buffer used to receive data on a connection. Default is
+     * {@value #DEFAULT_MIN_RECEIVE_BUFFER_SIZE} bytes.
+     *
+     * <p>
+     * Each connection adapts its receive buffer size to the amount of data actually being received,
+     * within the bounds configured by this property and {@link #getMaxReceiveBufferSize}.
+     * Sizes are rounded to a power of two.
+     * </p>
+     *
+     * @return minimum receive buffer size in bytes
+     */
+    public int getMinReceiveBufferSize() {
+        return this.minReceiveBufferSize;
+    }
+    public void setMinReceiveBufferSize(int minReceiveBufferSize) {
+        if (minReceiveBufferSize <= 0)
+            throw new IllegalArgumentException("minReceiveBufferSize <= 0");
+        this.minReceiveBufferSize = minReceiveBufferSize;
+    }
+
+    /**
+     * Get the maximum size of the buffer used to receive data on a connection. Default is
+     * {@value #DEFAULT_MAX_RECEIVE_BUFFER_SIZE} bytes.
+     *
+     * @return maximum receive buffer size in bytes
+     * @see #getMinReceiveBufferSize
+     */
+    public int getMaxReceiveBufferSize() {
+        return this.maxReceiveBufferSize;
+    }
+    public void setMaxReceiveBufferSize(int maxReceiveBufferSize) {
+        if (maxReceiveBufferSize <= 0)
+            throw new IllegalArgumentException("maxReceiveBufferSize <= 0");
+        this.maxReceiveBufferSize = maxReceiveBufferSize;
+    }
+
+    /**
+     * Get whether to use direct (off-heap) I/O buffers.
+     *
+     * <p>
+     * Default is false. If this instance is already started, changing this property will have no effect until it is
+     * {@linkplain #stop stopped} and restarted.
+     * </p>
+     *
+     * @return true to use direct buffers, false to use heap buffers
+     */
+    public boolean isDirectBuffers() {
+        return this.directBuffers;
+    }
+    public void setDirectBuffers(boolean directBuffers) {
+        this.directBuffers = directBuffers;
+    }
+
+    /**
+     * Get the maximum number of bytes to write to a connection each time it becomes writable.
+     * Default is {@value #DEFAULT_MAX_WRITE_BYTES_PER_EVENT} bytes.
+     *
+     * <p>
+     * Queued outgoing data is written using gathering writes until the socket stops accepting data,
+     * the queue is empty, or this limit or the {@linkplain #getWriteSpinCount write spin count} is reached.
+     * This keeps a single busy connection from starving the others.
+     * </p>
+     *
+     * @return maximum bytes written per connection per I/O event
+     */
+    public long getMaxWriteBytesPerEvent() {
+        return this.maxWriteBytesPerEvent;
+    }
+    public void setMaxWriteBytesPerEvent(long maxWriteBytesPerEvent) {
+        if (maxWriteBytesPerEvent <= 0)
+            throw new IllegalArgumentException("maxWriteBytesPerEvent <= 0");
+        this.maxWriteBytesPerEvent = maxWriteBytesPerEvent;
+    }
+
+    /**
+     * Get the maximum number of write attempts to make on a connection each time it becomes writable.
+     * Default is {@value #DEFAULT_WRITE_SPIN_COUNT}.
+     *
+     * @return maximum gathering writes per connection per I/O event
+     * @see #getMaxWriteBytesPerEvent
+     */
+    public int getWriteSpinCount() {
+        return this.writeSpinCount;
+    }
+    public void setWriteSpinCount(int writeSpinCount) {
+        if (writeSpinCount <= 0)
+            throw new IllegalArgumentException("writeSpinCount <= 0");
+        this.writeSpinCount = writeSpinCount;
+    }
+
+    /**
+     * Get the number of event loop threads. Default is {@link #DEFAULT_EVENT_LOOP_THREADS}.
+     *
+     * <p>
+     * Each event loop thread has its own {@link Selector}. Incoming and outgoing connections are spread
+     * across the event loops, and all I/O and housekeeping for a connection and its sessions happens in the connection's
+     * event loop thread. A value of one gives the traditional single service thread behavior.
+     * </p>
+     *
+     * <p>
+     * If this instance is already started, changing this property will have no effect until it is
+     * {@linkplain #stop stopped} and restarted.
+     * </p>
+     *
+     * @return number of event loop threads
+     */
+    public int getEventLoopThreads() {
+        return this.eventLoopThreads;
+    }
+    public void setEventLoopThreads(int eventLoopThreads) {
+        if (eventLoopThreads <= 0)
+            throw new IllegalArgumentException("eventLoopThreads <= 0");
+        this.eventLoopThreads = eventLoopThreads;
+    }
+
+    /**
+     * Get how long to cache successful DNS lookups of remote hosts for outgoing connections.
+     * Default is {@value #DEFAULT_DNS_CACHE_TTL}ms.
+     *
+     * <p>
+     * DNS lookups are performed in separate resolver threads so they never block the event loop threads.
+     * A value of zero disables caching. If this instance is already started, changing this property will have no effect
+     * until it is {@linkplain #stop stopped} and restarted.
+     * </p>
+     *
+     * @return DNS cache time in milliseconds
+     */
+    public long getDnsCacheTtl() {
+        return this.dnsCacheTtl;
+    }
+    public void setDnsCacheTtl(long dnsCacheTtl) {
+        if (dnsCacheTtl < 0)
+            throw new IllegalArgumentException("dnsCacheTtl < 0");
+        this.dnsCacheTtl = dnsCacheTtl;
+    }
+
+    /**
+     * Get how long to cache failed DNS lookups of remote hosts for outgoing connections.
+     * Default is {@value #DEFAULT_DNS_NEGATIVE_CACHE_TTL}ms.
+     *
+     * @return DNS negative cache time in milliseconds
+     * @see #getDnsCacheTtl
+     */
+    public long getDnsNegativeCacheTtl() {
+        return this.dnsNegativeCacheTtl;
+    }
+    public void setDnsNegativeCacheTtl(long dnsNegativeCacheTtl) {
+        if (dnsNegativeCacheTtl < 0)
+            throw new IllegalArgumentException("dnsNegativeCacheTtl < 0");
+        this.dnsNegativeCacheTtl = dnsNegativeCacheTtl;
+    }
+
+    /**
+     * Get the default maximum body size of outgoing {@code SEND} request chunks for new sessions.
+     * Default is {@value #DEFAULT_CHUNK_SIZE} bytes.
+     *
+     * <p>
+     * Each chunk is a separate transaction, so larger chunks mean less per-transaction overhead for large messages,
+     * while smaller chunks let messages on the same connection interleave more finely.
+     * Changing this property only affects sessions created afterward; see {@link Session#setChunkSize}.
+     * </p>
+     *
+     * @return chunk size in bytes
+     */
+    public int getChunkSize() {
+        return this.chunkSize;
+    }
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize <= 0)
+            throw new IllegalArgumentException("chunkSize <= 0");
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Get the default ceiling for adaptive chunk sizing for new sessions. Default is {@value #DEFAULT_MAX_CHUNK_SIZE} bytes.
+     *
+     * @return maximum adaptive chunk size in bytes
+     * @see #isAdaptiveChunkSize
+     */
+    public int getMaxChunkSize() {
+        return this.maxChunkSize;
+    }
+    public void setMaxChunkSize(int maxChunkSize) {
+        if (maxChunkSize <= 0)
+            throw new IllegalArgumentException("maxChunkSize <= 0");
+        this.maxChunkSize = maxChunkSize;
+    }
+
+    /**
+     * Get whether new sessions use adaptive chunk sizing by default. Default is false.
+     *
+     * <p>
+     * With adaptive chunk sizing, a session sending a single large message doubles its chunk size each time
+     * the connection drains, up to the {@linkplain #getMaxChunkSize maximum chunk size}. As soon as other messages
+     * need to be interleaved, or the connection has output from other sessions queued, the chunk size drops back
+     * to the {@linkplain #getChunkSize configured chunk size}.
+     * </p>
+     *
+     * @return true for adaptive chunk sizing
+     */
+    public boolean isAdaptiveChunkSize() {
+        return this.adaptiveChunkSize;
+    }
+    public void setAdaptiveChunkSize(boolean adaptiveChunkSize) {
+        this.adaptiveChunkSize = adaptiveChunkSize;
+    }
+
     /**
      * Start this instance. Does nothing if already started.
      *
      * @throws IOException if server socket cannot be created
      */
     public synchronized void start() throws IOException {
-        if (this.serviceThread != null)
+        if (this.eventLoops != null)
             return;
         if (this.listenAddress == null)
             this.listenAddress = new InetSocketAddress(MsrpConstants.DEFAULT_PORT);
@@ -199,12 +617,26 @@ public class Msrp {
             this.log.debug("starting " + this + " listening on " + this.listenAddress);
         boolean successful = false;
         try {
-            this.selector = Selector.open();
+            this.bufferPool = new BufferPool(this.directBuffers);
+            this.hostResolver = new HostResolver("MSRP DNS Resolver for " + this, this.dnsCacheTtl, this.dnsNegativeCacheTtl);
+            final AtomicInteger readerCount = new AtomicInteger();
+            final String readerName = "MSRP Content Reader for " + this;
+            this.contentReader = new ThreadPoolExecutor(MAX_CONTENT_READER_THREADS, MAX_CONTENT_READER_THREADS,
+              CONTENT_READER_KEEPALIVE_MILLIS, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), action -> {
+                final Thread thread = new Thread(action, readerName + " #" + readerCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.contentReader.allowCoreThreadTimeOut(true);
+            this.eventLoops = new EventLoop[this.eventLoopThreads];
+            for (int i = 0; i < this.eventLoops.length; i++)
+                this.eventLoops[i] = new EventLoop(this, i);
+            this.nextEventLoop = 0;
             this.serverSocketChannel = ServerSocketChannel.open();
             this.configureServerSocketChannel(this.serverSocketChannel);
             this.serverSocketChannel.configureBlocking(false);
             this.serverSocketChannel.bind(this.listenAddress);
-            this.selectionKey = this.createSelectionKey(this.serverSocketChannel, new SelectorService() {
+            this.selectionKey = this.eventLoops[0].register(this.serverSocketChannel, new SelectorService() {
                 @Override
                 public void serviceIO(SelectionKey key) throws IOException {
                     if (key.isAcceptable())
@@ -217,8 +649,8 @@ public class Msrp {
                 }
             });
             this.selectForAccept(true);
-            this.serviceThread = new ServiceThread();
-            this.serviceThread.start();
+            for (EventLoop eventLoop : this.eventLoops)
+                eventLoop.start();
             successful = true;
         } finally {
             if (!successful)
@@ -230,9 +662,10 @@ public class Msrp {
      * Stop this instance. Does nothing if already stopped.
      */
     public void stop() {
-        Thread waitForThread = null;
+        final ArrayList<Thread> waitForThreads = new ArrayList<>();
+        final ThreadPoolExecutor currentContentReader;
         synchronized (this) {
-            if (this.serviceThread != null && this.log.isDebugEnabled())
+            if (this.eventLoops != null && this.log.isDebugEnabled())
                 this.log.debug("stopping " + this);
             if (this.serverSocketChannel != null) {
                 try {
@@ -242,29 +675,38 @@ public class Msrp {
                 }
                 this.serverSocketChannel = null;
             }
-            if (this.selector != null) {
-                try {
-                    this.selector.close();
-                } catch (IOException e) {
-                    // ignore
-                }
-                this.selector = null;
+            if (this.hostResolver != null) {
+                this.hostResolver.shutdown();
+                this.hostResolver = null;
             }
-            if (this.serviceThread != null) {
-                this.serviceThread.interrupt();
-                if (!this.serviceThread.equals(Thread.currentThread()))
-                    waitForThread = this.serviceThread;
-                this.serviceThread = null;
+            if (this.eventLoops != null) {
+                for (EventLoop eventLoop : this.eventLoops) {
+                    final Thread thread = eventLoop.close();
+                    if (thread != null)
+                        waitForThreads.add(thread);
+                }
+                this.eventLoops = null;
             }
             this.selectionKey = null;
+            currentContentReader = this.contentReader;
+            this.contentReader = null;
         }
-        if (waitForThread != null) {
+        for (Thread thread : waitForThreads) {
             try {
-                waitForThread.join();
+                thread.join();
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
+                break;
             }
         }
+        if (currentContentReader != null)
+            currentContentReader.shutdown();                // after event loops exit, so readers can close streams
+
+        // Discard any orphans; their timer died with its event loop
+        synchronized (this.orphans) {
+            this.orphans.clear();
+            this.orphanTimeout = null;
+        }
     }
 
     /**
@@ -289,7 +731,7 @@ public class Msrp {
      * @throws IllegalArgumentException if any parameter other than {@code endpoint} is null
      * @throws IllegalArgumentException if a session corresponding to {@code localURI} already exists
      */
-    public synchronized Session createSession(MsrpUri localURI, MsrpUri remoteURI, Endpoint endpoint,
+    public Session createSession(MsrpUri localURI, MsrpUri remoteURI, Endpoint endpoint,
       SessionListener listener, Executor callbackExecutor, boolean active) {
 
         // Sanity check
@@ -301,55 +743,61 @@ public class Msrp {
             throw new IllegalArgumentException("null listener");
         if (callbackExecutor == null)
             throw new IllegalArgumentException("null callbackExecutor");
-        if (this.serviceThread == null)
-            throw new IllegalStateException("not started");
 
         // Infer endpoint if needed
         if (endpoint == null)
             endpoint = remoteURI.toEndpoint();
 
-        // Check for duplicate session
-        if (this.sessionMap.containsKey(localURI))
-            throw new IllegalArgumentException("duplicate session local URI `" + localURI + "'");
+        // Create and register new session; we hold our lock here only to serialize session creation
+        final Session session;
+        synchronized (this) {
+            if (this.eventLoops == null)
+                throw new IllegalStateException("not started");
+
+            // Check for duplicate session
+            if (this.sessionMap.containsKey(localURI.getKey()))
+                throw new IllegalArgumentException("duplicate session local URI `" + localURI + "'");
+
+            // Check session size limit
+            final int numSessions = this.sessionMap.size();
+            if (numSessions >= this.maxSessions) {
+                this.log.warn("too many MSRP connections (" + numSessions + " >= "
+                  + this.maxSessions + "), not creating any more");
+                return null;
+            }
 
-        // Check session size limit
-        if (this.sessionMap.size() >= this.maxSessions) {
-            this.log.warn("too many MSRP connections (" + this.sessionMap.size() + " >= "
-              + this.maxSessions + "), not creating any more");
-            return null;
-        }
+            // Create new session
+            session = new Session(this, this.nextEventLoop(), localURI, remoteURI,
+              active ? endpoint : null, listener, callbackExecutor);
+
+            // Re-use existing connection to this endpoint if one already exists (session is not yet visible to other threads)
+            if (active) {
+                final Connection connection = this.findConnection(endpoint);
+                if (connection != null) {
+                    if (this.log.isDebugEnabled())
+                        this.log.debug(this + " binding " + session + " to existing " + connection);
+                    session.setConnection(connection);
+                }
+            }
 
-        // Create new session
-        final Session session = new Session(this, localURI, remoteURI, active ? endpoint : null, listener, callbackExecutor);
-        this.sessionMap.put(localURI, session);
+            // Make session visible
+            this.addSession(session);
+        }
 
         // Logging
         if (this.log.isDebugEnabled())
             this.log.debug(this + " created new session " + session);
 
+        // Deliver any requests that arrived before this session existed
+        this.claimOrphans(session);
+
         // If session is passive, we wait for the remote side to connect to us before doing anything else
-        if (!active) {
-            if (!this.orphans.isEmpty())
-                this.wakeup();                              // an orphan might be waiting for this session
+        if (!active)
             return session;
-        }
-
-        // Re-use existing connection to this endpoint if one already exists
-        for (Connection connection : this.connections) {
-            if (connection.getEndpoint().equals(endpoint)) {
-                if (this.log.isDebugEnabled())
-                    this.log.debug(this + " binding " + session + " to existing " + connection);
-                session.setConnection(connection);
-                break;
-            }
-        }
 
-        // Send an empty message to bind peer's connection to this session
+        // Send an empty message to bind peer's connection to this session (this also wakes up the session's event loop)
         session.send(null, null);
 
-        // Wakeup service thread
-        this.wakeup();
-
         // Done
         return session;
     }
@@ -360,8 +808,11 @@ public class Msrp {
      *
      * @return mutable "snapshot" mapping from local URI to {@link Session}
      */
-    public synchronized SortedMap<MsrpUri, Session> getSessions() {
-        return new TreeMap<MsrpUri, Session>(this.sessionMap);
+    public SortedMap<MsrpUri, Session> getSessions() {
+        final TreeMap<MsrpUri, Session> map = new TreeMap<>(MsrpUriComparator.INSTANCE);
+        for (Session session : this.sessionMap.values())
+            map.put(session.getLocalUri(), session);
+        return map;
     }
 
     /**
@@ -396,23 +847,22 @@ public class Msrp {
 
 // Internal API
 
-    // Create connection. Note: this can block doing DNS lookups XXX
-    Connection createConnection(Endpoint endpoint) throws IOException {
+    // Resolve a remote host name without blocking; the returned future completes with null if the lookup fails
+    CompletableFuture<InetAddress> resolveHost(String host) {
+        final HostResolver resolver = this.hostResolver;
+        return resolver != null ? resolver.resolve(host) : CompletableFuture.<InetAddress>completedFuture(null);
+    }
+
+    // Create connection serviced by the given event loop to the given (resolved) address
+    Connection createConnection(EventLoop eventLoop, Endpoint endpoint, InetSocketAddress socketAddress) throws IOException {
         final SocketChannel socketChannel = SocketChannel.open();
         this.configureSocketChannel(socketChannel, endpoint);
         socketChannel.configureBlocking(false);
         if (this.log.isDebugEnabled())
-            this.log.debug(this + " looking up DNS name `" + endpoint.getHost() + "'");
-        final InetSocketAddress socketAddress = endpoint.toSocketAddress();
-        if (socketAddress.isUnresolved())
-            throw new IOException("DNS lookup failure for `" + socketAddress.getHostString() + "'");
-        if (this.log.isDebugEnabled()) {
-            this.log.debug(this + ": `" + endpoint.getHost() + "' resolves to "
-              + socketAddress.getAddress() + "; initiating connection");
-        }
+            this.log.debug(this + " initiating connection to " + endpoint + " at " + socketAddress.getAddress());
         socketChannel.connect(socketAddress);
-        final Connection connection = new Connection(this, endpoint, socketChannel);
-        this.connections.add(connection);
+        final Connection connection = new Connection(this, eventLoop, endpoint, socketChannel);
+        this.addConnection(connection);
         return connection;
     }
 
@@ -421,7 +871,8 @@ public class Msrp {
 
         // Find session
         final MsrpUri localURI = message.getHeaders().getToPath().get(0);
-        final Session session = this.findSession(localURI);
+        final boolean matchSessionId = this.isMatchSessionId();
+        Session session = this.findSession(localURI, matchSessionId);
         if (session == null) {
 
             // Ignore non-requests
@@ -429,52 +880,65 @@ public class Msrp {
                 return;
             final MsrpRequest request = (MsrpRequest)message;
 
-            // Too many orphans?
-            if (this.orphans.size() >= MAX_ORPHANS) {
-                connection.write(Session.createMsrpResponse(request,
-                  MsrpConstants.RESPONSE_CODE_SESSION_DOES_NOT_EXIST, "Session does not exist"));
+            // We have an orphan; let's hang on to it for a while before giving up, unless there are too many
+            final int maxOrphans = this.maxOrphans;
+            final long maxOrphanBytes = this.maxOrphanBytes;
+            final long orphanHoldTime = this.orphanHoldTime;
+            final boolean added;
+            synchronized (this.orphans) {
+
+                // Check again while holding the lock, in case the session was created just now (see claimOrphans())
+                if ((session = this.findSession(localURI, matchSessionId)) == null) {
+                    final OrphanQueue.Orphan orphan = new OrphanQueue.Orphan(connection, request,
+                      System.nanoTime() + orphanHoldTime * 1000000L);
+                    added = this.orphans.add(orphan, maxOrphans, maxOrphanBytes);
+                    if (added && this.orphanTimeout == null)
+                        this.scheduleOrphanTimeout(connection.getEventLoop());
+                } else
+                    added = false;
+            }
+            if (session == null) {
+                if (!added) {
+                    if (this.log.isDebugEnabled())
+                        this.log.debug(this + " too many orphans, rejecting request for " + localURI);
+                    connection.write(Session.createMsrpResponse(request,
+                      MsrpConstants.RESPONSE_CODE_SESSION_DOES_NOT_EXIST, "Session does not exist"));
+                }
                 return;
             }
-
-            // We have an orphan; let's hang on to it for a while before giving up
-            this.orphans.add(new Orphan(connection, request));
-            return;
         }
 
-        // Verify/bind connection
-        if (session.getConnection() == null) {
-            if (this.log.isDebugEnabled())
-                this.log.debug(this + " binding " + session + " to " + connection);
-            session.setConnection(connection);
-            this.wakeup();
-        } else if (!session.getConnection().equals(connection)) {
-            if (message instanceof MsrpRequest) {
-                connection.write(Session.createMsrpResponse((MsrpRequest)message,
-                  MsrpConstants.RESPONSE_CODE_SESSION_ALREADY_BOUND, "Session already bound to a different connection"));
+        // Verify/bind connection and handle message
+        synchronized (session) {
+            if (session.isClosed())
+                return;
+            if (session.getConnection() == null) {
+                if (this.log.isDebugEnabled())
+                    this.log.debug(this + " binding " + session + " to " + connection);
+                session.setConnection(connection);
+            } else if (!session.getConnection().equals(connection)) {
+                if (message instanceof MsrpRequest) {
+                    connection.write(Session.createMsrpResponse((MsrpRequest)message,
+                      MsrpConstants.RESPONSE_CODE_SESSION_ALREADY_BOUND, "Session already bound to a different connection"));
+                }
+                return;
             }
-            return;
+            session.handleMessage(message);
         }
-
-        // Handle message
-        session.handleMessage(message);
     }
 
     // Invoked when a connection closes
     void handleConnectionClosed(Connection connection, Exception cause) {
         if (this.log.isDebugEnabled())
             this.log.debug(this + " handling closed connection " + connection);
-        for (Iterator<Session> i = this.sessionMap.values().iterator(); i.hasNext(); ) {
-            final Session session = i.next();
-            if (connection.equals(session.getConnection())) {
-                i.remove();
-                session.close(cause);
-            }
+        this.removeConnection(connection);
+        for (Session session : connection.getSessions()) {
+            this.removeSession(session);
+            session.close(cause);
         }
-        for (Iterator<Orphan> i = this.orphans.iterator(); i.hasNext(); ) {
-            if (i.next().getConnection().equals(connection))
-                i.remove();
+        synchronized (this.orphans) {
+            this.orphans.removeIf(orphan -> orphan.getConnection().equals(connection));
         }
-        this.connections.remove(connection);
         this.wakeup();
     }
 
@@ -482,35 +946,139 @@ public class Msrp {
     void handleSessionClosed(Session session) {
         if (this.log.isDebugEnabled())
             this.log.debug(this + " handling closed session " + session);
-        this.sessionMap.remove(session.getLocalUri());
+        this.removeSession(session);
         this.wakeup();
     }
 
-    // Invoked when a connection needs to select for I/O
-    SelectionKey createSelectionKey(SelectableChannel channel, SelectorService service) throws ClosedChannelException {
-        if (channel == null)
-            throw new IllegalArgumentException("null channel");
-        if (service == null)
-            throw new IllegalArgumentException("null service");
-        if (this.selector == null)
+    // Add a newly created connection
+    private void addConnection(Connection connection) {
+        this.connections.add(connection);
+        this.endpointMap.compute(connection.getEndpoint(),
+          (endpoint, array) -> array != null ? Msrp.addElement(array, connection) : new Connection[] { connection });
+        if (connection.isClosed())                                  // in case it was closed before we added it
+            this.removeConnection(connection);
+    }
+
+    // Remove a closed connection
+    private void removeConnection(Connection connection) {
+        this.connections.remove(connection);
+        this.endpointMap.computeIfPresent(connection.getEndpoint(), (endpoint, array) -> Msrp.removeElement(array, connection));
+    }
+
+    // Find an open connection to the given endpoint, if any
+    private Connection findConnection(Endpoint endpoint) {
+        final Connection[] array = this.endpointMap.get(endpoint);
+        if (array == null)
             return null;
-        this.wakeup();                                          // avoids blocking in channel.register()
-        return channel.register(this.selector, 0, service);
+        for (Connection connection : array) {
+            if (!connection.isClosed())
+                return connection;
+        }
+        return null;
+    }
+
+    // Deliver any orphans waiting for a newly created session
+    private void claimOrphans(Session session) {
+        final MsrpUri localURI = session.getLocalUri();
+        final boolean matchSessionId = this.isMatchSessionId();
+        final List<OrphanQueue.Orphan> claimed;
+        synchronized (this.orphans) {
+            if (this.orphans.isEmpty())
+                return;
+            claimed = this.orphans.claim(localURI.getSessionId(),
+              orphan -> this.findSession(orphan.getLocalUri(), matchSessionId) == session);
+        }
+        for (OrphanQueue.Orphan orphan : claimed) {
+            final Connection connection = orphan.getConnection();
+            connection.getEventLoop().execute(() -> this.deliverOrphan(orphan));
+        }
+    }
+
+    // Deliver a claimed orphan to its session; invoked in the orphan's connection's event loop
+    private void deliverOrphan(OrphanQueue.Orphan orphan) {
+        final Connection connection = orphan.getConnection();
+        if (connection.isClosed())
+            return;
+        try {
+            this.handleMessage(connection, orphan.getRequest());
+        } catch (IOException e) {
+            if (this.log.isDebugEnabled())
+                this.log.debug("MSRP I/O error from " + connection, e);
+            connection.close(e);
+        } catch (Exception e) {
+            this.log.error("MSRP error from " + connection, e);
+            connection.close(e);
+        }
+    }
+
+    // Schedule a check for expired orphans at the next orphan deadline; caller must hold the orphans' lock
+    private void scheduleOrphanTimeout(EventLoop eventLoop) {
+        final long deadline = this.orphans.nextDeadline();
+        if (deadline == -1) {
+            this.orphanTimeout = null;
+            return;
+        }
+        final long delay = Math.max((deadline - System.nanoTime() + 999999L) / 1000000L, 0);
+        this.orphanTimeout = eventLoop.schedule(delay, () -> this.expireOrphans(eventLoop));
+    }
+
+    // Reject orphans that have been held for the orphan hold time without a matching session showing up
+    private void expireOrphans(EventLoop eventLoop) {
+        final ArrayList<OrphanQueue.Orphan> expired = new ArrayList<>();
+        synchronized (this.orphans) {
+            this.orphans.expire(System.nanoTime(), expired);
+            this.scheduleOrphanTimeout(eventLoop);
+        }
+        for (OrphanQueue.Orphan orphan : expired) {
+            final Connection connection = orphan.getConnection();
+            try {
+                connection.write(Session.createMsrpResponse(orphan.getRequest(),
+                  MsrpConstants.RESPONSE_CODE_SESSION_DOES_NOT_EXIST, "Session does not exist"));
+            } catch (IOException e) {
+                if (this.log.isDebugEnabled())
+                    this.log.debug("MSRP I/O error from " + connection, e);
+                connection.close(e);
+            }
+        }
+    }
+
+    // Get executor for reading outgoing message content, or null if not started
+    Executor getContentReader() {
+        return this.contentReader;
+    }
+
+    // Get I/O buffer pool
+    BufferPool getBufferPool() {
+        return this.bufferPool;
+    }
+
+    // Choose the event loop for a new connection or session (round robin)
+    synchronized EventLoop nextEventLoop() {
+        if (this.eventLoops == null)
+            throw new IllegalStateException("not started");
+        final EventLoop eventLoop = this.eventLoops[this.nextEventLoop];
+        this.nextEventLoop = (this.nextEventLoop + 1) % this.eventLoops.length;
+        return eventLoop;
     }
 
     // Invoked when we get an incoming connection
-    private synchronized void handleAccept() throws IOException {       // already synchronized when invoked (make spotbugs happy)
+    private void handleAccept() throws IOException {
 
         // Check connection size limit
-        if (this.connections.size() >= this.maxSessions) {
-            this.log.warn("too many MSRP connections (" + this.connections.size() + " >= "
-              + this.maxSessions + "), not accepting any more (for now)");
+        final int maxConnections = this.getMaxSessions();
+        final int numConnections = this.connections.size();
+        if (numConnections >= maxConnections) {
+            this.log.warn("too many MSRP connections (" + numConnections + " >= "
+              + maxConnections + "), not accepting any more (for now)");
             this.selectForAccept(false);
             return;
         }
 
         // Accept connection
-        final SocketChannel socketChannel = this.serverSocketChannel.accept();
+        final ServerSocketChannel currentServerSocketChannel = this.serverSocketChannel;
+        if (currentServerSocketChannel == null)
+            return;
+        final SocketChannel socketChannel = currentServerSocketChannel.accept();
         if (socketChannel == null)
             return;
         socketChannel.configureBlocking(false);
@@ -522,11 +1090,11 @@ public class Msrp {
             this.log.debug(this + " accepted incoming connection from " + endpoint);
 
         // Add new connection
-        this.connections.add(new Connection(this, endpoint, socketChannel));
+        this.addConnection(new Connection(this, this.nextEventLoop(), endpoint, socketChannel));
     }
 
     // Enable/disable incoming connections
-    private void selectForAccept(boolean enabled) throws IOException {
+    private synchronized void selectForAccept(boolean enabled) throws IOException {
         if (this.selectionKey == null)
             return;
         try {
@@ -544,157 +1112,136 @@ public class Msrp {
         }
     }
 
-    // Wakeup service thread
+    // Wakeup all event loop threads
     void wakeup() {
         if (this.log.isTraceEnabled())
-            this.log.trace("wakeup service thread");
-        if (this.selector != null)
-            this.selector.wakeup();
+            this.log.trace("wakeup service threads");
+        final EventLoop[] currentEventLoops = this.eventLoops;
+        if (currentEventLoops != null) {
+            for (EventLoop eventLoop : currentEventLoops)
+                eventLoop.wakeup();
+        }
     }
 
 // Main service method
 
-    private void service() throws IOException {
+    // Invoked by each event loop thread
+    void service(EventLoop eventLoop) throws IOException {
+        final Selector selector = eventLoop.getSelector();
+        final boolean primary = eventLoop.getIndex() == 0;
         while (true) {
 
             // Check if we're still open
-            final Selector currentSelector;
-            synchronized (this) {
-                currentSelector = this.selector;
-            }
-            if (currentSelector == null)
+            if (eventLoop.isClosed())
                 break;
 
             // Wait for I/O readiness, timeout, or shutdown
             try {
                 if (this.log.isTraceEnabled())
-                    this.log.trace("[SVC THREAD]: sleeping: keys=" + dbg(currentSelector.keys()));
-                currentSelector.select(1000L);
+                    this.log.trace("[SVC THREAD]: " + eventLoop + " sleeping: keys=" + dbg(selector.keys()));
+                eventLoop.select();
             } catch (ClosedSelectorException e) {               // close() was invoked
                 break;
             }
             if (Thread.interrupted())
                 break;
 
-            // Figure out what has happened
-            synchronized (this) {
-
-                // Are we shutting down?
-                if (this.selector == null) {
-                    for (Connection connection : new ArrayList<Connection>(this.connections))
+            // Are we shutting down?
+            if (eventLoop.isClosed()) {
+                for (Connection connection : this.connections) {
+                    if (connection.getEventLoop() == eventLoop)
                         connection.close(null);
-                    break;
                 }
+                break;
+            }
 
-                // Handle any ready I/O
+            // Handle any ready I/O
+            if (this.log.isTraceEnabled())
+                this.log.trace("[SVC THREAD]: " + eventLoop + " awake: selectedKeys=" + dbg(selector.selectedKeys()));
+            for (Iterator<SelectionKey> i = selector.selectedKeys().iterator(); i.hasNext(); ) {
+                final SelectionKey key = i.next();
+                i.remove();
+                final SelectorService service = (SelectorService)key.attachment();
                 if (this.log.isTraceEnabled())
-                    this.log.trace("[SVC THREAD]: awake: selectedKeys=" + dbg(currentSelector.selectedKeys()));
-                for (Iterator<SelectionKey> i = selector.selectedKeys().iterator(); i.hasNext(); ) {
-                    final SelectionKey key = i.next();
-                    i.remove();
-                    final SelectorService service = (SelectorService)key.attachment();
-                    if (this.log.isTraceEnabled())
-                        this.log.trace("[SVC THREAD]: I/O ready: key=" + dbg(key) + " service=" + service);
-                    try {
-                        service.serviceIO(key);
-                    } catch (IOException e) {
-                        if (this.log.isDebugEnabled())
-                            this.log.debug("MSRP I/O error from " + service, e);
-                        service.close(e);
-                    } catch (Exception e) {
-                        this.log.error("MSRP service error from " + service, e);
-                        service.close(e);
-                    }
-                }
-
-                // Perform session housekeeping
-                final HashSet<Connection> activeConnections = new HashSet<>();
-                for (Session session : new ArrayList<Session>(this.sessionMap.values())) {
-                    if (session.getConnection() != null)
-                        activeConnections.add(session.getConnection());
-                    try {
-                        session.performHousekeeping();
-                    } catch (IOException e) {
-                        if (this.log.isDebugEnabled())
-                            this.log.debug("MSRP I/O error from " + session, e);
-                        session.close(e);
-                    } catch (Exception e) {
-                        this.log.error("error performing housekeeping for " + session, e);
-                        session.close(e);
-                    }
+                    this.log.trace("[SVC THREAD]: I/O ready: key=" + dbg(key) + " service=" + service);
+                try {
+                    service.serviceIO(key);
+                } catch (IOException e) {
+                    if (this.log.isDebugEnabled())
+                        this.log.debug("MSRP I/O error from " + service, e);
+                    service.close(e);
+                } catch (Exception e) {
+                    this.log.error("MSRP service error from " + service, e);
+                    service.close(e);
                 }
+            }
 
-                // Perform connection housekeeping
-                for (Connection connection : new ArrayList<Connection>(this.connections)) {
-                    try {
-                        connection.performHousekeeping(activeConnections.contains(connection));
-                    } catch (IOException e) {
-                        if (this.log.isDebugEnabled())
-                            this.log.debug("MSRP I/O error from " + connection, e);
-                        connection.close(e);
-                    } catch (Exception e) {
-                        this.log.error("error performing housekeeping for " + connection, e);
-                        connection.close(e);
-                    }
-                }
+            // Run submitted tasks and expired timers
+            eventLoop.runTasks();
 
-                // Perform my own housekeeping
-                this.selectForAccept(this.connections.size() < this.maxSessions);
-                for (Orphan orphan : new ArrayList<Orphan>(this.orphans)) {
-                    final MsrpRequest request = orphan.getRequest();
-                    final Connection connection = orphan.getConnection();
-
-                    // Check orphan timeout
-                    if (orphan.getAge() >= MAX_ORPHAN_HOLD_TIME) {
-                        this.orphans.remove(orphan);
-                        try {
-                            connection.write(Session.createMsrpResponse(request,
-                              MsrpConstants.RESPONSE_CODE_SESSION_DOES_NOT_EXIST, "Session does not exist"));
-                        } catch (IOException e) {
-                            if (this.log.isDebugEnabled())
-                                this.log.debug("MSRP I/O error from " + connection, e);
-                            connection.close(e);
-                        } catch (Exception e) {
-                            this.log.error("MSRP error from " + connection, e);
-                            connection.close(e);
-                        }
-                        continue;
-                    }
-
-                    // Check if any outstanding orphans match a newly created session
-                    final MsrpUri localURI = request.getHeaders().getToPath().get(0);
-                    final Session session = this.findSession(localURI);
-                    if (session != null) {
-                        this.orphans.remove(orphan);
-                        if (!this.connections.contains(connection))         // should never happen but just to be safe
-                            continue;
-                        try {
-                            this.handleMessage(connection, request);
-                        } catch (IOException e) {
-                            if (this.log.isDebugEnabled())
-                                this.log.debug("MSRP I/O error from " + connection, e);
-                            connection.close(e);
-                        } catch (Exception e) {
-                            this.log.error("MSRP error from " + connection, e);
-                            connection.close(e);
-                        }
-                    }
+            // Perform housekeeping for sessions that have pending work
+            for (Session session : eventLoop.takeReadySessions()) {
+                try {
+                    session.performHousekeeping();
+                } catch (IOException e) {
+                    if (this.log.isDebugEnabled())
+                        this.log.debug("MSRP I/O error from " + session, e);
+                    session.close(e);
+                } catch (Exception e) {
+                    this.log.error("error performing housekeeping for " + session, e);
+                    session.close(e);
                 }
             }
+
+            // Perform my own housekeeping in the primary event loop
+            if (!primary)
+                continue;
+            this.selectForAccept(this.connections.size() < this.getMaxSessions());
         }
     }
 
-    private Session findSession(MsrpUri localURI) {
+    private Session findSession(MsrpUri localURI, boolean matchSessionId) {
         assert localURI != null;
-        Session session = this.sessionMap.get(localURI);
-        if (session != null || !this.matchSessionId)
+        final Session session = this.sessionMap.get(localURI.getKey());
+        if (session != null || !matchSessionId)
             return session;
-        final String sessionId = localURI.getSessionId();
-        for (Session session2 : this.sessionMap.values()) {
-            if (session2.getLocalUri().getSessionId().equals(sessionId))
-                return session2;
+        final Session[] sessions = this.sessionIdMap.get(localURI.getSessionId());
+        return sessions != null ? sessions[0] : null;
+    }
+
+    // Register a new session; invoked while holding our lock, which serializes session creation
+    private void addSession(Session session) {
+        this.sessionMap.put(session.getLocalUri().getKey(), session);
+        this.sessionIdMap.compute(session.getLocalUri().getSessionId(),
+          (sessionId, array) -> array != null ? Msrp.addElement(array, session) : new Session[] { session });
+    }
+
+    // Unregister a session, if not already done
+    private void removeSession(Session session) {
+        final MsrpUri localURI = session.getLocalUri();
+        this.sessionMap.remove(localURI.getKey(), session);
+        this.sessionIdMap.computeIfPresent(localURI.getSessionId(), (sessionId, array) -> Msrp.removeElement(array, session));
+    }
+
+    // Copy-on-write array append; used for index entries that rarely have more than one element
+    private static <T> T[] addElement(T[] array, T element) {
+        final T[] newArray = Arrays.copyOf(array, array.length + 1);
+        newArray[array.length] = element;
+        return newArray;
+    }
+
+    // Copy-on-write array removal; returns null if the array becomes empty
+    private static <T> T[] removeElement(T[] array, T element) {
+        for (int i = 0; i < array.length; i++) {
+            if (array[i] == element) {
+                if (array.length == 1)
+                    return null;
+                final T[] newArray = Arrays.copyOf(array, array.length - 1);
+                System.arraycopy(array, i + 1, newArray, i, newArray.length - i);
+                return newArray;
+            }
         }
-        return null;
+        return array;
     }
 
     private static String dbg(Iterable<? extends SelectionKey> keys) {
@@ -725,56 +1272,4 @@ public class Msrp {
             buf.append("W");
         return buf.toString();
     }
-
-// ServiceThread
-
-    private class ServiceThread extends Thread {
-
-        ServiceThread() {
-            super("MSRP Service Thread for " + Msrp.this);
-        }
-
-        @Override
-        public void run() {
-            try {
-                Msrp.this.service();
-            } catch (ThreadDeath t) {
-                throw t;
-            } catch (Throwable t) {
-                Msrp.this.log.error("unexpected error in service thread", t);
-            }
-            if (Msrp.this.log.isDebugEnabled())
-                Msrp.this.log.debug(this + " exiting");
-        }
-    }
-
-// Orphan
-
-    private static class Orphan {
-
-        private final Connection connection;
-        private final MsrpRequest request;
-        private final long timestamp = System.nanoTime();
-
-        Orphan(Connection connection, MsrpRequest request) {
-            assert connection != null;
-            assert request != null;
-            this.connection = connection;
-            this.request = request;
-        }
-
-        public Connection getConnection() {
-            return this.connection;
-        }
-
-        public MsrpRequest getRequest() {
-            return this.request;
-        }
-
-        // Get age in milliseconds
-        public long getAge() {
-            return (System.nanoTime() - this.timestamp) / 1000000L;
-        }
-    }
 }
-
@@ -11,6 +11,8 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
 import java.util.Set;
 
 /**
@@ -22,6 +24,7 @@ public class MsrpUri {
     private final String sessionId;
     private final String transport;
     private final Set<String> parameters;
+    private final Key key;
 
     /**
      * Constrcuctor.
@@ -74,6 +77,11 @@ public class MsrpUri {
         // Verify transport is "tcp"
         if (!this.transport.equals(MsrpConstants.TRANSPORT_TCP))
             throw new URISyntaxException(string, "invalid MSRP URI: unknown transport `" + this.transport + "'");
+
+        // Normalize for comparison
+        final String host = this.uri.getHost();
+        this.key = new Key(scheme.toLowerCase(Locale.ROOT), host != null ? host.toLowerCase(Locale.ROOT) : null,
+          this.uri.getPort(), this.sessionId, this.transport);
     }
 
     /**
@@ -133,6 +141,15 @@ public class MsrpUri {
         return new Endpoint(this.uri.getHost(), port);
     }
 
+    /**
+     * Get the normalized form of this URI used to compare it with other URI's according to RFC 4579, Section 6.1.
+     *
+     * @return comparison key
+     */
+    Key getKey() {
+        return this.key;
+    }
+
 // Object
 
     @Override
@@ -154,5 +171,66 @@ public class MsrpUri {
     public int hashCode() {
         return this.uri.hashCode();
     }
-}
 
+// Key
+
+    /**
+     * The parts of an {@link MsrpUri} that are significant when comparing URI's according to RFC 4579, Section 6.1,
+     * normalized once at construction time and with a precomputed hash code.
+     */
+    static final class Key implements Comparable<Key> {
+
+        private final String scheme;
+        private final String host;
+        private final int port;
+        private final String sessionId;
+        private final String transport;
+        private final int hash;
+
+        Key(String scheme, String host, int port, String sessionId, String transport) {
+            this.scheme = scheme;
+            this.host = host;
+            this.port = port;
+            this.sessionId = sessionId;
+            this.transport = transport;
+            this.hash = Objects.hash(scheme, host, port, sessionId, transport);
+        }
+
+        @Override
+        public int compareTo(Key that) {
+            int diff = this.scheme.compareTo(that.scheme);
+            if (diff != 0)
+                return diff;
+            diff = this.host == null ? (that.host == null ? 0 : -1) : that.host == null ? 1 : this.host.compareTo(that.host);
+            if (diff != 0)
+                return diff;
+            diff = Integer.compare(this.port, that.port);
+            if (diff != 0)
+                return diff;
+            diff = this.sessionId.compareTo(that.sessionId);
+            if (diff != 0)
+                return diff;
+            return this.transport.compareTo(that.transport);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this)
+                return true;
+            if (obj == null || obj.getClass() != this.getClass())
+                return false;
+            final Key that = (Key)obj;
+            return this.hash == that.hash
+              && this.port == that.port
+              && this.sessionId.equals(that.sessionId)
+              && Objects.equals(this.host, that.host)
+              && this.scheme.equals(that.scheme)
+              && this.transport.equals(that.transport);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+    }
+}
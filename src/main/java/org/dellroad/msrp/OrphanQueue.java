@@ -0,0 +1,212 @@
+
+/*
+ * Copyright (C) 2014 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.msrp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.function.Predicate;
+
+import org.dellroad.msrp.msg.MsrpRequest;
+
+/**
+ * Holds "orphans", i.e., incoming requests for which no matching {@link Session} exists (yet).
+ *
+ * <p>
+ * Orphans are kept in arrival order, which is also deadline order because every orphan is held for the same length
+ * of time, so expiring them only looks at the head of the queue. They are also indexed by the session ID of their
+ * target URI, so a newly created session can claim the orphans waiting for it without examining any others.
+ * The total number of orphans, and the total size of their content, are limited.
+ * </p>
+ *
+ * <p>
+ * Instances are not thread safe.
+ * </p>
+ */
+class OrphanQueue {
+
+    private final LinkedHashSet<Orphan> queue = new LinkedHashSet<>();                 // in deadline order
+    private final HashMap<String, ArrayList<Orphan>> sessionIdMap = new HashMap<>();    // key is target session ID
+    private long totalBytes;
+
+    /**
+     * Get the number of orphans.
+     *
+     * @return number of orphans
+     */
+    public int size() {
+        return this.queue.size();
+    }
+
+    /**
+     * Determine whether there are no orphans.
+     *
+     * @return true if empty
+     */
+    public boolean isEmpty() {
+        return this.queue.isEmpty();
+    }
+
+    /**
+     * Get the total content size of all orphans.
+     *
+     * @return total content length in bytes
+     */
+    public long getTotalBytes() {
+        return this.totalBytes;
+    }
+
+    /**
+     * Add an orphan, unless doing so would exceed the given limits.
+     *
+     * @param orphan new orphan
+     * @param maxOrphans maximum number of orphans
+     * @param maxBytes maximum total content size
+     * @return true if added, false if there is no room
+     */
+    public boolean add(Orphan orphan, int maxOrphans, long maxBytes) {
+        if (this.queue.size() >= maxOrphans || this.totalBytes + orphan.getBytes() > maxBytes)
+            return false;
+        this.queue.add(orphan);
+        this.sessionIdMap.computeIfAbsent(orphan.getSessionId(), sessionId -> new ArrayList<>(2)).add(orphan);
+        this.totalBytes += orphan.getBytes();
+        return true;
+    }
+
+    /**
+     * Remove and return the orphans having the given target session ID that also satisfy the given predicate.
+     *
+     * @param sessionId target session ID
+     * @param filter further restricts which orphans to claim
+     * @return claimed orphans in arrival order, possibly empty
+     */
+    public List<Orphan> claim(String sessionId, Predicate<? super Orphan> filter) {
+        final ArrayList<Orphan> list = this.sessionIdMap.get(sessionId);
+        if (list == null)
+            return new ArrayList<>(0);
+        final ArrayList<Orphan> claimed = new ArrayList<>(list.size());
+        for (Iterator<Orphan> i = list.iterator(); i.hasNext(); ) {
+            final Orphan orphan = i.next();
+            if (filter.test(orphan)) {
+                i.remove();
+                this.queue.remove(orphan);
+                this.totalBytes -= orphan.getBytes();
+                claimed.add(orphan);
+            }
+        }
+        if (list.isEmpty())
+            this.sessionIdMap.remove(sessionId);
+        return claimed;
+    }
+
+    /**
+     * Remove all orphans that satisfy the given predicate.
+     *
+     * @param filter selects orphans to remove
+     */
+    public void removeIf(Predicate<? super Orphan> filter) {
+        for (Iterator<Orphan> i = this.queue.iterator(); i.hasNext(); ) {
+            final Orphan orphan = i.next();
+            if (filter.test(orphan)) {
+                i.remove();
+                this.unindex(orphan);
+            }
+        }
+    }
+
+    /**
+     * Remove all orphans.
+     */
+    public void clear() {
+        this.queue.clear();
+        this.sessionIdMap.clear();
+        this.totalBytes = 0;
+    }
+
+    /**
+     * Get the deadline of the orphan that will expire next.
+     *
+     * @return {@link System#nanoTime} deadline, or -1 if there are no orphans
+     */
+    public long nextDeadline() {
+        return !this.queue.isEmpty() ? this.queue.iterator().next().getDeadline() : -1;
+    }
+
+    /**
+     * Remove all orphans whose deadlines have passed and add them to the given list.
+     *
+     * @param now current {@link System#nanoTime} time
+     * @param expired list to which expired orphans are added
+     */
+    public void expire(long now, List<Orphan> expired) {
+        for (Iterator<Orphan> i = this.queue.iterator(); i.hasNext(); ) {
+            final Orphan orphan = i.next();
+            if (orphan.getDeadline() - now > 0)
+                break;
+            i.remove();
+            this.unindex(orphan);
+            expired.add(orphan);
+        }
+    }
+
+    private void unindex(Orphan orphan) {
+        final ArrayList<Orphan> list = this.sessionIdMap.get(orphan.getSessionId());
+        list.remove(orphan);
+        if (list.isEmpty())
+            this.sessionIdMap.remove(orphan.getSessionId());
+        this.totalBytes -= orphan.getBytes();
+    }
+
+// Orphan
+
+    /**
+     * An incoming request for which no matching session was found.
+     */
+    static final class Orphan {
+
+        private final Connection connection;
+        private final MsrpRequest request;
+        private final MsrpUri localURI;
+        private final long deadline;
+        private final int bytes;
+
+        Orphan(Connection connection, MsrpRequest request, long deadline) {
+            assert connection != null;
+            assert request != null;
+            this.connection = connection;
+            this.request = request;
+            this.localURI = request.getHeaders().getToPath().get(0);
+            this.deadline = deadline;
+            this.bytes = request.getBody() != null ? request.getBody().length : 0;
+        }
+
+        public Connection getConnection() {
+            return this.connection;
+        }
+
+        public MsrpRequest getRequest() {
+            return this.request;
+        }
+
+        public MsrpUri getLocalUri() {
+            return this.localURI;
+        }
+
+        public String getSessionId() {
+            return this.localURI.getSessionId();
+        }
+
+        public long getDeadline() {
+            return this.deadline;
+        }
+
+        public int getBytes() {
+            return this.bytes;
+        }
+    }
+}
@@ -5,13 +5,16 @@
 
 package org.dellroad.msrp;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayDeque;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.dellroad.msrp.msg.ByteRange;
 import org.dellroad.msrp.msg.FailureReport;
@@ -25,10 +28,17 @@ import org.slf4j.LoggerFactory;
 
 /**
  * Represents one outgoing MSRP message broken into multiple {@code SEND} {@link MsrpRequest} chunks.
+ *
+ * <p>
+ * By default, message content is read from the {@link InputStream} by {@link #next}. If {@link #startPrefetch startPrefetch()}
+ * is invoked, content is instead read ahead by a separate reader thread into a small queue of ready chunks, so that
+ * {@link #next} never blocks on the {@link InputStream}; in that case, {@link #isReady} must be checked before
+ * invoking {@link #next}.
+ * </p>
  */
 public class OutputChunks implements Closeable, Iterator<MsrpRequest> {
 
-    private static final int MAX_REQUEST_BODY_SIZE = 2048;
+    private static final int MAX_PREFETCH_CHUNKS = 4;
 
     private final Logger log = LoggerFactory.getLogger(this.getClass());
     private final MsrpUri localURI;
@@ -36,15 +46,28 @@ public class OutputChunks implements Closeable, Iterator<MsrpRequest> {
     private final String messageId = MsrpMessage.randomId();
     private final Iterable<? extends Header> headers;
     private final InputStream input;
+    private final FileContent fileContent;
     private final String contentType;
     private final long size;
 
     private ReportListener reportListener;
+    private int chunkSize = Msrp.DEFAULT_CHUNK_SIZE;
     private long offset;
     private boolean complete;
     private boolean aborted;
     private boolean closed;
     private long timestamp;
+    private TimerWheel.Timeout idleTimeout;                 // managed by the owning Session
+
+    // Prefetch state
+    private Executor readerExecutor;                        // non-null if prefetching
+    private Runnable readyCallback;
+    private final ArrayDeque<byte[]> prefetched = new ArrayDeque<>();
+    private long readOffset;                                // number of bytes read from input so far
+    private boolean reading;                                // a reader task is scheduled or running
+    private boolean endOfInput;
+    private boolean inputClosed;
+    private IOException readError;
 
     /**
      * Constructor for a message with no body.
@@ -56,7 +79,7 @@ public class OutputChunks implements Closeable, Iterator<MsrpRequest> {
      * @throws IllegalArgumentException if {@code localURI} or {@code remoteURI} is null
      */
     public OutputChunks(MsrpUri localURI, MsrpUri remoteURI, Iterable<? extends Header> headers, ReportListener reportListener) {
-        this(localURI, remoteURI, null, -1, null, headers, reportListener);
+        this(localURI, remoteURI, (InputStream)null, -1, null, headers, reportListener);
     }
 
     /**
@@ -74,12 +97,40 @@ public class OutputChunks implements Closeable, Iterator<MsrpRequest> {
      * @throws IllegalArgumentException if {@code input} is not null and {@code contentType} is null
      */
     public OutputChunks(MsrpUri localURI, MsrpUri remoteURI, InputStream input, long size,
+      String contentType, Iterable<? extends Header> headers, ReportListener reportListener) {
+        this(localURI, remoteURI, input, null, size, contentType, headers, reportListener);
+    }
+
+    /**
+     * Constructor for a message whose body is the content of a file. Chunks of the file are sent as
+     * {@link FileChunkRequest}s, so the content can be transferred directly from the file to the connection.
+     *
+     * @param localURI local MSRP URI
+     * @param remoteURI remote MSRP URI
+     * @param fileContent message content; this instance takes over the caller's reference
+     * @param size number of bytes to send from the start of the file
+     * @param contentType content type
+     * @param headers other headers (MIME and/or extension), or null for none
+     * @param reportListener success and/or failure listener, or null for none
+     * @throws IllegalArgumentException if {@code localURI}, {@code remoteURI}, {@code fileContent} or {@code contentType} is null
+     * @throws IllegalArgumentException if {@code size} is negative
+     */
+    OutputChunks(MsrpUri localURI, MsrpUri remoteURI, FileContent fileContent, long size,
+      String contentType, Iterable<? extends Header> headers, ReportListener reportListener) {
+        this(localURI, remoteURI, null, fileContent, size, contentType, headers, reportListener);
+        if (fileContent == null)
+            throw new IllegalArgumentException("null fileContent");
+        if (size < 0)
+            throw new IllegalArgumentException("invalid size " + size);
+    }
+
+    private OutputChunks(MsrpUri localURI, MsrpUri remoteURI, InputStream input, FileContent fileContent, long size,
       String contentType, Iterable<? extends Header> headers, ReportListener reportListener) {
         if (localURI == null)
             throw new IllegalArgumentException("null localURI");
         if (remoteURI == null)
             throw new IllegalArgumentException("null remoteURI");
-        if (input == null) {
+        if (input == null && fileContent == null) {
             if (size != -1)
                 throw new IllegalArgumentException("null input requires size = -1");
             if (contentType != null)
@@ -93,6 +144,7 @@ public class OutputChunks implements Closeable, Iterator<MsrpRequest> {
         this.localURI = localURI;
         this.remoteURI = remoteURI;
         this.input = input;
+        this.fileContent = fileContent;
         this.size = size;
         this.contentType = contentType;
         this.reportListener = reportListener;
@@ -145,6 +197,41 @@ public class OutputChunks implements Closeable, Iterator<MsrpRequest> {
         return (System.nanoTime() - this.timestamp) / 1000000L;
     }
 
+    // Get idle timer, if any
+    synchronized TimerWheel.Timeout getIdleTimeout() {
+        return this.idleTimeout;
+    }
+
+    // Set idle timer
+    synchronized void setIdleTimeout(TimerWheel.Timeout idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Get the maximum body size for subsequent chunks.
+     *
+     * @return chunk size in bytes
+     */
+    public synchronized int getChunkSize() {
+        return this.chunkSize;
+    }
+
+    /**
+     * Set the maximum body size for subsequent chunks. Default is {@link Msrp#DEFAULT_CHUNK_SIZE}.
+     *
+     * <p>
+     * When content is being {@linkplain #startPrefetch read ahead}, chunks that have already been read keep their size.
+     * </p>
+     *
+     * @param chunkSize chunk size in bytes
+     * @throws IllegalArgumentException if {@code chunkSize} is not positive
+     */
+    public synchronized void setChunkSize(int chunkSize) {
+        if (chunkSize <= 0)
+            throw new IllegalArgumentException("chunkSize <= 0");
+        this.chunkSize = chunkSize;
+    }
+
     /**
      * Notify about success, if appropriate.
      *
@@ -218,6 +305,140 @@ public class OutputChunks implements Closeable, Iterator<MsrpRequest> {
         });
     }
 
+// Prefetch
+
+    /**
+     * Start reading message content ahead of time using the given executor.
+     *
+     * <p>
+     * After this method is invoked, {@link #next} never reads from the {@link InputStream}; instead, it takes
+     * chunks that have already been read. Each time a new chunk becomes available, {@code readyCallback} is invoked.
+     * Content supplied as a {@link ByteArrayInputStream} is already in memory, so it is always read directly.
+     * </p>
+     *
+     * @param executor executor for reading content
+     * @param readyCallback callback invoked (with no locks held) whenever {@link #isReady} may have become true
+     * @throws IllegalArgumentException if either parameter is null
+     */
+    synchronized void startPrefetch(Executor executor, Runnable readyCallback) {
+        if (executor == null)
+            throw new IllegalArgumentException("null executor");
+        if (readyCallback == null)
+            throw new IllegalArgumentException("null readyCallback");
+        if (this.input == null || this.input instanceof ByteArrayInputStream || this.readerExecutor != null || this.closed)
+            return;
+        this.readerExecutor = executor;
+        this.readyCallback = readyCallback;
+        this.startReader();
+    }
+
+    /**
+     * Determine whether {@link #next} can be invoked without blocking.
+     *
+     * @return true if the next chunk is ready (or this instance is complete)
+     */
+    public synchronized boolean isReady() {
+        return this.readerExecutor == null || this.complete || this.aborted
+          || !this.prefetched.isEmpty() || this.endOfInput || this.readError != null;
+    }
+
+    // Schedule a reader task if more content should be read ahead
+    private void startReader() {
+        if (this.reading || this.closed || this.endOfInput || this.readError != null
+          || this.prefetched.size() >= MAX_PREFETCH_CHUNKS)
+            return;
+        this.submitReader();
+    }
+
+    private void submitReader() {
+        this.reading = true;
+        try {
+            this.readerExecutor.execute(this::readAhead);
+        } catch (RejectedExecutionException e) {                    // executor has been shut down
+            this.reading = false;
+            if (!this.closed)
+                this.readError = new IOException("content reader has been shut down", e);
+            else if (!this.inputClosed) {
+                this.inputClosed = true;
+                this.closeInput();
+            }
+        }
+    }
+
+    // Reader task; reads chunks until the prefetch queue is full, without holding our lock while reading
+    private void readAhead() {
+        while (true) {
+
+            // Decide what to do next
+            final long maxLength;
+            final int readSize;
+            synchronized (this) {
+                final boolean finished = this.closed || this.endOfInput || this.readError != null;
+                if (finished || this.prefetched.size() >= MAX_PREFETCH_CHUNKS) {
+                    this.reading = false;
+                    if (!finished || this.inputClosed)
+                        return;
+                    this.inputClosed = true;
+                    maxLength = -1;
+                } else
+                    maxLength = this.size != -1 ? this.size - this.readOffset : Long.MAX_VALUE;
+                readSize = this.chunkSize;
+            }
+
+            // Close input when finished
+            if (maxLength == -1) {
+                this.closeInput();
+                return;
+            }
+
+            // Read the next chunk
+            final ByteArrayOutputStream body = new ByteArrayOutputStream((int)Math.min(readSize, maxLength));
+            IOException error = null;
+            boolean eof;
+            try {
+                eof = this.readChunk(body, readSize, maxLength);
+            } catch (IOException e) {
+                error = e;
+                eof = false;
+            }
+            synchronized (this) {
+                if (body.size() > 0 && !this.closed)
+                    this.prefetched.add(body.toByteArray());
+                this.readOffset += body.size();
+                this.endOfInput = eof;
+                if (error != null && !this.closed)
+                    this.readError = error;
+            }
+            this.readyCallback.run();
+        }
+    }
+
+    // Read up to one chunk (but no more than maxLength bytes) from the input; returns true if end of input was reached
+    private boolean readChunk(ByteArrayOutputStream body, int readSize, long maxLength) throws IOException {
+        while (body.size() < readSize) {
+
+            // Have we read the full amount?
+            if (body.size() >= maxLength)
+                return true;
+
+            // Read more data
+            final byte[] buf = new byte[(int)Math.min(readSize - body.size(), maxLength - body.size())];
+            final int r = this.input.read(buf);
+
+            // No more data?
+            if (r < 0) {
+                if (maxLength != Long.MAX_VALUE)
+                    throw new IOException("expected to read " + this.size + " bytes but only read "
+                      + (this.size - maxLength + body.size()));
+                return true;
+            }
+
+            // Update with new data
+            body.write(buf, 0, r);
+        }
+        return this.size != -1 && body.size() >= maxLength;
+    }
+
 // Iterator
 
     @Override
@@ -258,11 +479,26 @@ public class OutputChunks implements Closeable, Iterator<MsrpRequest> {
                     msrpHeaders.getExtensionHeaders().add(header);
             }
         }
+
+        // Sending a file? Then the body is just a reference to the next region of the file
+        if (this.fileContent != null && !this.aborted) {
+            final long startingOffset = this.offset;
+            final long length = Math.min(this.chunkSize, this.size - this.offset);
+            final FileChunkRequest request = new FileChunkRequest(transactionId,
+              msrpHeaders, this.fileContent, startingOffset, length);
+            this.offset += length;
+            this.complete = this.offset >= this.size;
+            msrpHeaders.setByteRange(new ByteRange(startingOffset + 1, this.offset, this.size));
+            request.setComplete(this.complete);
+            if (this.complete)
+                this.close();
+            return request;
+        }
         final MsrpRequest request = new MsrpRequest(transactionId, MsrpConstants.METHOD_SEND, msrpHeaders);
 
         // Aborted?
         if (this.aborted) {
-            if (this.input != null)
+            if (this.input != null || this.fileContent != null)
                 msrpHeaders.setByteRange(new ByteRange(this.offset + 1, this.offset, this.size));
             request.setAborted(true);
             this.complete = true;
@@ -277,41 +513,33 @@ public class OutputChunks implements Closeable, Iterator<MsrpRequest> {
             return request;
         }
 
-        // Read next chunk of message content and append as body
-        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        // Get next chunk of message content, either already read ahead or read from the input now
         final long startingOffset = this.offset;
-        try {
-
-            // Read until buffer is full, we've read full amount, or there's no more data to read
-            while (body.size() < MAX_REQUEST_BODY_SIZE) {
-
-                // Have we read the full amount?
-                if (this.size != -1 && this.offset >= this.size) {
-                    this.complete = true;
-                    break;
-                }
-
-                // Read more data
-                final byte[] buf = new byte[MAX_REQUEST_BODY_SIZE - body.size()];
-                final int r = this.input.read(buf);
-
-                // No more data?
-                if (r < 0) {
-                    if (this.size != -1)
-                        throw new IOException("expected to read " + this.size + " bytes but only read " + this.offset);
-                    this.complete = true;
-                    break;
-                }
-
-                // Update with new data
-                body.write(buf, 0, r);
-                this.offset += r;
+        final byte[] body;
+        if (this.readerExecutor != null) {
+            final byte[] chunk = this.prefetched.pollFirst();
+            if (chunk == null && this.readError == null && !this.endOfInput)
+                throw new IllegalStateException("next chunk is not ready");
+            body = chunk != null ? chunk : new byte[0];
+            this.complete = this.endOfInput && this.prefetched.isEmpty();
+            if (chunk == null && this.readError != null) {
+                this.log.error("I/O error reading MRSP message input, aborting message " + this.messageId, this.readError);
+                this.aborted = true;
             }
-        } catch (IOException e) {
-            this.log.error("I/O error reading MRSP message input, aborting message " + this.messageId, e);
-            this.aborted = true;
+            this.startReader();
+        } else {
+            final ByteArrayOutputStream buf = new ByteArrayOutputStream(
+              (int)Math.min(this.chunkSize, this.size != -1 ? this.size - this.offset : this.chunkSize));
+            try {
+                this.complete = this.readChunk(buf, this.chunkSize, this.size != -1 ? this.size - this.offset : Long.MAX_VALUE);
+            } catch (IOException e) {
+                this.log.error("I/O error reading MRSP message input, aborting message " + this.messageId, e);
+                this.aborted = true;
+            }
+            body = buf.toByteArray();
         }
-        request.setBody(body.toByteArray());
+        this.offset += body.length;
+        request.setBody(body);
 
         // Set byte range and request flags
         msrpHeaders.setByteRange(new ByteRange(startingOffset + 1, this.offset, this.size));
@@ -334,7 +562,7 @@ public class OutputChunks implements Closeable, Iterator<MsrpRequest> {
 // Closeable
 
     /**
-     * Close the {@link InputStream} associated with this instance.
+     * Close the {@link InputStream} or file associated with this instance.
      * This method is idempotent.
      *
      * <p>
@@ -357,8 +585,20 @@ public class OutputChunks implements Closeable, Iterator<MsrpRequest> {
         // If not completed, abort
         if (!this.complete)
             this.aborted = true;
+        this.prefetched.clear();
+
+        // Release file, if any; queued chunks hold their own references
+        if (this.fileContent != null)
+            this.fileContent.release();
+
+        // Close input; if prefetching, leave that to the reader so we never block or race with an in-progress read
+        if (this.readerExecutor == null)
+            this.closeInput();
+        else if (!this.reading && !this.inputClosed)
+            this.submitReader();
+    }
 
-        // Close input
+    private void closeInput() {
         try {
             if (this.input != null)
                 this.input.close();
@@ -0,0 +1,162 @@
+
+/*
+ * Copyright (C) 2014 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.msrp;
+
+import java.util.Arrays;
+
+/**
+ * A set of non-negative {@code long} values represented as sorted, disjoint, non-adjacent half-open ranges.
+ *
+ * <p>
+ * Ranges are stored in a pair of primitive arrays, so adding a range costs one binary search plus
+ * (at most) one array copy, and no per-range objects are allocated.
+ * </p>
+ *
+ * <p>
+ * Instances are not thread safe.
+ * </p>
+ */
+class RangeSet {
+
+    private static final int INITIAL_CAPACITY = 4;
+
+    private long[] starts = new long[INITIAL_CAPACITY];         // inclusive
+    private long[] ends = new long[INITIAL_CAPACITY];           // exclusive
+    private int size;
+
+    /**
+     * Get the number of disjoint ranges in this set.
+     *
+     * @return number of ranges
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Get the start of the range at the given index.
+     *
+     * @param index range index, where ranges are sorted in increasing order
+     * @return range start (inclusive)
+     * @throws IndexOutOfBoundsException if {@code index} is out of range
+     */
+    public long getStart(int index) {
+        this.checkIndex(index);
+        return this.starts[index];
+    }
+
+    /**
+     * Get the end of the range at the given index.
+     *
+     * @param index range index, where ranges are sorted in increasing order
+     * @return range end (exclusive)
+     * @throws IndexOutOfBoundsException if {@code index} is out of range
+     */
+    public long getEnd(int index) {
+        this.checkIndex(index);
+        return this.ends[index];
+    }
+
+    /**
+     * Add the given range to this set, merging it with any overlapping or adjacent ranges.
+     *
+     * @param start start of range (inclusive)
+     * @param end end of range (exclusive)
+     * @throws IllegalArgumentException if {@code start} is negative or greater than {@code end}
+     */
+    public void add(long start, long end) {
+        if (start < 0 || start > end)
+            throw new IllegalArgumentException("invalid range [" + start + ", " + end + ")");
+        if (start == end)
+            return;
+
+        // Find the ranges that overlap or abut [start, end): those with index in [first, last)
+        final int first = this.firstEndingAtOrAfter(start);
+        final int last = this.firstStartingAfter(end);
+
+        // No overlap: insert a new range
+        if (first == last) {
+            if (this.size == this.starts.length) {
+                this.starts = Arrays.copyOf(this.starts, this.size * 2);
+                this.ends = Arrays.copyOf(this.ends, this.size * 2);
+            }
+            System.arraycopy(this.starts, first, this.starts, first + 1, this.size - first);
+            System.arraycopy(this.ends, first, this.ends, first + 1, this.size - first);
+            this.starts[first] = start;
+            this.ends[first] = end;
+            this.size++;
+            return;
+        }
+
+        // Merge ranges first..last-1 and the new range into a single range at index first
+        this.starts[first] = Math.min(this.starts[first], start);
+        this.ends[first] = Math.max(this.ends[last - 1], end);
+        final int removed = last - first - 1;
+        if (removed > 0) {
+            System.arraycopy(this.starts, last, this.starts, first + 1, this.size - last);
+            System.arraycopy(this.ends, last, this.ends, first + 1, this.size - last);
+            this.size -= removed;
+        }
+    }
+
+    /**
+     * Determine whether this set contains the entire given range.
+     *
+     * @param start start of range (inclusive)
+     * @param end end of range (exclusive)
+     * @return true if every value in {@code [start, end)} is in this set
+     */
+    public boolean contains(long start, long end) {
+        if (start >= end)
+            return true;
+        final int index = this.firstStartingAfter(start) - 1;
+        return index >= 0 && this.ends[index] >= end;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder buf = new StringBuilder("[");
+        for (int i = 0; i < this.size; i++) {
+            if (i > 0)
+                buf.append(", ");
+            buf.append('[').append(this.starts[i]).append(", ").append(this.ends[i]).append(')');
+        }
+        return buf.append(']').toString();
+    }
+
+    // Find the index of the first range whose end is >= value, or size if none
+    private int firstEndingAtOrAfter(long value) {
+        int lo = 0;
+        int hi = this.size;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (this.ends[mid] < value)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    // Find the index of the first range whose start is > value, or size if none
+    private int firstStartingAfter(long value) {
+        int lo = 0;
+        int hi = this.size;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (this.starts[mid] <= value)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= this.size)
+            throw new IndexOutOfBoundsException("index " + index + " out of range [0, " + this.size + ")");
+    }
+}
@@ -0,0 +1,73 @@
+
+/*
+ * Copyright (C) 2014 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.msrp;
+
+/**
+ * Predicts the receive buffer size to use for the next read on a connection based on the sizes of previous reads.
+ *
+ * <p>
+ * Sizes are always powers of two within the configured bounds. The size doubles immediately whenever a read fills
+ * the buffer, and halves only after two consecutive reads would have fit in a buffer of half the size. This quickly
+ * adapts to bulk transfers while avoiding oscillation when traffic is bursty.
+ * </p>
+ *
+ * <p>
+ * Instances are not thread safe.
+ * </p>
+ */
+class ReceiveBufferSizer {
+
+    private final int minSize;
+    private final int maxSize;
+
+    private int size;
+    private boolean decreaseNow;
+
+    /**
+     * Constructor.
+     *
+     * @param minSize minimum buffer size
+     * @param maxSize maximum buffer size
+     * @throws IllegalArgumentException if {@code minSize} is not positive or greater than {@code maxSize}
+     */
+    ReceiveBufferSizer(int minSize, int maxSize) {
+        if (minSize <= 0)
+            throw new IllegalArgumentException("minSize <= 0");
+        if (minSize > maxSize)
+            throw new IllegalArgumentException("minSize > maxSize");
+        this.minSize = BufferPool.capacityFor(minSize);
+        this.maxSize = Math.max(this.minSize, Integer.highestOneBit(maxSize));
+        this.size = this.minSize;
+    }
+
+    /**
+     * Get the size to use for the next read.
+     *
+     * @return predicted buffer size
+     */
+    public int getSize() {
+        return this.size;
+    }
+
+    /**
+     * Record the number of bytes actually read into a buffer of size {@link #getSize}.
+     *
+     * @param bytesRead number of bytes read
+     */
+    public void record(int bytesRead) {
+        if (bytesRead >= this.size) {
+            this.size = Math.min(this.size << 1, this.maxSize);
+            this.decreaseNow = false;
+        } else if (this.size > this.minSize && bytesRead <= this.size >> 1) {
+            if (this.decreaseNow) {
+                this.size = Math.max(this.size >> 1, this.minSize);
+                this.decreaseNow = false;
+            } else
+                this.decreaseNow = true;
+        } else
+            this.decreaseNow = false;
+    }
+}
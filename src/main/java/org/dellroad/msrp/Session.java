@@ -8,12 +8,16 @@ package org.dellroad.msrp;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayDeque;
-import java.util.Iterator;
 import java.util.List;
-import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.dellroad.msrp.msg.ByteRange;
 import org.dellroad.msrp.msg.FailureReport;
@@ -30,6 +34,11 @@ import org.slf4j.LoggerFactory;
 
 /**
  * Represents one MSRP session.
+ *
+ * <p>
+ * Instances are thread safe. Each session has its own lock, so sending on one session never waits for
+ * I/O or housekeeping on unrelated sessions.
+ * </p>
  */
 public class Session {
 
@@ -44,24 +53,37 @@ public class Session {
     private final Endpoint activeEndpoint;
     private final SessionListener listener;
     private final Executor callbackExecutor;
-    private final long startTime = System.nanoTime();
 
-    private final TreeMap<String, InputChunks> inputChunks = new TreeMap<>();                   // key is message ID
-    private final TreeMap<String, OutputChunks> outputChunks = new TreeMap<>();                 // key is message ID
-    private final TreeMap<String, OutputTransaction> outputTransactions = new TreeMap<>();      // key is transaction ID
+    private final IdMap<InputChunks> inputChunks = new IdMap<>();                               // key is message ID
+    private final IdMap<OutputChunks> outputChunks = new IdMap<>();                             // key is message ID
+    private final IdMap<OutputTransaction> outputTransactions = new IdMap<>();                  // key is transaction ID
     private final ArrayDeque<MsrpMessage> outputQueue = new ArrayDeque<>();
+    private final AtomicBoolean ready = new AtomicBoolean();                                    // on event loop ready list
 
-    private Connection connection;
+    private volatile EventLoop eventLoop;
+    private volatile Connection connection;
+    private TimerWheel.Timeout bindTimeout;
+    private boolean resolving;
     private boolean closed;
+    private int chunkSize;
+    private int maxChunkSize;
+    private boolean adaptiveChunkSize;
+    private int currentChunkSize;
 
-    Session(Msrp msrp, MsrpUri localURI, MsrpUri remoteURI, Endpoint activeEndpoint,
+    Session(Msrp msrp, EventLoop eventLoop, MsrpUri localURI, MsrpUri remoteURI, Endpoint activeEndpoint,
       SessionListener listener, Executor callbackExecutor) {
         this.msrp = msrp;
+        this.eventLoop = eventLoop;
         this.localURI = localURI;
         this.remoteURI = remoteURI;
         this.activeEndpoint = activeEndpoint;
         this.listener = listener;
         this.callbackExecutor = callbackExecutor;
+        this.chunkSize = msrp.getChunkSize();
+        this.maxChunkSize = msrp.getMaxChunkSize();
+        this.adaptiveChunkSize = msrp.isAdaptiveChunkSize();
+        this.currentChunkSize = this.chunkSize;
+        this.bindTimeout = eventLoop.schedule(msrp.getConnectTimeout(), this::handleBindTimeout);
     }
 
     /**
@@ -82,6 +104,57 @@ public class Session {
         return this.remoteURI;
     }
 
+    /**
+     * Get the maximum body size of outgoing {@code SEND} request chunks.
+     * Defaults to the {@linkplain Msrp#getChunkSize value configured} on the associated {@link Msrp} instance.
+     *
+     * <p>
+     * A new value takes effect with the next chunk sent.
+     * </p>
+     *
+     * @return chunk size in bytes
+     */
+    public synchronized int getChunkSize() {
+        return this.chunkSize;
+    }
+    public synchronized void setChunkSize(int chunkSize) {
+        if (chunkSize <= 0)
+            throw new IllegalArgumentException("chunkSize <= 0");
+        this.chunkSize = chunkSize;
+        this.currentChunkSize = chunkSize;
+    }
+
+    /**
+     * Get the ceiling for adaptive chunk sizing.
+     * Defaults to the {@linkplain Msrp#getMaxChunkSize value configured} on the associated {@link Msrp} instance.
+     *
+     * @return maximum adaptive chunk size in bytes
+     * @see #isAdaptiveChunkSize
+     */
+    public synchronized int getMaxChunkSize() {
+        return this.maxChunkSize;
+    }
+    public synchronized void setMaxChunkSize(int maxChunkSize) {
+        if (maxChunkSize <= 0)
+            throw new IllegalArgumentException("maxChunkSize <= 0");
+        this.maxChunkSize = maxChunkSize;
+    }
+
+    /**
+     * Get whether this session uses adaptive chunk sizing.
+     * Defaults to the {@linkplain Msrp#isAdaptiveChunkSize value configured} on the associated {@link Msrp} instance.
+     *
+     * @return true for adaptive chunk sizing
+     * @see Msrp#isAdaptiveChunkSize
+     */
+    public synchronized boolean isAdaptiveChunkSize() {
+        return this.adaptiveChunkSize;
+    }
+    public synchronized void setAdaptiveChunkSize(boolean adaptiveChunkSize) {
+        this.adaptiveChunkSize = adaptiveChunkSize;
+        this.currentChunkSize = this.chunkSize;
+    }
+
     @Override
     public String toString() {
         return "Session[localURI=" + this.localURI + ",remoteURI=" + this.remoteURI + "]";
@@ -101,7 +174,7 @@ public class Session {
      * @return true if this instance was closed, false if this instance was already closed
      */
     public boolean close(final Exception cause) {
-        synchronized (this.msrp) {
+        synchronized (this) {
             if (this.closed)
                 return false;
             if (this.log.isDebugEnabled())
@@ -111,18 +184,38 @@ public class Session {
             } catch (IOException e) {
                 // ignore
             }
-            for (OutputChunks chunks : this.outputChunks.values()) {
+            for (OutputChunks chunks : this.outputChunks) {
                 chunks.close();
                 if (chunks.hasNext()) {
                     chunks.notifyFailure(this, this.callbackExecutor,
                       new Status(MsrpConstants.RESPONSE_CODE_SESSION_DOES_NOT_EXIST, "Session closed"));
                 }
             }
+            if (this.bindTimeout != null) {
+                this.bindTimeout.cancel();
+                this.bindTimeout = null;
+            }
+            for (InputChunks chunks : this.inputChunks) {
+                Session.cancelIdleTimeout(chunks.getIdleTimeout());
+                if (chunks.getContentStream() != null)
+                    chunks.getContentStream().finish(cause != null ? cause : new IOException("session closed"));
+                chunks.discard();
+            }
+            for (OutputChunks chunks : this.outputChunks)
+                Session.cancelIdleTimeout(chunks.getIdleTimeout());
+            for (OutputTransaction transaction : this.outputTransactions)
+                transaction.getTimeout().cancel();
+            for (MsrpMessage message : this.outputQueue) {
+                if (message instanceof FileChunkRequest)
+                    ((FileChunkRequest)message).release();
+            }
             this.inputChunks.clear();
             this.outputChunks.clear();
             this.outputTransactions.clear();
             this.outputQueue.clear();
             this.closed = true;
+            if (this.connection != null)
+                this.connection.removeSession(this);
             this.msrp.handleSessionClosed(this);
 
             // Notify listener
@@ -180,6 +273,42 @@ public class Session {
         return this.doSend(input, size, contentType, headers, reportListener);
     }
 
+    /**
+     * Enqueue an outgoing message whose content is the given file.
+     *
+     * <p>
+     * The file content is transferred directly from the file to the network connection without being copied
+     * through the Java heap, where supported by the operating system. The file is read as each chunk is sent,
+     * so it should not be modified until the message has been sent.
+     * </p>
+     *
+     * @param file message content file
+     * @param contentType content type
+     * @param headers other headers (MIME and/or extension), or null for none
+     * @param reportListener success and/or failure listener, or null for none
+     * @return unique message ID, or null if this instance is closed
+     * @throws IOException if {@code file} cannot be opened
+     * @throws IllegalArgumentException if {@code file} or {@code contentType} is null
+     * @throws IllegalArgumentException if {@code headers} contains an invalid header name or value
+     */
+    public String send(Path file, String contentType, Iterable<? extends Header> headers,
+      ReportListener reportListener) throws IOException {
+        if (file == null)
+            throw new IllegalArgumentException("null file");
+        if (contentType == null)
+            throw new IllegalArgumentException("null contentType");
+        final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        final FileContent content = new FileContent(channel);
+        final OutputChunks chunks;
+        try {
+            chunks = new OutputChunks(this.localURI, this.remoteURI, content, channel.size(), contentType, headers, reportListener);
+        } catch (IOException | RuntimeException e) {
+            content.release();
+            throw e;
+        }
+        return this.enqueue(chunks);
+    }
+
     /**
      * Enqueue an outgoing message with no content.
      *
@@ -204,11 +333,12 @@ public class Session {
     public boolean cancel(String messageId) {
         if (messageId == null)
             throw new IllegalArgumentException("null messageId");
-        synchronized (this.msrp) {
+        synchronized (this) {
             final OutputChunks chunks = this.outputChunks.get(messageId);
             if (chunks == null)
                 return false;
             chunks.close();
+            this.markReady();                       // so the abort chunk gets sent
             return chunks.isAborted();
         }
     }
@@ -234,11 +364,12 @@ public class Session {
             throw new IllegalArgumentException("null byteRange");
         if (status == null)
             status = new Status(MsrpConstants.RESPONSE_CODE_OK, "Message delivered");
-        synchronized (this.msrp) {
+        synchronized (this) {
             if (this.closed)
                 return false;
             this.enqueueReport(toPath, messageId, status, byteRange);
         }
+        this.markReady();
         return true;
     }
 
@@ -260,11 +391,12 @@ public class Session {
             throw new IllegalArgumentException("null messageId");
         if (status == null)
             throw new IllegalArgumentException("null status");
-        synchronized (this.msrp) {
+        synchronized (this) {
             if (this.closed)
                 return false;
             this.enqueueReport(toPath, messageId, status, null);
         }
+        this.markReady();
         return true;
     }
 
@@ -272,20 +404,29 @@ public class Session {
 
     String doSend(InputStream input, int size, String contentType,
       Iterable<? extends Header> headers, ReportListener reportListener) {
-        synchronized (this.msrp) {
+        return this.enqueue(new OutputChunks(this.localURI, this.remoteURI, input, size, contentType, headers, reportListener));
+    }
+
+    private String enqueue(OutputChunks chunks) {
+        synchronized (this) {
 
             // Sanity check
-            if (this.closed)
+            if (this.closed) {
+                chunks.close();
                 return null;
+            }
 
             // Enqueue output message
-            final OutputChunks chunks = new OutputChunks(this.localURI,
-              this.remoteURI, input, size, contentType, headers, reportListener);
             final String messageId = chunks.getMessageId();
             this.outputChunks.put(messageId, chunks);
 
-            // Wakeup MSRP thread so it will invoke performHousekeeping()
-            this.msrp.wakeup();
+            // Read content ahead in a separate thread so our event loop never blocks on the input stream
+            final Executor contentReader = this.msrp.getContentReader();
+            if (contentReader != null)
+                chunks.startPrefetch(contentReader, this::markReady);
+
+            // Get our event loop to invoke performHousekeeping()
+            this.markReady();
 
             // Done
             return messageId;
@@ -295,13 +436,41 @@ public class Session {
     Connection getConnection() {
         return this.connection;
     }
+
+    // Caller must hold the lock on this instance, or this instance must not yet be visible to other threads
     void setConnection(Connection connection) {
+        if (this.connection != null)
+            this.connection.removeSession(this);
         this.connection = connection;
+        if (connection != null) {
+            connection.addSession(this);
+            this.eventLoop = connection.getEventLoop();             // keep all session work on the connection's event loop
+            if (this.bindTimeout != null) {
+                this.bindTimeout.cancel();
+                this.bindTimeout = null;
+            }
+        }
+    }
+
+    // Request that our event loop invoke performHousekeeping() soon; does nothing if already requested
+    void markReady() {
+        if (this.ready.compareAndSet(false, true))
+            this.eventLoop.addReadySession(this);
+    }
+
+    // Get the event loop that services this session
+    EventLoop getEventLoop() {
+        return this.eventLoop;
     }
 
 // Incoming Message Handling
 
-    // Handle an incoming {@link MsrpMessage} received on this session.
+    // Determine whether this session is closed. Caller must hold the lock on this instance.
+    boolean isClosed() {
+        return this.closed;
+    }
+
+    // Handle an incoming {@link MsrpMessage} received on this session. Caller must hold the lock on this instance.
     void handleMessage(MsrpMessage msg) {
 
         // Sanity check
@@ -317,6 +486,9 @@ public class Session {
             this.handleResponse((MsrpResponse)msg);
         else
             this.log.error("Session.handleInput(): ignoring unknown message of type " + msg.getClass().getName());
+
+        // Get any responses sent and aborted messages cleaned up
+        this.markReady();
     }
 
     // Handle request
@@ -345,8 +517,10 @@ public class Session {
         final String messageId = headers.getMessageId();
         InputChunks chunks0 = this.inputChunks.get(messageId);
         if (chunks0 == null) {
-            chunks0 = new InputChunks(messageId, this.msrp.getMaxContentLength());
+            chunks0 = new InputChunks(messageId, this.msrp.getMaxContentLength(),
+              !(this.listener instanceof StreamingSessionListener), this.msrp.getSpillThreshold(), this.msrp.getSpillDirectory());
             this.inputChunks.put(messageId, chunks0);
+            this.scheduleInputIdleCheck(chunks0, MAX_MESSAGE_IDLE_TIME_MILLIS);
         }
         final InputChunks chunks = chunks0;
 
@@ -361,15 +535,37 @@ public class Session {
                   MsrpConstants.RESPONSE_CODE_BAD_REQUEST, "Protocol error: " + e.getMessage()));
             }
             return;
+        } catch (IOException e) {
+            this.log.warn("error storing content of incoming message " + messageId + ", discarding message", e);
+            if (!FailureReport.NO.equals(headers.getFailureReport())) {
+                this.outputQueue.add(Session.createMsrpResponse(request,
+                  MsrpConstants.RESPONSE_CODE_STOP_MESSAGE, "Error storing message content"));
+            }
+            this.removeInputChunks(chunks, e);
+            chunks.discard();
+            return;
         }
 
         // Reply to transaction
         if (!FailureReport.NO.equals(headers.getFailureReport()) && !FailureReport.PARTIAL.equals(headers.getFailureReport()))
             this.outputQueue.add(Session.createMsrpResponse(request, MsrpConstants.RESPONSE_CODE_OK, "OK"));
 
+        // Deliver content to streaming listener
+        if (this.listener instanceof StreamingSessionListener) {
+            this.streamContent(chunks, request);
+            if (chunks.isAborted()) {
+                this.removeInputChunks(chunks, new IOException("message aborted by sender"));
+                return;
+            }
+            if (complete)
+                this.removeInputChunks(chunks, null);
+            return;
+        }
+
         // Is message aborted?
         if (chunks.isAborted()) {
-            this.inputChunks.remove(messageId);
+            this.removeInputChunks(chunks, null);
+            chunks.discard();
             return;
         }
 
@@ -378,10 +574,11 @@ public class Session {
             return;
 
         // Remove from incoming messages
-        this.inputChunks.remove(messageId);
+        this.removeInputChunks(chunks, null);
 
         // Notify listener of reception of complete message
         final byte[] content = chunks.getContent();
+        final Path contentFile = chunks.getContentFile();
         final TreeSet<Header> combinedHeaders = new TreeSet<Header>(Header.SORT_BY_NAME);
         combinedHeaders.addAll(headers.getMimeHeaders());
         combinedHeaders.addAll(headers.getExtensionHeaders());
@@ -389,6 +586,12 @@ public class Session {
             @Override
             public void run() {
                 try {
+                    if (contentFile != null) {
+                        Session.this.listener.sessionReceivedMessageFile(Session.this, chunks.getFromPath(), messageId,
+                          contentFile, headers.getContentType(), combinedHeaders, chunks.isSuccessReport(),
+                          FailureReport.YES.equals(chunks.getFailureReport()));
+                        return;
+                    }
                     Session.this.listener.sessionReceivedMessage(Session.this, chunks.getFromPath(), messageId,
                       content, headers.getContentType(), combinedHeaders, chunks.isSuccessReport(),
                       FailureReport.YES.equals(chunks.getFailureReport()));
@@ -401,6 +604,26 @@ public class Session {
         });
     }
 
+    // Start streaming a message to our listener if not already started, and deliver the request's content
+    private void streamContent(InputChunks chunks, MsrpRequest request) {
+        ContentStream stream = chunks.getContentStream();
+        if (stream == null) {
+            final TreeSet<Header> combinedHeaders = new TreeSet<Header>(Header.SORT_BY_NAME);
+            combinedHeaders.addAll(request.getHeaders().getMimeHeaders());
+            combinedHeaders.addAll(request.getHeaders().getExtensionHeaders());
+            stream = new ContentStream(this, (StreamingSessionListener)this.listener, this.callbackExecutor,
+              chunks.getFromPath(), chunks.getMessageId(), request.getHeaders().getContentType(), combinedHeaders,
+              chunks.isSuccessReport(), FailureReport.YES.equals(chunks.getFailureReport()));
+            chunks.setContentStream(stream);
+            stream.start();
+        }
+        final byte[] body = request.getBody();
+        if (body != null && !request.isAborted()) {
+            final ByteRange byteRange = request.getHeaders().getByteRange();
+            stream.offer(this.connection, byteRange != null ? byteRange.getStart() - 1 : 0, body);
+        }
+    }
+
     // Handle REPORT request
     private void handleReport(MsrpRequest request) {
 
@@ -442,6 +665,7 @@ public class Session {
         final OutputTransaction transaction = this.outputTransactions.remove(response.getTransactionId());
         if (transaction == null)
             return;
+        transaction.getTimeout().cancel();
         final OutputChunks chunks = transaction.getOutputChunks();
 
         // Success is easy :-)
@@ -499,66 +723,168 @@ public class Session {
 
 // Housekeeping
 
-    void performHousekeeping() throws IOException {
+    synchronized void performHousekeeping() throws IOException {
 
-        // Create connection if we are active and none exists yet. Note: this can block doing DNS lookups XXX
-        if (this.connection == null && this.activeEndpoint != null)
-            this.connection = this.msrp.createConnection(this.activeEndpoint);
+        // Allow new work to put us back on the ready list
+        this.ready.set(false);
 
-        // If we don't have a connection for longer than the connect timeout, fail
-        if (this.connection == null) {
-            final long age = (System.nanoTime() - this.startTime) / 1000000L;
-            if (age >= this.msrp.getConnectTimeout())
-                throw new IOException("session not bound after " + this.msrp.getConnectTimeout() + "ms");
+        // Already closed?
+        if (this.closed)
+            return;
+
+        // Create connection if we are active and none exists yet, once the remote host has been resolved
+        if (this.connection == null && this.activeEndpoint != null && !this.resolving) {
+            this.resolving = true;
+            final EventLoop resolveEventLoop = this.eventLoop;
+            this.msrp.resolveHost(this.activeEndpoint.getHost())
+              .thenAccept(address -> resolveEventLoop.execute(() -> this.handleHostResolved(address)));
         }
 
         // Add the next chunk of each outstanding message to the output queue in round-robin fashion
         if (this.outputQueue.isEmpty()) {
-            for (OutputChunks chunks : this.outputChunks.values()) {
-                if (chunks.hasNext()) {
-                    final MsrpMessage request = chunks.next();
-                    this.outputQueue.add(request);
-                    this.outputTransactions.put(request.getTransactionId(),
-                      new OutputTransaction(chunks, request.getTransactionId()));
-                }
+            final int nextChunkSize = this.nextChunkSize();
+            for (OutputChunks chunks : this.outputChunks) {
+                if (!chunks.hasNext() || !chunks.isReady())
+                    continue;
+                chunks.setChunkSize(nextChunkSize);
+                final MsrpMessage request = chunks.next();
+                final OutputTransaction transaction = new OutputTransaction(chunks, request.getTransactionId());
+                transaction.setTimeout(this.eventLoop.schedule(MAX_TRANSACTION_AGE_MILLIS,
+                  () -> this.handleTransactionTimeout(transaction)));
+                this.outputQueue.add(request);
+                this.outputTransactions.put(transaction.getTransactionId(), transaction);
+
+                // Once complete, keep the message around only long enough to be reported on
+                if (!chunks.hasNext() && chunks.getReportListener() != null)
+                    this.scheduleOutputIdleCheck(chunks, MAX_MESSAGE_IDLE_TIME_MILLIS);
             }
+            this.outputChunks.removeIf(chunks -> !chunks.hasNext() && chunks.getReportListener() == null);
         }
 
         // If we have a connection, move enqueued chunks from my output queue to connection's output queue
         this.flushOutputQueue();
 
-        // Scrub output messages that are complete and either have already been reported on or have timed out waiting
-        for (Iterator<OutputChunks> i = this.outputChunks.values().iterator(); i.hasNext(); ) {
-            final OutputChunks chunks = i.next();
-            if (chunks.hasNext())
-                continue;
-            if (chunks.getReportListener() == null || chunks.getIdleTime() > MAX_MESSAGE_IDLE_TIME_MILLIS)
-                i.remove();
-        }
-
-        // Scrub orphaned input messages
-        for (Iterator<InputChunks> i = this.inputChunks.values().iterator(); i.hasNext(); ) {
-            final InputChunks chunks = i.next();
-            assert !chunks.isComplete() && !chunks.isAborted();
-            if (chunks.getIdleTime() > MAX_MESSAGE_IDLE_TIME_MILLIS) {
-                if (!FailureReport.NO.equals(chunks.getFailureReport())) {
-                    this.enqueueReport(chunks.getFromPath(), chunks.getMessageId(),
-                      new Status(MsrpConstants.RESPONSE_CODE_TIMEOUT, "Missing message chunks never arrived"), null);
+        // If there are more chunks ready to send, continue once the connection has drained what we've given it so far
+        if (this.connection != null) {
+            for (OutputChunks chunks : this.outputChunks) {
+                if (chunks.hasNext() && chunks.isReady()) {
+                    if (!this.connection.addWriteWaiter(this))
+                        this.markReady();
+                    break;
                 }
-                i.remove();
-                continue;
             }
         }
+    }
 
-        // Scrub transactions that have timed out waiting for transaction responses
-        for (Iterator<OutputTransaction> i = this.outputTransactions.values().iterator(); i.hasNext(); ) {
-            final OutputTransaction outputTransaction = i.next();
-            if (outputTransaction.getAge() >= MAX_TRANSACTION_AGE_MILLIS) {
-                outputTransaction.getOutputChunks().notifyFailure(this, this.callbackExecutor,
-                  new Status(MsrpConstants.RESPONSE_CODE_TIMEOUT, "No response rec'd for transaction"));
-                i.remove();
-            }
+    // Grow the chunk size while a lone message has the connection to itself, otherwise fall back to the configured size
+    private int nextChunkSize() {
+        if (!this.adaptiveChunkSize)
+            return this.chunkSize;
+        int numSending = 0;
+        for (OutputChunks chunks : this.outputChunks) {
+            if (chunks.hasNext() && chunks.isReady())
+                numSending++;
+        }
+        if (numSending != 1 || this.connection == null || !this.connection.isOutputQueueEmpty()) {
+            this.currentChunkSize = this.chunkSize;
+            return this.currentChunkSize;
+        }
+        final int chunkSize = this.currentChunkSize;
+        this.currentChunkSize = Math.max((int)Math.min((long)chunkSize * 2, this.maxChunkSize), this.chunkSize);
+        return chunkSize;
+    }
+
+    // Invoked in our event loop when the remote host of our active endpoint has been resolved (or not)
+    private synchronized void handleHostResolved(InetAddress address) {
+        this.resolving = false;
+        if (this.closed || this.connection != null)
+            return;
+        if (address == null) {
+            this.close(new IOException("DNS lookup failure for `" + this.activeEndpoint.getHost() + "'"));
+            return;
         }
+        try {
+            this.setConnection(this.msrp.createConnection(this.eventLoop, this.activeEndpoint,
+              new InetSocketAddress(address, this.activeEndpoint.getPort())));
+        } catch (IOException e) {
+            if (this.log.isDebugEnabled())
+                this.log.debug("MSRP I/O error from " + this, e);
+            this.close(e);
+            return;
+        }
+        this.markReady();
+    }
+
+// Timeouts
+
+    private static void cancelIdleTimeout(TimerWheel.Timeout timeout) {
+        if (timeout != null)
+            timeout.cancel();
+    }
+
+    // Invoked when we have not been bound to a connection within the connect timeout
+    private synchronized void handleBindTimeout() {
+        if (this.closed || this.connection != null)
+            return;
+        this.close(new IOException("session not bound after " + this.msrp.getConnectTimeout() + "ms"));
+    }
+
+    // Invoked when no response has been received for a transaction
+    private synchronized void handleTransactionTimeout(OutputTransaction transaction) {
+        if (this.closed || !this.outputTransactions.remove(transaction.getTransactionId(), transaction))
+            return;
+        transaction.getOutputChunks().notifyFailure(this, this.callbackExecutor,
+          new Status(MsrpConstants.RESPONSE_CODE_TIMEOUT, "No response rec'd for transaction"));
+    }
+
+    // Remove an input message that is complete or aborted
+    private void removeInputChunks(InputChunks chunks, Exception abortCause) {
+        this.inputChunks.remove(chunks.getMessageId(), chunks);
+        Session.cancelIdleTimeout(chunks.getIdleTimeout());
+        if (chunks.getContentStream() != null)
+            chunks.getContentStream().finish(abortCause);
+    }
+
+    private void scheduleInputIdleCheck(InputChunks chunks, long delay) {
+        chunks.setIdleTimeout(this.eventLoop.schedule(delay, () -> this.checkInputIdle(chunks)));
+    }
+
+    // Scrub an orphaned input message if it's been idle too long; the timer is not reset by each chunk, so check again
+    private synchronized void checkInputIdle(InputChunks chunks) {
+        if (this.closed || this.inputChunks.get(chunks.getMessageId()) != chunks)
+            return;
+        final long idleTime = chunks.getIdleTime();
+        if (idleTime <= MAX_MESSAGE_IDLE_TIME_MILLIS) {
+            this.scheduleInputIdleCheck(chunks, MAX_MESSAGE_IDLE_TIME_MILLIS - idleTime + 1);
+            return;
+        }
+        this.inputChunks.remove(chunks.getMessageId());
+        chunks.discard();
+        if (chunks.getContentStream() != null)
+            chunks.getContentStream().finish(new IOException("missing message chunks never arrived"));
+        if (!FailureReport.NO.equals(chunks.getFailureReport())) {
+            final List<ByteRange> ranges = chunks.getReceivedRanges();
+            final ByteRange received = !ranges.isEmpty() && ranges.get(0).getStart() == 1 ? ranges.get(0) : null;
+            this.enqueueReport(chunks.getFromPath(), chunks.getMessageId(),
+              new Status(MsrpConstants.RESPONSE_CODE_TIMEOUT, "Missing message chunks never arrived"), received);
+            this.markReady();
+        }
+    }
+
+    private void scheduleOutputIdleCheck(OutputChunks chunks, long delay) {
+        chunks.setIdleTimeout(this.eventLoop.schedule(delay, () -> this.checkOutputIdle(chunks)));
+    }
+
+    // Scrub a completed output message once it has timed out waiting for reports
+    private synchronized void checkOutputIdle(OutputChunks chunks) {
+        if (this.closed || this.outputChunks.get(chunks.getMessageId()) != chunks)
+            return;
+        final long idleTime = chunks.getIdleTime();
+        if (idleTime <= MAX_MESSAGE_IDLE_TIME_MILLIS) {
+            this.scheduleOutputIdleCheck(chunks, MAX_MESSAGE_IDLE_TIME_MILLIS - idleTime + 1);
+            return;
+        }
+        this.outputChunks.remove(chunks.getMessageId());
     }
 
     // If we have a connection, move enqueued chunks from my output queue to connection's output queue
@@ -578,12 +904,12 @@ public class Session {
 
         private final OutputChunks chunks;
         private final String transactionId;
-        private final long sendTime;
+
+        private TimerWheel.Timeout timeout;
 
         OutputTransaction(OutputChunks chunks, String transactionId) {
             this.chunks = chunks;
             this.transactionId = transactionId;
-            this.sendTime = System.nanoTime();
         }
 
         public OutputChunks getOutputChunks() {
@@ -594,8 +920,12 @@ public class Session {
             return this.transactionId;
         }
 
-        public long getAge() {
-            return (System.nanoTime() - this.sendTime) / 1000000L;
+        public TimerWheel.Timeout getTimeout() {
+            return this.timeout;
+        }
+
+        public void setTimeout(TimerWheel.Timeout timeout) {
+            this.timeout = timeout;
         }
     }
 }
@@ -5,6 +5,10 @@
 
 package org.dellroad.msrp;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.List;
 import java.util.SortedSet;
 
@@ -44,5 +48,50 @@ public interface SessionListener {
      */
     void sessionReceivedMessage(Session session, List<MsrpUri> fromPath, String messageId, byte[] content, String contentType,
       SortedSet<Header> headers, boolean successReport, boolean failureReport);
+
+    /**
+     * Notification that an MSRP message larger than the {@linkplain Msrp#getSpillThreshold spill threshold}
+     * has been received in a session. The message content was reassembled in a temporary file.
+     *
+     * <p>
+     * This method takes ownership of {@code content} and is responsible for deleting (or moving) it.
+     * </p>
+     *
+     * <p>
+     * The default implementation reads the file into memory, deletes it, and then invokes
+     * {@link #sessionReceivedMessage sessionReceivedMessage()}; this will fail for content larger than 2GB,
+     * so applications that allow such content must override this method.
+     * </p>
+     *
+     * <p>
+     * Note that this method is responsible for (eventually) triggering a success or failure report
+     * depending on {@code successReport} and/or {@code failureReport}.
+     * </p>
+     *
+     * @param session the session on which the message was received
+     * @param fromPath the path that the message took to get here
+     * @param messageId sender's unique ID for this message
+     * @param content temporary file containing the message content
+     * @param contentType message content type
+     * @param headers other headers (including any MIME headers) sorted by name
+     * @param successReport whether a success report is requested by the sender
+     * @param failureReport whether a failure report is requested by the sender
+     * @see Session#sendSuccessReport Session.sendSuccessReport()
+     * @see Session#sendFailureReport Session.sendFailureReport()
+     */
+    default void sessionReceivedMessageFile(Session session, List<MsrpUri> fromPath, String messageId, Path content,
+      String contentType, SortedSet<Header> headers, boolean successReport, boolean failureReport) {
+        final byte[] data;
+        try {
+            try {
+                data = Files.readAllBytes(content);
+            } finally {
+                Files.deleteIfExists(content);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("error reading message content from " + content, e);
+        }
+        this.sessionReceivedMessage(session, fromPath, messageId, data, contentType, headers, successReport, failureReport);
+    }
 }
 
@@ -0,0 +1,53 @@
+
+/*
+ * Copyright (C) 2014 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.msrp;
+
+import java.util.List;
+import java.util.SortedSet;
+
+import org.dellroad.msrp.msg.Header;
+
+/**
+ * {@link SessionListener} that receives incoming message content incrementally, as each chunk arrives,
+ * instead of having each message reassembled in memory first.
+ *
+ * <p>
+ * When a {@link Session}'s listener implements this interface, {@link #sessionReceivingMessage sessionReceivingMessage()}
+ * is invoked instead of {@link #sessionReceivedMessage sessionReceivedMessage()} for every incoming message.
+ * Content is then delivered to the returned {@link ContentReceiver} only as fast as it is
+ * {@linkplain ContentSubscription#request requested}. When too many chunks are waiting to be delivered, reading from
+ * the underlying connection is paused; note that this also delays any other sessions sharing the same connection.
+ * </p>
+ */
+public interface StreamingSessionListener extends SessionListener {
+
+    /**
+     * Notification that the first chunk of a new MSRP message has been received in a session.
+     *
+     * <p>
+     * No content is delivered to the returned receiver until requested via {@code subscription}.
+     * </p>
+     *
+     * <p>
+     * Note that this method is responsible for (eventually) triggering a success or failure report
+     * depending on {@code successReport} and/or {@code failureReport}.
+     * </p>
+     *
+     * @param session the session on which the message is being received
+     * @param fromPath the path that the message took to get here
+     * @param messageId sender's unique ID for this message
+     * @param contentType message content type, or null if message contains no content
+     * @param headers other headers (including any MIME headers) from the first chunk, sorted by name
+     * @param successReport whether a success report is requested by the sender
+     * @param failureReport whether a failure report is requested by the sender
+     * @param subscription controls delivery of content to the returned receiver
+     * @return receiver for the message content, or null to discard the message content
+     * @see Session#sendSuccessReport Session.sendSuccessReport()
+     * @see Session#sendFailureReport Session.sendFailureReport()
+     */
+    ContentReceiver sessionReceivingMessage(Session session, List<MsrpUri> fromPath, String messageId, String contentType,
+      SortedSet<Header> headers, boolean successReport, boolean failureReport, ContentSubscription subscription);
+}
@@ -0,0 +1,239 @@
+
+/*
+ * Copyright (C) 2014 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.msrp;
+
+import java.util.List;
+import java.util.function.LongSupplier;
+
+/**
+ * Hashed timing wheel for scheduling protocol timeouts.
+ *
+ * <p>
+ * Time is divided into fixed length ticks, and each tick maps onto one of a fixed number of buckets. Each scheduled
+ * {@link Timeout} is placed in the bucket for the tick containing its deadline, along with the number of additional
+ * revolutions of the wheel that must pass before it expires. Scheduling and canceling are constant time, and
+ * {@link #expire expire()} only visits the buckets for the ticks that have elapsed.
+ * </p>
+ *
+ * <p>
+ * Instances are thread safe. Expired tasks are not run by this class; instead, they are handed back to the caller of
+ * {@link #expire expire()}, which should run them without holding any locks.
+ * </p>
+ */
+class TimerWheel {
+
+    /**
+     * Default tick duration in milliseconds.
+     */
+    static final long DEFAULT_TICK_MILLIS = 50;
+
+    /**
+     * Default number of buckets.
+     */
+    static final int DEFAULT_NUM_BUCKETS = 512;
+
+    private final LongSupplier clock;
+    private final long tickNanos;
+    private final long startTime;
+    private final Timeout[] buckets;            // each bucket is the head of a doubly linked list
+    private final int mask;
+
+    private long nextTick;                      // the next tick that has not yet been processed
+    private int size;
+
+    /**
+     * Default constructor.
+     */
+    TimerWheel() {
+        this(DEFAULT_TICK_MILLIS, DEFAULT_NUM_BUCKETS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param tickMillis tick duration in milliseconds
+     * @param numBuckets number of buckets; must be a power of two
+     * @throws IllegalArgumentException if either parameter is out of range
+     */
+    TimerWheel(long tickMillis, int numBuckets) {
+        this(tickMillis, numBuckets, System::nanoTime);
+    }
+
+    /**
+     * Constructor taking a clock, for testing.
+     *
+     * @param tickMillis tick duration in milliseconds
+     * @param numBuckets number of buckets; must be a power of two
+     * @param clock supplies the current time in nanoseconds, like {@link System#nanoTime}
+     * @throws IllegalArgumentException if either number is out of range or {@code clock} is null
+     */
+    TimerWheel(long tickMillis, int numBuckets, LongSupplier clock) {
+        if (tickMillis <= 0)
+            throw new IllegalArgumentException("tickMillis <= 0");
+        if (numBuckets <= 0 || Integer.bitCount(numBuckets) != 1)
+            throw new IllegalArgumentException("numBuckets is not a power of two");
+        if (clock == null)
+            throw new IllegalArgumentException("null clock");
+        this.clock = clock;
+        this.tickNanos = tickMillis * 1000000L;
+        this.startTime = clock.getAsLong();
+        this.buckets = new Timeout[numBuckets];
+        this.mask = numBuckets - 1;
+    }
+
+    /**
+     * Get the number of scheduled timeouts.
+     *
+     * @return number of pending timeouts
+     */
+    public synchronized int size() {
+        return this.size;
+    }
+
+    /**
+     * Schedule a task to execute after the given delay.
+     *
+     * @param delayMillis delay in milliseconds
+     * @param task task to execute
+     * @return handle that may be used to cancel the task
+     * @throws IllegalArgumentException if {@code task} is null
+     */
+    public Timeout schedule(long delayMillis, Runnable task) {
+        if (task == null)
+            throw new IllegalArgumentException("null task");
+        final long deadline = this.clock.getAsLong() + Math.max(delayMillis, 0) * 1000000L;
+        final Timeout timeout = new Timeout(task, deadline);
+        synchronized (this) {
+            final long tick = Math.max((deadline - this.startTime + this.tickNanos - 1) / this.tickNanos, this.nextTick);
+            timeout.rounds = (tick - this.nextTick) / this.buckets.length;
+            timeout.bucket = (int)(tick & this.mask);
+            this.link(timeout);
+        }
+        return timeout;
+    }
+
+    /**
+     * Determine the time of the next tick at which {@link #expire expire()} may have something to do.
+     *
+     * <p>
+     * The returned time is at most one tick later than the earliest pending deadline. It may be earlier, because
+     * a bucket can contain timeouts that are not due until a later revolution of the wheel.
+     * </p>
+     *
+     * @return {@link System#nanoTime} value, or -1 if there are no pending timeouts
+     */
+    public synchronized long nextWakeupTime() {
+        if (this.size == 0)
+            return -1;
+        for (int i = 0; i < this.buckets.length; i++) {
+            final long tick = this.nextTick + i;
+            if (this.buckets[(int)(tick & this.mask)] != null)
+                return this.startTime + tick * this.tickNanos;
+        }
+        throw new RuntimeException("internal error");
+    }
+
+    /**
+     * Remove all timeouts whose deadlines have passed and add their tasks to the given list.
+     *
+     * @param expired list to which expired tasks are added
+     */
+    public synchronized void expire(List<Runnable> expired) {
+        final long now = this.clock.getAsLong();
+        final long currentTick = (now - this.startTime) / this.tickNanos;
+        if (this.size == 0) {
+            this.nextTick = Math.max(this.nextTick, currentTick + 1);
+            return;
+        }
+        while (this.nextTick <= currentTick) {
+            final int bucket = (int)(this.nextTick & this.mask);
+            for (Timeout timeout = this.buckets[bucket]; timeout != null; ) {
+                final Timeout next = timeout.next;
+                if (timeout.rounds <= 0) {
+                    this.unlink(timeout);
+                    timeout.bucket = -1;
+                    expired.add(timeout.task);
+                } else
+                    timeout.rounds--;
+                timeout = next;
+            }
+            this.nextTick++;
+            if (this.size == 0) {
+                this.nextTick = currentTick + 1;
+                break;
+            }
+        }
+    }
+
+    private synchronized boolean cancel(Timeout timeout) {
+        if (timeout.bucket == -1)
+            return false;
+        this.unlink(timeout);
+        timeout.bucket = -1;
+        return true;
+    }
+
+    private void link(Timeout timeout) {
+        final Timeout head = this.buckets[timeout.bucket];
+        timeout.next = head;
+        if (head != null)
+            head.prev = timeout;
+        this.buckets[timeout.bucket] = timeout;
+        this.size++;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null)
+            timeout.prev.next = timeout.next;
+        else
+            this.buckets[timeout.bucket] = timeout.next;
+        if (timeout.next != null)
+            timeout.next.prev = timeout.prev;
+        timeout.prev = null;
+        timeout.next = null;
+        this.size--;
+    }
+
+// Timeout
+
+    /**
+     * A scheduled task.
+     */
+    final class Timeout {
+
+        private final Runnable task;
+        private final long deadline;
+
+        // These are guarded by the TimerWheel's lock
+        private Timeout prev;
+        private Timeout next;
+        private long rounds;
+        private int bucket;
+
+        Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Get this timeout's deadline.
+         *
+         * @return {@link System#nanoTime} deadline
+         */
+        public long getDeadline() {
+            return this.deadline;
+        }
+
+        /**
+         * Cancel this timeout. Does nothing if this timeout has already expired or been canceled.
+         *
+         * @return true if this timeout was canceled, false if it had already expired or been canceled
+         */
+        public boolean cancel() {
+            return TimerWheel.this.cancel(this);
+        }
+    }
+}
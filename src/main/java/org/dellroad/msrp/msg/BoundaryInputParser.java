@@ -6,7 +6,8 @@
 package org.dellroad.msrp.msg;
 
 import java.io.ByteArrayOutputStream;
-import java.util.regex.Pattern;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import org.dellroad.msrp.MsrpConstants;
 
@@ -14,16 +15,29 @@ import org.dellroad.msrp.MsrpConstants;
  * Parses body content bytes separated by MSRP end-line boundaries.
  *
  * <p>
+ * The end-line boundary is located using a Boyer-Moore-Horspool search, so in typical content most body bytes are
+ * never examined individually. Any trailing bytes of input that could be the start of a boundary are held back until
+ * enough additional input arrives to decide whether they are part of the boundary or part of the body.
+ * </p>
+ *
+ * <p>
  * Instances are not thread safe.
  * </p>
  */
 public class BoundaryInputParser {
 
+    private static final byte WILDCARD = (byte)'?';
+
     private final byte[] terminator;        // terminator string (with variable flag byte)
     private final int flagOffset;           // offset of flag byte in terminator
+    private final int[] shift = new int[256];
+    private final byte[] partial;           // held bytes that match a prefix of the terminator
+    private final byte[] scratch;           // held bytes plus following input bytes
 
     private boolean boundary = true;        // whether we are between body parts
-    private int matched;                    // how many bytes of terminator we have matched so far
+    private int partialLength;              // how many bytes of terminator we have matched so far
+    private int tailStart;                  // set by search(): start of trailing partial match, if any
+    private byte flag = WILDCARD;           // flag byte from the most recently matched terminator
 
     /**
      * Constructor.
@@ -36,13 +50,27 @@ public class BoundaryInputParser {
         // Sanity check
         if (transactionId == null)
             throw new IllegalArgumentException("null transactionId");
-        if (!Pattern.compile(Util.IDENT_REGEX).matcher(transactionId).matches())
+        if (!Util.isIdent(transactionId))
             throw new IllegalArgumentException("illegal transactionId");
 
         // Build byte sequence that ends the body (note, the '?' is a placeholder for the flag byte)
         this.terminator = (Util.CRLF + MsrpConstants.END_LINE_PREFIX + transactionId + "?" + Util.CRLF).getBytes(Util.UTF8);
         this.flagOffset = 2 + MsrpConstants.END_LINE_PREFIX.length() + transactionId.length();
-        assert terminator[flagOffset] == (byte)'?';
+        assert terminator[flagOffset] == WILDCARD;
+        this.partial = new byte[this.terminator.length - 1];
+        this.scratch = new byte[2 * (this.terminator.length - 1)];
+
+        // Build Horspool shift table; the flag byte position matches any of the allowed flag bytes
+        final int last = this.terminator.length - 1;
+        Arrays.fill(this.shift, this.terminator.length);
+        for (int i = 0; i < last; i++) {
+            if (i == this.flagOffset) {
+                this.shift[MsrpConstants.FLAG_INCOMPLETE & 0xff] = last - i;
+                this.shift[MsrpConstants.FLAG_COMPLETE & 0xff] = last - i;
+                this.shift[MsrpConstants.FLAG_ABORT & 0xff] = last - i;
+            } else
+                this.shift[this.terminator[i] & 0xff] = last - i;
+        }
     }
 
     /**
@@ -52,52 +80,76 @@ public class BoundaryInputParser {
      * @return zero or more additional body bytes, or null if the boundary string has been seen
      */
     public byte[] inputContentByte(byte b) {
+        final ByteBuffer input = ByteBuffer.wrap(new byte[] { b });
+        ByteArrayOutputStream buf = null;
+        while (input.hasRemaining()) {
+            final ByteBuffer data = this.inputContentBytes(input);
+            if (data == null)
+                return null;                    // note: in this case, no content bytes can have been returned yet
+            if (!data.hasRemaining())
+                continue;
+            if (buf == null)
+                buf = new ByteArrayOutputStream(data.remaining() + 1);
+            buf.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+        }
+        return buf != null ? buf.toByteArray() : new byte[0];
+    }
+
+    /**
+     * Input bytes from the given buffer and get back any new content bytes that have been determined to not be
+     * part of the boundary string.
+     *
+     * <p>
+     * Body content is normally returned as a slice of {@code input}, which is only valid until {@code input} is modified.
+     * Callers should invoke this method repeatedly until either {@code input} is exhausted or null is returned.
+     * Boundary strings that are split across multiple input buffers are handled correctly.
+     * </p>
+     *
+     * @param input input bytes
+     * @return zero or more additional body bytes, or null if the boundary string has been seen
+     * @throws IllegalArgumentException if {@code input} is null
+     */
+    public ByteBuffer inputContentBytes(ByteBuffer input) {
+        if (input == null)
+            throw new IllegalArgumentException("null input");
+        if (!input.hasRemaining())
+            return ByteBuffer.allocate(0);
 
         // No longer at boundary
         this.boundary = false;
 
-        // Does this byte match the next terminator prefix byte? Note special case for flag byte.
-        if (matched == this.flagOffset ?
-          b == MsrpConstants.FLAG_INCOMPLETE || b == MsrpConstants.FLAG_COMPLETE || b == MsrpConstants.FLAG_ABORT :
-          b == this.terminator[matched]) {
-
-            // Replace '?' with the actual flag seen when we see it
-            if (this.matched == this.flagOffset)
-                this.terminator[this.flagOffset] = b;
+        // Are there held bytes from previous input? If so, they have to be resolved first
+        if (this.partialLength > 0)
+            return this.inputContentBytesWithPartial(input);
 
-            // Increment the number of terminator bytes matched; have we now matched the entire terminator?
-            if (++this.matched == this.terminator.length) {
-                this.reset();
-                return null;
-            }
+        // Search for the terminator
+        final int start = input.position();
+        final int limit = input.limit();
+        final int match = this.search(input, start, limit);
 
-            // End line not fully matched yet, and there is no additional data at this point
-            return new byte[0];
+        // Did we find it right at the start?
+        if (match == start) {
+            this.flag = input.get(start + this.flagOffset);
+            input.position(start + this.terminator.length);
+            this.reset();
+            return null;
         }
 
-        // Were any bytes previously matched? If not, this is easy.
-        if (this.matched == 0)
-            return new byte[] { b };
-
-        // Match failure: roll back to the next longest prefix (this is O(n^2)... better would be Knuth-Morris-Pratt variant)
-        final ByteArrayOutputStream buf = new ByteArrayOutputStream(this.terminator.length);
-        buf.write(this.terminator[0]);
-    retractionLoop:
-        for (int offset = 1; this.matched > 0; offset++) {
-
-            // Check whether terminator[offset..end] + b matches a prefix
-            for (int i = 0; i < this.matched; i++) {
-                final byte next = (i < this.matched - 1) ? terminator[offset + i] : b;
-                if (terminator[i] != next) {
-                    buf.write(--this.matched > 0 ? this.terminator[offset] : b);
-                    continue retractionLoop;
-                }
-            }
-            break;
+        // Return body content up to the terminator; if no terminator, hold back any possible partial terminator
+        final int end;
+        if (match != -1) {
+            end = match;
+            input.position(match);
+        } else {
+            end = this.tailStart;
+            this.partialLength = limit - end;
+            for (int i = 0; i < this.partialLength; i++)
+                this.partial[i] = input.get(end + i);
+            input.position(limit);
         }
-
-        // Return available bytes
-        return buf.toByteArray();
+        final ByteBuffer content = input.duplicate();
+        content.limit(end).position(start);
+        return content.slice();
     }
 
     /**
@@ -105,7 +157,8 @@ public class BoundaryInputParser {
      *
      * <p>
      * This will be true after initial construction, invocation of {@link #reset},
-     * or an invocation {@link #inputContentByte inputContentByte()} that returned a null value.
+     * or an invocation of {@link #inputContentByte inputContentByte()} or {@link #inputContentBytes inputContentBytes()}
+     * that returned a null value.
      * </p>
      *
      * @return true if positioned on a boundary marker
@@ -119,7 +172,7 @@ public class BoundaryInputParser {
      */
     public void reset() {
         this.boundary = true;
-        this.matched = 0;
+        this.partialLength = 0;
     }
 
     /**
@@ -133,7 +186,80 @@ public class BoundaryInputParser {
      * @return boundary string flag byte
      */
     public byte getFlagByte() {
-        return this.terminator[this.flagOffset];
+        return this.flag;
     }
-}
 
+// Internal methods
+
+    // Resolve held bytes by searching them together with enough subsequent input to complete any terminator starting in them
+    private ByteBuffer inputContentBytesWithPartial(ByteBuffer input) {
+
+        // Build held bytes + following input
+        final int held = this.partialLength;
+        final int available = Math.min(input.remaining(), this.terminator.length - 1);
+        System.arraycopy(this.partial, 0, this.scratch, 0, held);
+        for (int i = 0; i < available; i++)
+            this.scratch[held + i] = input.get(input.position() + i);
+        final int length = held + available;
+        final int match = this.search(ByteBuffer.wrap(this.scratch, 0, length), 0, length);
+
+        // Did we find the terminator right at the start?
+        if (match == 0) {
+            this.flag = this.scratch[this.flagOffset];
+            input.position(input.position() + this.terminator.length - held);
+            this.reset();
+            return null;
+        }
+
+        // Determine how many held bytes are definitely body content
+        final int cut = match != -1 ? match : this.tailStart;
+        if (cut >= held) {
+            this.partialLength = 0;
+            return ByteBuffer.wrap(Arrays.copyOf(this.partial, held));
+        }
+        final ByteBuffer content = ByteBuffer.wrap(Arrays.copyOf(this.partial, cut));
+
+        // If we found a terminator starting within the held bytes, it will be matched on the next invocation
+        if (match != -1) {
+            System.arraycopy(this.partial, cut, this.partial, 0, held - cut);
+            this.partialLength = held - cut;
+            return content;
+        }
+
+        // Otherwise, all of the input was consumed (it was short) and a new partial match remains held
+        System.arraycopy(this.scratch, cut, this.partial, 0, length - cut);
+        this.partialLength = length - cut;
+        input.position(input.position() + available);
+        return content;
+    }
+
+    // Find the first complete terminator in buf[start, limit) using Boyer-Moore-Horspool, returning its offset or -1.
+    // If none is found, sets this.tailStart to the start of the longest trailing partial match, or limit if none.
+    private int search(ByteBuffer buf, int start, int limit) {
+        final int last = this.terminator.length - 1;
+        int pos = start;
+        while (pos + last < limit) {
+            if (this.matches(buf, pos, this.terminator.length))
+                return pos;
+            pos += this.shift[buf.get(pos + last) & 0xff];
+        }
+        for (pos = Math.max(start, limit - last); pos < limit; pos++) {
+            if (this.matches(buf, pos, limit - pos))
+                break;
+        }
+        this.tailStart = pos;
+        return -1;
+    }
+
+    // Determine whether buf[pos, pos + length) matches the first length bytes of the terminator
+    private boolean matches(ByteBuffer buf, int pos, int length) {
+        for (int i = length - 1; i >= 0; i--) {
+            final byte b = buf.get(pos + i);
+            if (i == this.flagOffset ?
+              b != MsrpConstants.FLAG_INCOMPLETE && b != MsrpConstants.FLAG_COMPLETE && b != MsrpConstants.FLAG_ABORT :
+              b != this.terminator[i])
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,42 @@
+
+/*
+ * Copyright (C) 2014 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.msrp.msg;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Destination for encoded MSRP messages in the form of a sequence of {@link ByteBuffer}s.
+ *
+ * @see MsrpMessage#encodeTo MsrpMessage.encodeTo()
+ */
+public interface BufferSink {
+
+    /**
+     * Obtain an empty buffer into which encoded data may be written.
+     *
+     * <p>
+     * The returned buffer is cleared and has at least {@code size} bytes remaining. Once filled and flipped, the buffer
+     * should be passed to {@link #write write()}, after which the sink takes ownership of it and may recycle it.
+     * </p>
+     *
+     * @param size minimum required capacity
+     * @return empty buffer with capacity at least {@code size}
+     */
+    ByteBuffer acquire(int size);
+
+    /**
+     * Append the given data.
+     *
+     * <p>
+     * The data consists of the bytes between the buffer's position and limit. The sink may retain {@code data}
+     * until it has been consumed, so the caller must not modify it (or its underlying content) afterward.
+     * If {@code data} was returned by {@link #acquire acquire()}, the sink is responsible for recycling it.
+     * </p>
+     *
+     * @param data data to append
+     */
+    void write(ByteBuffer data);
+}
@@ -5,9 +5,6 @@
 
 package org.dellroad.msrp.msg;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
 /**
  * MSRP {@code Byte-Range} header value.
  *
@@ -27,8 +24,6 @@ public class ByteRange {
      */
     public static final ByteRange ALL = new ByteRange(1, -1, -1);
 
-    private static final String BYTE_RANGE_REGEX = "([0-9]+)-(([0-9]+)|\\*)/(([0-9]+)|\\*)";
-
     private final long start;
     private final long end;
     private final long total;
@@ -108,19 +103,32 @@ public class ByteRange {
     public static ByteRange fromString(String string) {
         if (string == null)
             throw new IllegalArgumentException("null string");
-        final Matcher matcher = Pattern.compile(BYTE_RANGE_REGEX).matcher(string);
-        if (!matcher.matches())
+
+        // Parse "<start>-<end>/<total>", where <end> and <total> may be "*"
+        final int dash = string.indexOf('-');
+        final int slash = string.indexOf('/', dash + 1);
+        if (dash == -1 || slash == -1)
+            throw new IllegalArgumentException("invalid byte range " + Util.quotrunc(string));
+        final long start = Util.parseDecimal(string, 0, dash);
+        final long end = ByteRange.parseBound(string, dash + 1, slash);
+        final long total = ByteRange.parseBound(string, slash + 1, string.length());
+        if (start == -1 || end == -2 || total == -2)
             throw new IllegalArgumentException("invalid byte range " + Util.quotrunc(string));
         try {
-            final long start = Long.parseLong(matcher.group(1), 10);
-            final long end = !matcher.group(2).equals("*") ? Long.parseLong(matcher.group(3), 10) : -1;
-            final long total = !matcher.group(4).equals("*") ? Long.parseLong(matcher.group(5), 10) : -1;
             return new ByteRange(start, end, total);
         } catch (IllegalArgumentException e) {
             throw new IllegalArgumentException("invalid byte range " + Util.quotrunc(string));
         }
     }
 
+    // Parse a decimal number or "*", returning -1 for "*" or -2 if invalid
+    private static long parseBound(String string, int from, int to) {
+        if (to - from == 1 && string.charAt(from) == '*')
+            return -1;
+        final long value = Util.parseDecimal(string, from, to);
+        return value != -1 ? value : -2;
+    }
+
 // Object
 
     @Override
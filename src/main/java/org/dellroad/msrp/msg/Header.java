@@ -6,7 +6,7 @@
 package org.dellroad.msrp.msg;
 
 import java.util.Comparator;
-import java.util.regex.Pattern;
+import java.util.Locale;
 
 /**
  * Generic MSRP header.
@@ -21,12 +21,13 @@ public class Header {
     public static final Comparator<Header> SORT_BY_NAME = new Comparator<Header>() {
         @Override
         public int compare(Header header1, Header header2) {
-            return header1.getName().toLowerCase().compareTo(header2.getName().toLowerCase());
+            return header1.key.compareTo(header2.key);
         }
     };
 
     private final String name;
     private final String value;
+    private final String key;                               // lower case name, for SORT_BY_NAME
 
     /**
      * Constructor.
@@ -39,14 +40,27 @@ public class Header {
     public Header(String name, String value) {
         if (name == null)
             throw new IllegalArgumentException("null name");
-        if (!Pattern.compile(Util.HEADER_NAME_REGEX).matcher(name).matches())
+        if (!Util.isHeaderName(name))
             throw new IllegalArgumentException("invalid header name `" + name + "'");
         if (value == null)
             throw new IllegalArgumentException("null value");
-        if (!Pattern.compile(Util.HEADER_VALUE_REGEX).matcher(value).matches())
+        if (!Util.isHeaderValue(value))
             throw new IllegalArgumentException("invalid header value `" + value + "'");
         this.name = name;
         this.value = value;
+        this.key = Header.keyFor(name);
+    }
+
+    // Constructor for already validated name and value, with optional precomputed key
+    Header(String name, String value, String key) {
+        this.name = name;
+        this.value = value;
+        this.key = key != null ? key : Header.keyFor(name);
+    }
+
+    private static String keyFor(String name) {
+        final KnownHeader known = KnownHeader.find(name, 0, name.length());
+        return known != null ? known.getKey() : name.toLowerCase(Locale.ROOT);
     }
 
     /**
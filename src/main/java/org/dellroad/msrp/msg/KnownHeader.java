@@ -0,0 +1,98 @@
+
+/*
+ * Copyright (C) 2014 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.msrp.msg;
+
+import java.util.Locale;
+
+import org.dellroad.msrp.MsrpConstants;
+
+/**
+ * The header names defined by MSRP, plus the common MIME content headers.
+ *
+ * <p>
+ * Header names in parsed lines are looked up in a small perfect hash table keyed on the name's length and two of its
+ * characters, so recognizing a header costs one case-insensitive comparison and allocates nothing.
+ * </p>
+ */
+enum KnownHeader {
+    TO_PATH(MsrpConstants.TO_PATH_HEADER),
+    FROM_PATH(MsrpConstants.FROM_PATH_HEADER),
+    MESSAGE_ID(MsrpConstants.MESSAGE_ID_HEADER),
+    SUCCESS_REPORT(MsrpConstants.SUCCESS_REPORT_HEADER),
+    FAILURE_REPORT(MsrpConstants.FAILURE_REPORT_HEADER),
+    BYTE_RANGE(MsrpConstants.BYTE_RANGE_HEADER),
+    STATUS(MsrpConstants.STATUS_HEADER),
+    CONTENT_TYPE(MsrpConstants.CONTENT_TYPE_HEADER),
+    CONTENT_ID(MsrpConstants.CONTENT_ID_HEADER),
+    CONTENT_DESCRIPTION(MsrpConstants.CONTENT_DESCRIPTION_HEADER),
+    CONTENT_DISPOSITION(MsrpConstants.CONTENT_DISPOSITION_HEADER);
+
+    private static final int TABLE_SIZE = 16;                   // must be a power of two
+    private static final KnownHeader[] TABLE = new KnownHeader[TABLE_SIZE];
+
+    static {
+        for (KnownHeader header : KnownHeader.values()) {
+            final int hash = KnownHeader.hash(header.name, 0, header.name.length());
+            if (TABLE[hash] != null)
+                throw new RuntimeException("internal error: " + header + " collides with " + TABLE[hash]);
+            TABLE[hash] = header;
+        }
+    }
+
+    private final String name;
+    private final String key;
+
+    KnownHeader(String name) {
+        this.name = name;
+        this.key = name.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Get the canonical header name.
+     *
+     * @return header name
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Get the lower case header name.
+     *
+     * @return header name in lower case
+     */
+    public String getKey() {
+        return this.key;
+    }
+
+    /**
+     * Find the known header whose name case-insensitively equals the given substring.
+     *
+     * @param string string containing header name
+     * @param from start index (inclusive)
+     * @param to end index (exclusive)
+     * @return matching header, or null if none matches
+     */
+    public static KnownHeader find(String string, int from, int to) {
+        final int length = to - from;
+        if (length <= 0)
+            return null;
+        final KnownHeader header = TABLE[KnownHeader.hash(string, from, to)];
+        return header != null && header.name.length() == length
+          && string.regionMatches(true, from, header.name, 0, length) ? header : null;
+    }
+
+    // Hash based on the length, the first character, and the middle character; see static initializer
+    private static int hash(String string, int from, int to) {
+        final int length = to - from;
+        return (2 * length + 5 * KnownHeader.lower(string.charAt(from)) + KnownHeader.lower(string.charAt(from + length / 2)))
+          & (TABLE_SIZE - 1);
+    }
+
+    private static int lower(char ch) {
+        return ch >= 'A' && ch <= 'Z' ? ch + ('a' - 'A') : ch;
+    }
+}
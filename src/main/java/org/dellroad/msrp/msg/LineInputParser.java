@@ -5,16 +5,25 @@
 
 package org.dellroad.msrp.msg;
 
-import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * Parses CRLF-terminated lines.
+ *
+ * <p>
+ * Bytes may be input either one at a time via {@link #inputLineByte inputLineByte()} or in bulk via
+ * {@link #inputLineBytes inputLineBytes()}; partial lines are retained across invocations.
+ * </p>
  */
 public class LineInputParser {
 
+    private static final int INITIAL_BUFFER_SIZE = 128;
+
     private final int maxLength;
-    private final ByteArrayOutputStream buf = new ByteArrayOutputStream();
 
+    private byte[] buf = new byte[INITIAL_BUFFER_SIZE];
+    private int len;
     private boolean pendingCR;
 
     /**
@@ -40,48 +49,148 @@ public class LineInputParser {
 
         // Update state machine
         if (this.pendingCR) {
-            if (b == '\n') {
-                final String line = new String(this.buf.toByteArray(), Util.UTF8);
-                this.reset();
-                return line;
-            }
-            buf.write('\r');            // flush the pending CR
+            if (b == '\n')
+                return this.finishLine();
+            this.append((byte)'\r');            // flush the pending CR
         }
         this.pendingCR = b == '\r';
         if (!this.pendingCR)
-            buf.write(b);
+            this.append(b);
 
         // Check max length
-        if (buf.size() >= this.maxLength) {
-            final String prefix = new String(buf.toByteArray(), 0, Util.TRUNCATE_LENGTH, Util.UTF8);
-            throw new ProtocolException("message line starting with " + Util.quotrunc(prefix)
-              + " is too long (longer than " + this.maxLength + " bytes)");
-        }
+        this.checkLength(this.len);
 
         // Done
         return null;
     }
 
+    /**
+     * Input bytes from the given buffer until either a complete line is read or the buffer is exhausted.
+     *
+     * <p>
+     * On return, {@code input} will be positioned just after the terminating CRLF of the returned line,
+     * or at its limit if no complete line was found.
+     * </p>
+     *
+     * @param input input bytes
+     * @return complete line (not including CRLF), or null if more bytes are needed
+     * @throws ProtocolException if the line exceeds the maximum allowed length
+     * @throws IllegalArgumentException if {@code input} is null
+     */
+    public String inputLineBytes(ByteBuffer input) throws ProtocolException {
+        if (input == null)
+            throw new IllegalArgumentException("null input");
+        final int start = input.position();
+        final int limit = input.limit();
+
+        // Find the first LF that is preceded by a CR
+        int lf = -1;
+        for (int i = start; i < limit; i++) {
+            if (input.get(i) == '\n' && (i > start ? input.get(i - 1) == '\r' : this.pendingCR)) {
+                lf = i;
+                break;
+            }
+        }
+
+        // Handle case where the line is not yet complete
+        if (lf == -1) {
+            if (start == limit)
+                return null;
+            final boolean endsWithCR = input.get(limit - 1) == '\r';
+            final int end = endsWithCR ? limit - 1 : limit;
+            this.checkLength(this.len + (this.pendingCR ? 1 : 0) + (end - start), input, start);
+            if (this.pendingCR)
+                this.append((byte)'\r');
+            this.append(input, start, end);
+            this.pendingCR = endsWithCR;
+            input.position(limit);
+            return null;
+        }
+
+        // Line is complete; append any remaining content (i.e., up to the CR)
+        if (lf > start) {
+            this.checkLength(this.len + (this.pendingCR ? 1 : 0) + (lf - 1 - start), input, start);
+            if (this.pendingCR)
+                this.append((byte)'\r');
+            this.append(input, start, lf - 1);
+        }
+        input.position(lf + 1);
+        return this.finishLine();
+    }
+
     /**
      * Determine whether this instance is sitting at a line boundary.
      *
      * <p>
      * This will be true after initial construction, invocation of {@link #reset},
-     * or an invocation {@link #inputLineByte inputLineByte()} that returned a non-null value.
+     * or an invocation of {@link #inputLineByte inputLineByte()} or {@link #inputLineBytes inputLineBytes()}
+     * that returned a non-null value.
      * </p>
      *
      * @return true if positioned on a line boundary
      */
     public boolean isBetweenLines() {
-        return this.buf.size() == 0 && !this.pendingCR;
+        return this.len == 0 && !this.pendingCR;
     }
 
     /**
      * Reset parse state.
      */
     public void reset() {
-        this.buf.reset();
+        this.len = 0;
         this.pendingCR = false;
     }
-}
 
+// Internal methods
+
+    private String finishLine() {
+        final String line = new String(this.buf, 0, this.len, Util.UTF8);
+        this.reset();
+        return line;
+    }
+
+    private void append(byte b) {
+        this.ensureCapacity(this.len + 1);
+        this.buf[this.len++] = b;
+    }
+
+    private void append(ByteBuffer input, int start, int end) {
+        final int count = end - start;
+        if (count <= 0)
+            return;
+        this.ensureCapacity(this.len + count);
+        final ByteBuffer src = input.duplicate();
+        src.limit(end).position(start);
+        src.get(this.buf, this.len, count);
+        this.len += count;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > this.buf.length)
+            this.buf = Arrays.copyOf(this.buf, Math.max(capacity, this.buf.length * 2));
+    }
+
+    private void checkLength(int length) throws ProtocolException {
+        if (length >= this.maxLength)
+            throw this.buildTooLongException(this.buf, Math.min(this.len, Util.TRUNCATE_LENGTH));
+    }
+
+    // Check length of a partial line consisting of our buffered bytes plus bytes from input starting at start
+    private void checkLength(int length, ByteBuffer input, int start) throws ProtocolException {
+        if (length < this.maxLength)
+            return;
+        final byte[] prefix = Arrays.copyOf(this.buf, Math.min(length, Util.TRUNCATE_LENGTH));
+        int plen = Math.min(this.len, prefix.length);
+        if (this.pendingCR && plen < prefix.length)
+            prefix[plen++] = (byte)'\r';
+        for (int i = start; plen < prefix.length; i++)
+            prefix[plen++] = input.get(i);
+        throw this.buildTooLongException(prefix, plen);
+    }
+
+    private ProtocolException buildTooLongException(byte[] data, int length) {
+        final String prefix = new String(data, 0, length, Util.UTF8);
+        return new ProtocolException("message line starting with " + Util.quotrunc(prefix)
+          + " is too long (longer than " + this.maxLength + " bytes)");
+    }
+}
@@ -7,9 +7,12 @@ package org.dellroad.msrp.msg;
 
 import java.io.ByteArrayOutputStream;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Map;
+import java.util.function.Consumer;
 
 import org.dellroad.msrp.MsrpConstants;
 import org.dellroad.msrp.MsrpUri;
@@ -20,6 +23,12 @@ import org.dellroad.msrp.MsrpUri;
  * <p>
  * Instances are configured with various size limits to avoid unbounded memory usage.
  * </p>
+ *
+ * <p>
+ * Every chunk of a message, and usually every message in a session, carries the same {@code To-Path} and
+ * {@code From-Path}. Instances therefore remember the {@link MsrpUri}s parsed from recently seen path header values,
+ * and reuse them when the same value appears again instead of parsing the URIs again.
+ * </p>
  */
 public class MsrpInputParser {
 
@@ -38,10 +47,11 @@ public class MsrpInputParser {
     /** Default maximum number of extension headers ({@value #DEFAULT_MAX_EXTENSION_HEADERS}) */
     public static final int DEFAULT_MAX_EXTENSION_HEADERS = 32;
 
-    private static final Pattern REQUEST_LINE_PATTERN = Pattern.compile("MSRP (\\p{Alnum}[-.+%=\\p{Alnum}]{3,31}) ([A-Z]+)");
-    private static final Pattern RESPONSE_LINE_PATTERN = Pattern.compile("MSRP (\\p{Alnum}[-.+%=\\p{Alnum}]{3,31}) ([0-9]{3})( (.*))?");
+    private static final String START_LINE_PREFIX = "MSRP ";
 
-    private static final Header HEADER_EOF = new Header("dummy", "dummy");
+    // Limits on the cache of recently parsed path header values
+    private static final int MAX_CACHED_PATHS = 16;
+    private static final int MAX_CACHED_PATH_LENGTH = 1024;
 
     private final LineInputParser lineParser;
     private final int maxBodySize;
@@ -55,6 +65,12 @@ public class MsrpInputParser {
     private boolean allowBody;
     private ByteArrayOutputStream body;
     private BoundaryInputParser boundaryInputParser;
+    private final LinkedHashMap<String, MsrpUri[]> pathCache = new LinkedHashMap<String, MsrpUri[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, MsrpUri[]> eldest) {
+            return this.size() > MAX_CACHED_PATHS;
+        }
+    };
 
     /**
      * Constructor. Uses default size limits.
@@ -92,38 +108,77 @@ public class MsrpInputParser {
     public MsrpMessage inputMessageByte(byte b) throws ProtocolException {
 
         // Input byte
-        boolean complete = false;
-        switch (this.state) {
-        case FIRST_LINE:
-            this.inputFirstLineByte(b);
-            break;
-        case TO_PATH:
-            if (this.inputPathHeaderByte(this.message.getHeaders().getToPath(), MsrpConstants.TO_PATH_HEADER, b))
-                this.state = State.FROM_PATH;
-            break;
-        case FROM_PATH:
-            if (this.inputPathHeaderByte(this.message.getHeaders().getFromPath(), MsrpConstants.FROM_PATH_HEADER, b))
-                this.state = State.HEADER;
-            break;
-        case HEADER:
-            complete = this.inputHeaderByte(b);
-            break;
-        case BODY_CONTENT:
+        final boolean complete;
+        if (this.state == State.BODY_CONTENT)
             complete = this.inputBodyContentByte(b);
-            break;
-        default:
-            throw new RuntimeException("internal error");
+        else {
+            final String line = this.lineParser.inputLineByte(b);
+            complete = line != null && this.inputLine(line);
         }
 
         // Message complete?
-        if (complete) {
-            final MsrpMessage result = this.message;
-            this.reset();
-            return result;
+        return complete ? this.finishMessage() : null;
+    }
+
+    /**
+     * Input bytes from the given buffer until either a complete message is parsed or the buffer is exhausted.
+     *
+     * <p>
+     * Header lines and body content are scanned in bulk; any partial line or body content is retained
+     * across invocations. On return, {@code input} will be positioned just after the end of the returned
+     * message, or at its limit if no complete message was found.
+     * </p>
+     *
+     * @param input input bytes
+     * @return next complete message, or null if more bytes are needed
+     * @throws ProtocolException if a protocol violation is detected
+     * @throws IllegalArgumentException if {@code input} is null
+     */
+    public MsrpMessage inputMessageBytes(ByteBuffer input) throws ProtocolException {
+        if (input == null)
+            throw new IllegalArgumentException("null input");
+        while (input.hasRemaining()) {
+
+            // Input bytes
+            final boolean complete;
+            if (this.state == State.BODY_CONTENT)
+                complete = this.inputBodyContentBytes(input);
+            else {
+                final String line = this.lineParser.inputLineBytes(input);
+                if (line == null)
+                    break;
+                complete = this.inputLine(line);
+            }
+
+            // Message complete?
+            if (complete)
+                return this.finishMessage();
         }
         return null;
     }
 
+    /**
+     * Parse all of the bytes in the given buffer, delivering each complete message to the given consumer.
+     *
+     * <p>
+     * Any trailing partial message is retained for the next invocation.
+     * </p>
+     *
+     * @param input input bytes
+     * @param consumer receives parsed messages
+     * @return the number of complete messages parsed
+     * @throws ProtocolException if a protocol violation is detected
+     * @throws IllegalArgumentException if either parameter is null
+     */
+    public int parse(ByteBuffer input, Consumer<? super MsrpMessage> consumer) throws ProtocolException {
+        if (consumer == null)
+            throw new IllegalArgumentException("null consumer");
+        int count = 0;
+        for (MsrpMessage msg; (msg = this.inputMessageBytes(input)) != null; count++)
+            consumer.accept(msg);
+        return count;
+    }
+
     /**
      * Reset parse state.
      */
@@ -142,7 +197,8 @@ public class MsrpInputParser {
      *
      * <p>
      * This will be true after initial construction, an invocation of {@link #reset},
-     * or an invocation {@link #inputMessageByte inputMessageByte()} that returned a non-null value.
+     * or an invocation of {@link #inputMessageByte inputMessageByte()} or {@link #inputMessageBytes inputMessageBytes()}
+     * that returned a non-null value.
      * </p>
      *
      * @return true if positioned at a message boundary
@@ -153,20 +209,52 @@ public class MsrpInputParser {
 
 // Internal parsing methods
 
-    private void inputFirstLineByte(byte b) throws ProtocolException {
+    // Input a complete line, returning true if message is complete
+    private boolean inputLine(String line) throws ProtocolException {
+        switch (this.state) {
+        case FIRST_LINE:
+            this.inputFirstLine(line);
+            return false;
+        case TO_PATH:
+            this.inputPathHeader(this.message.getHeaders().getToPath(), KnownHeader.TO_PATH, line);
+            this.state = State.FROM_PATH;
+            return false;
+        case FROM_PATH:
+            this.inputPathHeader(this.message.getHeaders().getFromPath(), KnownHeader.FROM_PATH, line);
+            this.state = State.HEADER;
+            return false;
+        case HEADER:
+            return this.inputHeader(line);
+        default:
+            throw new RuntimeException("internal error");
+        }
+    }
 
-        // Read complete header line
-        final String line = this.lineParser.inputLineByte(b);
-        if (line == null)
-            return;
+    private MsrpMessage finishMessage() {
+        final MsrpMessage result = this.message;
+        this.reset();
+        return result;
+    }
+
+    private void inputFirstLine(String line) throws ProtocolException {
 
-        // Request or response?
-        Matcher matcher;
-        if ((matcher = REQUEST_LINE_PATTERN.matcher(line)).matches())
-            this.message = new MsrpRequest(matcher.group(1), matcher.group(2), null);
-        else if ((matcher = RESPONSE_LINE_PATTERN.matcher(line)).matches())
-            this.message = new MsrpResponse(matcher.group(1), Integer.parseInt(matcher.group(2), 10), matcher.group(4), null);
-        else
+        // Parse "MSRP <transaction-id> "
+        final int idStart = START_LINE_PREFIX.length();
+        final int idEnd = line.indexOf(' ', idStart);
+        if (!line.startsWith(START_LINE_PREFIX) || idEnd == -1 || !Util.isIdent(line, idStart, idEnd))
+            throw new ProtocolException("invalid start line " + Util.quotrunc(line));
+        final String transactionId = line.substring(idStart, idEnd);
+
+        // Request ("<method>") or response ("<code>" or "<code> <comment>")?
+        final int length = line.length();
+        final int codeEnd = idEnd + 4;
+        if (Util.isMethod(line, idEnd + 1, length))
+            this.message = new MsrpRequest(transactionId, line.substring(idEnd + 1), null);
+        else if (length >= codeEnd && Util.parseDecimal(line, idEnd + 1, codeEnd) != -1
+          && (length == codeEnd || (line.charAt(codeEnd) == ' ' && Util.isLineText(line, codeEnd + 1)))) {
+            this.message = new MsrpResponse(transactionId, (int)Util.parseDecimal(line, idEnd + 1, codeEnd),
+              length > codeEnd ? line.substring(codeEnd + 1) : null, null);
+        } else
             throw new ProtocolException("invalid start line " + Util.quotrunc(line));
 
         // Prepare for parsing headers
@@ -177,23 +265,26 @@ public class MsrpInputParser {
         this.state = State.TO_PATH;
     }
 
-    private boolean inputHeaderByte(byte b) throws ProtocolException {
+    // Input header line, returning true if message is complete
+    private boolean inputHeader(String line) throws ProtocolException {
 
-        // Read complete header
-        final Header header = this.inputHeaderByteForHeader(b);
-        if (header == null)
-            return false;
+        // Parse header
+        final int colon = this.parseHeader(line);
 
         // No more headers?
-        if (header == HEADER_EOF) {
+        if (colon == -1) {
 
             // Is message allowed to have a body?
             if (this.body != null && !this.allowBody)
                 throw new ProtocolException("message must not contain a body but does");
 
-            // If there is no body, we're done
-            if (this.body == null)
+            // If there is no body, we're done, but there must not be any MIME headers either
+            if (this.body == null) {
+                final MsrpHeaders headers = this.message.getHeaders();
+                if (headers.getContentType() != null || !headers.getMimeHeaders().isEmpty())
+                    throw new ProtocolException("MIME headers are not allowed when message has no body");
                 return true;
+            }
 
             // Start parsing body
             this.boundaryInputParser = new BoundaryInputParser(this.message.getTransactionId());
@@ -201,66 +292,71 @@ public class MsrpInputParser {
             return false;
         }
 
-        // Handle header
-        final String name = header.getName();
-        final String value = header.getValue();
-        if (name.equalsIgnoreCase(MsrpConstants.MESSAGE_ID_HEADER)) {
-            if (!Pattern.compile(Util.IDENT_REGEX).matcher(value).matches())
-                throw new ProtocolException("invalid `" + name + "' header value " + Util.quotrunc(value));
-            this.message.getHeaders().setMessageId(value);
-        } else if (name.equalsIgnoreCase(MsrpConstants.SUCCESS_REPORT_HEADER)) {
-            switch (value) {
-            case MsrpConstants.YES_HEADER_VALUE:
-                this.message.getHeaders().setSuccessReport(true);
-                break;
-            case MsrpConstants.NO_HEADER_VALUE:
-                this.message.getHeaders().setSuccessReport(false);
-                break;
+        // Handle MSRP headers; values are matched in place to avoid allocating strings we don't keep
+        final KnownHeader known = KnownHeader.find(line, 0, colon);
+        final int valueStart = colon + 2;
+        if (known != null) {
+            switch (known) {
+            case MESSAGE_ID:
+                if (!Util.isIdent(line, valueStart, line.length()))
+                    throw this.invalidHeaderValue(line, colon);
+                this.message.getHeaders().setMessageId(line.substring(valueStart));
+                return false;
+            case SUCCESS_REPORT:
+                if (MsrpInputParser.valueEquals(line, valueStart, MsrpConstants.YES_HEADER_VALUE))
+                    this.message.getHeaders().setSuccessReport(true);
+                else if (MsrpInputParser.valueEquals(line, valueStart, MsrpConstants.NO_HEADER_VALUE))
+                    this.message.getHeaders().setSuccessReport(false);
+                else
+                    throw this.invalidHeaderValue(line, colon);
+                return false;
+            case FAILURE_REPORT:
+                if (MsrpInputParser.valueEquals(line, valueStart, MsrpConstants.YES_HEADER_VALUE))
+                    this.message.getHeaders().setFailureReport(FailureReport.YES);
+                else if (MsrpInputParser.valueEquals(line, valueStart, MsrpConstants.NO_HEADER_VALUE))
+                    this.message.getHeaders().setFailureReport(FailureReport.NO);
+                else if (MsrpInputParser.valueEquals(line, valueStart, MsrpConstants.PARTIAL_HEADER_VALUE))
+                    this.message.getHeaders().setFailureReport(FailureReport.PARTIAL);
+                else
+                    throw this.invalidHeaderValue(line, colon);
+                return false;
+            case BYTE_RANGE:
+                try {
+                    this.message.getHeaders().setByteRange(ByteRange.fromString(line.substring(valueStart)));
+                } catch (IllegalArgumentException e) {
+                    throw this.invalidHeaderValue(line, colon);
+                }
+                return false;
+            case STATUS:
+                try {
+                    this.message.getHeaders().setStatus(Status.fromString(line.substring(valueStart)));
+                } catch (IllegalArgumentException e) {
+                    throw this.invalidHeaderValue(line, colon);
+                }
+                return false;
+            case CONTENT_TYPE:
+                this.message.getHeaders().setContentType(line.substring(valueStart));
+                return false;
             default:
-                throw new ProtocolException("invalid `" + name + "' header value " + Util.quotrunc(value));
-            }
-        } else if (name.equalsIgnoreCase(MsrpConstants.FAILURE_REPORT_HEADER)) {
-            switch (value) {
-            case MsrpConstants.YES_HEADER_VALUE:
-                this.message.getHeaders().setFailureReport(FailureReport.YES);
                 break;
-            case MsrpConstants.NO_HEADER_VALUE:
-                this.message.getHeaders().setFailureReport(FailureReport.NO);
-                break;
-            case MsrpConstants.PARTIAL_HEADER_VALUE:
-                this.message.getHeaders().setFailureReport(FailureReport.PARTIAL);
-                break;
-            default:
-                throw new ProtocolException("invalid `" + name + "' header value " + Util.quotrunc(value));
-            }
-        } else if (name.equalsIgnoreCase(MsrpConstants.BYTE_RANGE_HEADER)) {
-            try {
-                this.message.getHeaders().setByteRange(ByteRange.fromString(value));
-            } catch (IllegalArgumentException e) {
-                throw new ProtocolException("invalid `" + name + "' header value " + Util.quotrunc(value));
-            }
-        } else if (name.equalsIgnoreCase(MsrpConstants.STATUS_HEADER)) {
-            try {
-                this.message.getHeaders().setStatus(Status.fromString(value));
-            } catch (IllegalArgumentException e) {
-                throw new ProtocolException("invalid `" + name + "' header value " + Util.quotrunc(value));
-            }
-        } else if (name.equalsIgnoreCase(MsrpConstants.CONTENT_TYPE_HEADER))
-            this.message.getHeaders().setContentType(value);
-        else {
-            if (MsrpRequest.isMimeHeader(name)) {
-                this.message.getHeaders().getMimeHeaders().remove(header);               // ensure last one wins
-                if (this.message.getHeaders().getMimeHeaders().size() >= this.maxMimeHeaders)
-                    throw new ProtocolException("too many MIME headers (maximum " + this.maxMimeHeaders + ")");
-                this.message.getHeaders().getMimeHeaders().add(header);
-            } else {
-                this.message.getHeaders().getExtensionHeaders().remove(header);          // ensure last one wins
-                if (this.message.getHeaders().getExtensionHeaders().size() >= this.maxExtensionHeaders)
-                    throw new ProtocolException("too many extension headers (maximum " + this.maxExtensionHeaders + ")");
-                this.message.getHeaders().getExtensionHeaders().add(header);
             }
         }
 
+        // Handle MIME and extension headers, sharing the name string when it's a known header spelled canonically
+        final String name = known != null && line.startsWith(known.getName()) ? known.getName() : line.substring(0, colon);
+        final Header header = new Header(name, line.substring(valueStart), known != null ? known.getKey() : null);
+        if (MsrpRequest.isMimeHeader(name)) {
+            this.message.getHeaders().getMimeHeaders().remove(header);               // ensure last one wins
+            if (this.message.getHeaders().getMimeHeaders().size() >= this.maxMimeHeaders)
+                throw new ProtocolException("too many MIME headers (maximum " + this.maxMimeHeaders + ")");
+            this.message.getHeaders().getMimeHeaders().add(header);
+        } else {
+            this.message.getHeaders().getExtensionHeaders().remove(header);          // ensure last one wins
+            if (this.message.getHeaders().getExtensionHeaders().size() >= this.maxExtensionHeaders)
+                throw new ProtocolException("too many extension headers (maximum " + this.maxExtensionHeaders + ")");
+            this.message.getHeaders().getExtensionHeaders().add(header);
+        }
+
         // Done
         return false;
     }
@@ -270,14 +366,38 @@ public class MsrpInputParser {
 
         // Input body byte
         final byte[] data = this.boundaryInputParser.inputContentByte(b);
-        if (data != null) {
-            this.body.write(data, 0, data.length);
-            if (this.body.size() > this.maxBodySize)
-                throw new ProtocolException("body size exceeds maximum size limit (" + this.maxBodySize + " bytes)");
-            return false;
+        if (data == null)
+            return this.finishBody();
+        this.body.write(data, 0, data.length);
+        this.checkBodySize();
+        return false;
+    }
+
+    // Input body content bytes, returning true if message is complete
+    private boolean inputBodyContentBytes(ByteBuffer input) throws ProtocolException {
+        while (input.hasRemaining()) {
+            final ByteBuffer data = this.boundaryInputParser.inputContentBytes(input);
+            if (data == null)
+                return this.finishBody();
+            if (data.hasArray())
+                this.body.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            else {
+                final byte[] array = new byte[data.remaining()];
+                data.get(array);
+                this.body.write(array, 0, array.length);
+            }
+            this.checkBodySize();
         }
+        return false;
+    }
+
+    private void checkBodySize() throws ProtocolException {
+        if (this.body.size() > this.maxBodySize)
+            throw new ProtocolException("body size exceeds maximum size limit (" + this.maxBodySize + " bytes)");
+    }
 
-        // Add body to message and set flags
+    // Body is complete; add body to message and set flags
+    private boolean finishBody() {
         final MsrpRequest request = (MsrpRequest)this.message;
         request.setBody(this.body.toByteArray());
         switch (this.boundaryInputParser.getFlagByte()) {
@@ -299,21 +419,27 @@ public class MsrpInputParser {
         return true;
     }
 
-    // Input required path header byte, returning true if header is complete
-    private boolean inputPathHeaderByte(List<MsrpUri> uriList, String name, byte b) throws ProtocolException {
+    // Input required path header line
+    private void inputPathHeader(List<MsrpUri> uriList, KnownHeader required, String line) throws ProtocolException {
 
         // Get complete path(s)
-        final String paths = this.inputRequiredHeaderByte(name, b);
-        if (paths == null)
-            return false;
+        final String name = required.getName();
+        final String paths = this.parseRequiredHeader(required, line);
 
         // Must be at least one
         if (paths.length() == 0)
             throw new ProtocolException("invalid empty `" + name + "' header");
 
+        // Reuse the URI's from a recent message with the same path, if any
+        final MsrpUri[] cachedUris = this.pathCache.get(paths);
+        if (cachedUris != null) {
+            Collections.addAll(uriList, cachedUris);
+            return;
+        }
+
         // Parse path into URI's
         int end;
-        for (int start = 0; start < paths.length(); start = end) {
+        for (int start = 0; start < paths.length(); start = end + 1) {
             if ((end = paths.indexOf(' ', start)) == -1)
                 end = paths.length();
             final String uri = paths.substring(start, end);
@@ -325,32 +451,36 @@ public class MsrpInputParser {
                 throw new ProtocolException("invalid URI " + Util.quotrunc(uri) + " in `" + name + "' header", e);
             }
         }
-
-        // Done
-        return true;
+        if (paths.length() <= MAX_CACHED_PATH_LENGTH)
+            this.pathCache.put(paths, uriList.toArray(new MsrpUri[uriList.size()]));
     }
 
-    // Input required header byte, returning header value if header is complete
-    private String inputRequiredHeaderByte(String name, byte b) throws ProtocolException {
-        final Header header = this.inputHeaderByteForHeader(b);
-        if (header == null)
-            return null;
-        if (header == HEADER_EOF)
+    // Parse required header line, returning header value
+    private String parseRequiredHeader(KnownHeader required, String line) throws ProtocolException {
+        final String name = required.getName();
+        final int colon = this.parseHeader(line);
+        if (colon == -1)
             throw new ProtocolException("missing required `" + name + "' header");
-        if (!header.getName().equalsIgnoreCase(name)) {
+        if (KnownHeader.find(line, 0, colon) != required) {
             throw new ProtocolException("expected required `" + name + "' header but found "
-              + Util.quotrunc(header.getName()) + " header instead");
+              + Util.quotrunc(line.substring(0, colon)) + " header instead");
         }
-        return header.getValue();
+        return line.substring(colon + 2);
     }
 
-    // Input header byte, returning null if incomplete, header if complete, or HEADER_EOF if none remain (and setting this.body)
-    private Header inputHeaderByteForHeader(byte b) throws ProtocolException {
+    private ProtocolException invalidHeaderValue(String line, int colon) {
+        return new ProtocolException("invalid `" + line.substring(0, colon) + "' header value "
+          + Util.quotrunc(line.substring(colon + 2)));
+    }
+
+    // Determine whether the header value starting at the given offset equals the given string
+    private static boolean valueEquals(String line, int from, String value) {
+        return line.length() - from == value.length() && line.startsWith(value, from);
+    }
 
-        // Read complete header line
-        final String line = this.lineParser.inputLineByte(b);
-        if (line == null)
-            return null;
+    // Validate header line, returning the offset of the colon separating name and value,
+    // or -1 if no headers remain (and setting this.body)
+    private int parseHeader(String line) throws ProtocolException {
 
         // End line?
         assert this.endLine != null;
@@ -359,20 +489,21 @@ public class MsrpInputParser {
             if (flag != (char)MsrpConstants.FLAG_COMPLETE)
                 throw new ProtocolException("invalid end-line flag byte `" + flag + "' in message without body");
             this.body = null;
-            return HEADER_EOF;
+            return -1;
         }
 
         // Blank line?
         if (line.length() == 0) {
             this.body = new ByteArrayOutputStream();
-            return HEADER_EOF;
+            return -1;
         }
 
         // Parse header
-        final Matcher matcher = Pattern.compile(Util.HEADER_REGEX).matcher(line);
-        if (!matcher.matches())
+        final int colon = line.indexOf(':');
+        if (colon == -1 || colon + 1 >= line.length() || line.charAt(colon + 1) != ' '
+          || !Util.isHeaderName(line, 0, colon) || !Util.isHeaderValue(line, colon + 2))
             throw new ProtocolException("invalid header line " + Util.quotrunc(line));
-        return new Header(matcher.group(1), matcher.group(2));
+        return colon;
     }
 
 // Parse states
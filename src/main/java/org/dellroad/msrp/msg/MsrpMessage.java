@@ -8,9 +8,13 @@ package org.dellroad.msrp.msg;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
 import java.util.concurrent.ThreadLocalRandom;
-import java.util.regex.Pattern;
 
 import org.dellroad.msrp.MsrpConstants;
 
@@ -19,6 +23,8 @@ import org.dellroad.msrp.MsrpConstants;
  */
 public abstract class MsrpMessage {
 
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
     private final String transactionId;
     private final MsrpHeaders headers;
 
@@ -38,7 +44,7 @@ public abstract class MsrpMessage {
      */
     protected MsrpMessage(String transactionId, MsrpHeaders headers) {
         this.transactionId = transactionId != null ? transactionId : MsrpMessage.randomId();
-        if (!Pattern.compile(Util.IDENT_REGEX).matcher(this.transactionId).matches())
+        if (!Util.isIdent(this.transactionId))
             throw new IllegalArgumentException("invalid transaction ID `" + this.transactionId + "'");
         this.headers = headers != null ? headers : new MsrpHeaders();
     }
@@ -68,24 +74,100 @@ public abstract class MsrpMessage {
      * @return encoded message
      */
     public byte[] encode(boolean withBody) {
-        try {
-            final ByteArrayOutputStream buf = new ByteArrayOutputStream();
-            final OutputStreamWriter bufWriter = new OutputStreamWriter(buf, Util.UTF8);
-            bufWriter.write(this.getFirstLine());
-            bufWriter.write(Util.CRLF);
-            bufWriter.write(this.headers.toString());
-            bufWriter.flush();
-            if (withBody)
-                this.writePayload(buf);
-            bufWriter.write(MsrpConstants.END_LINE_PREFIX);
-            bufWriter.write(this.transactionId);
-            bufWriter.write(this.getFlagByte() & 0xff);
-            bufWriter.write(Util.CRLF);
-            bufWriter.flush();
-            return buf.toByteArray();
-        } catch (IOException e) {
-            throw new RuntimeException("unexpected exception");
+        final ArrayList<ByteBuffer> buffers = new ArrayList<>(4);
+        this.encodeTo(new BufferSink() {
+            @Override
+            public ByteBuffer acquire(int size) {
+                return ByteBuffer.allocate(size);
+            }
+            @Override
+            public void write(ByteBuffer data) {
+                buffers.add(data);
+            }
+        }, withBody);
+        int length = 0;
+        for (ByteBuffer buf : buffers)
+            length += buf.remaining();
+        final byte[] result = new byte[length];
+        int offset = 0;
+        for (ByteBuffer buf : buffers) {
+            final int len = buf.remaining();
+            buf.get(result, offset, len);
+            offset += len;
         }
+        return result;
+    }
+
+    /**
+     * Encode this instance according to RFC 4975 into the given {@link BufferSink}.
+     *
+     * <p>
+     * The start line, headers, and end line are encoded into buffers obtained from {@code sink}, while the body
+     * (if any) is passed to {@code sink} as a read-only view of the existing content without copying it.
+     * Therefore, the body must not be modified until {@code sink} has consumed it.
+     * </p>
+     *
+     * @param sink destination for encoded message
+     * @param withBody true to include the body, or false to omit the body, if any
+     * @throws IllegalArgumentException if {@code sink} is null
+     */
+    public void encodeTo(BufferSink sink, boolean withBody) {
+        if (sink == null)
+            throw new IllegalArgumentException("null sink");
+        MsrpMessage.encodeTo(sink, this.getFirstLine() + Util.CRLF + this.headers.toString());
+        if (withBody) {
+            try {
+                this.writePayload(sink);
+            } catch (IOException e) {
+                throw new RuntimeException("unexpected exception", e);
+            }
+        }
+        MsrpMessage.encodeTo(sink,
+          MsrpConstants.END_LINE_PREFIX + this.transactionId + (char)(this.getFlagByte() & 0xff) + Util.CRLF);
+    }
+
+    // Encode text as UTF-8 into a buffer of exactly the right size acquired from the sink
+    private static void encodeTo(BufferSink sink, String text) {
+
+        // Compute encoded length; unpaired surrogates are replaced with a single byte
+        final int length = text.length();
+        int encodedLength = 0;
+        boolean ascii = true;
+        for (int i = 0; i < length; i++) {
+            final char ch = text.charAt(i);
+            if (ch < 0x80) {
+                encodedLength++;
+                continue;
+            }
+            ascii = false;
+            if (ch < 0x800)
+                encodedLength += 2;
+            else if (Character.isHighSurrogate(ch) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                encodedLength += 4;
+                i++;
+            } else if (Character.isSurrogate(ch))
+                encodedLength++;
+            else
+                encodedLength += 3;
+        }
+        final ByteBuffer buf = sink.acquire(encodedLength);
+
+        // Headers are almost always plain ASCII, which needs no encoder
+        if (ascii) {
+            for (int i = 0; i < length; i++)
+                buf.put((byte)text.charAt(i));
+            buf.flip();
+            sink.write(buf);
+            return;
+        }
+        final CharsetEncoder encoder = Util.UTF8.newEncoder()
+          .onMalformedInput(CodingErrorAction.REPLACE)
+          .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        final CoderResult result = encoder.encode(CharBuffer.wrap(text), buf, true);
+        if (result.isError() || result.isOverflow() || encoder.flush(buf).isOverflow())
+            throw new RuntimeException("internal error: " + result);
+        buf.flip();
+        sink.write(buf);
     }
 
     /**
@@ -94,7 +176,13 @@ public abstract class MsrpMessage {
      * @return new random ID
      */
     public static String randomId() {
-        return String.format("%016x", ThreadLocalRandom.current().nextLong());
+        long value = ThreadLocalRandom.current().nextLong();
+        final char[] digits = new char[16];
+        for (int i = digits.length - 1; i >= 0; i--) {
+            digits[i] = HEX_DIGITS[(int)value & 0xf];
+            value >>>= 4;
+        }
+        return new String(digits);
     }
 
 // Object
@@ -152,5 +240,24 @@ public abstract class MsrpMessage {
      * @throws IOException if an I/O error occurs
      */
     protected abstract void writePayload(OutputStream output) throws IOException;
+
+    /**
+     * Write the message body, if any, to the given {@link BufferSink}.
+     *
+     * <p>
+     * The output must be the same as {@link #writePayload(OutputStream)}. The implementation in {@link MsrpMessage}
+     * invokes {@link #writePayload(OutputStream)} and passes the result to {@code sink}; subclasses should override
+     * to pass the body content to {@code sink} without copying it.
+     * </p>
+     *
+     * @param sink destination for message
+     * @throws IOException if an I/O error occurs
+     */
+    protected void writePayload(BufferSink sink) throws IOException {
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        this.writePayload(buf);
+        if (buf.size() > 0)
+            sink.write(ByteBuffer.wrap(buf.toByteArray()));
+    }
 }
 
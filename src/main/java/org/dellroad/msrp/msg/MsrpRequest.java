@@ -7,8 +7,8 @@ package org.dellroad.msrp.msg;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.regex.Pattern;
 
 import org.dellroad.msrp.MsrpConstants;
 
@@ -17,6 +17,8 @@ import org.dellroad.msrp.MsrpConstants;
  */
 public class MsrpRequest extends MsrpMessage {
 
+    private static final ByteBuffer CRLF = ByteBuffer.wrap(new byte[] { '\r', '\n' }).asReadOnlyBuffer();
+
     private final String method;
 
     private byte[] body;
@@ -59,7 +61,7 @@ public class MsrpRequest extends MsrpMessage {
         super(transactionId, headers);
         if (method == null)
             throw new IllegalArgumentException("null method");
-        if (!Pattern.compile(Util.METHOD_REGEX).matcher(method).matches())
+        if (!Util.isMethod(method))
             throw new IllegalArgumentException("invalid method `" + method + "'");
         this.method = method;
         this.body = body;
@@ -218,5 +220,14 @@ public class MsrpRequest extends MsrpMessage {
             output.write('\n');
         }
     }
+
+    @Override
+    protected void writePayload(BufferSink sink) throws IOException {
+        if (this.body != null) {
+            sink.write(CRLF.duplicate());
+            sink.write(ByteBuffer.wrap(this.body).asReadOnlyBuffer());
+            sink.write(CRLF.duplicate());
+        }
+    }
 }
 
@@ -112,5 +112,10 @@ public class MsrpResponse extends MsrpMessage {
     protected void writePayload(OutputStream output) throws IOException {
         // responses never have a payload so there's nothing to do
     }
+
+    @Override
+    protected void writePayload(BufferSink sink) throws IOException {
+        // responses never have a payload so there's nothing to do
+    }
 }
 
@@ -5,9 +5,6 @@
 
 package org.dellroad.msrp.msg;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
 /**
  * MSRP {@code Status} header.
  *
@@ -17,8 +14,6 @@ import java.util.regex.Pattern;
  */
 public class Status {
 
-    private static final String STATUS_REGEX = "([0-9]{3}) ([0-9]{3})( (.*))?";
-
     private final int namespace;
     private final int code;
     private final String comment;
@@ -97,13 +92,17 @@ public class Status {
     public static Status fromString(String string) {
         if (string == null)
             throw new IllegalArgumentException("null string");
-        final Matcher matcher = Pattern.compile(STATUS_REGEX).matcher(string);
-        if (!matcher.matches())
+
+        // Parse "<namespace> <code>" or "<namespace> <code> <comment>"
+        final int length = string.length();
+        if (length < 7 || string.charAt(3) != ' ' || (length > 7 && (string.charAt(7) != ' ' || !Util.isLineText(string, 8))))
+            throw new IllegalArgumentException("invalid status " + Util.quotrunc(string));
+        final long namespace = Util.parseDecimal(string, 0, 3);
+        final long code = Util.parseDecimal(string, 4, 7);
+        if (namespace == -1 || code == -1)
             throw new IllegalArgumentException("invalid status " + Util.quotrunc(string));
         try {
-            final int namespace = Integer.parseInt(matcher.group(1), 10);
-            final int code = Integer.parseInt(matcher.group(2), 10);
-            return new Status(namespace, code, matcher.group(4));
+            return new Status((int)namespace, (int)code, length > 7 ? string.substring(8) : null);
         } catch (IllegalArgumentException e) {
             throw new IllegalArgumentException("invalid status " + Util.quotrunc(string));
         }
@@ -7,21 +7,24 @@ package org.dellroad.msrp.msg;
 
 import java.nio.charset.Charset;
 
+/**
+ * Parsing helpers.
+ *
+ * <p>
+ * The syntax checks here are hand-written rather than regular expressions, because they run for every line parsed.
+ * Each accepts exactly the strings matched by the regular expression given in its documentation.
+ * </p>
+ */
 final class Util {
 
-    public static final String TOKEN_REGEX = "[-!#$%&'*+0-9A-Za-z^_`{|}~]";
-    public static final String IDENT_REGEX = "\\p{Alnum}[-\\p{Alnum}.+%=]{3,31}";
-    public static final String METHOD_REGEX = "[A-Z]+";
-    public static final String UTF8TEXT_REGEX = "[\\t\u0020-\uffff]";
-    public static final String HEADER_NAME_REGEX = "\\p{Alpha}" + TOKEN_REGEX + "*";
-    public static final String HEADER_VALUE_REGEX = UTF8TEXT_REGEX + "*";
-    public static final String HEADER_REGEX = "(" + HEADER_NAME_REGEX + "): (" + HEADER_VALUE_REGEX + ")";
-
     public static final Charset UTF8 = Charset.forName("UTF-8");
     public static final String CRLF = "\r\n";
 
     public static final int TRUNCATE_LENGTH = 40;
 
+    private static final int MIN_IDENT_LENGTH = 4;
+    private static final int MAX_IDENT_LENGTH = 32;
+
     private Util() {
     }
 
@@ -29,5 +32,185 @@ final class Util {
         final String trunc = text.length() <= TRUNCATE_LENGTH ? text : text.substring(0, TRUNCATE_LENGTH - 3) + "...";
         return "`" + trunc + "'";
     }
-}
 
+// Syntax
+
+    /**
+     * Determine whether the given substring is an ident: {@code \p{Alnum}[-\p{Alnum}.+%=]{3,31}}.
+     *
+     * @param string string
+     * @param from start index (inclusive)
+     * @param to end index (exclusive)
+     * @return true if valid
+     */
+    public static boolean isIdent(String string, int from, int to) {
+        final int length = to - from;
+        if (length < MIN_IDENT_LENGTH || length > MAX_IDENT_LENGTH || !Util.isAlnum(string.charAt(from)))
+            return false;
+        for (int i = from + 1; i < to; i++) {
+            final char ch = string.charAt(i);
+            if (!Util.isAlnum(ch) && ch != '-' && ch != '.' && ch != '+' && ch != '%' && ch != '=')
+                return false;
+        }
+        return true;
+    }
+
+    public static boolean isIdent(String string) {
+        return Util.isIdent(string, 0, string.length());
+    }
+
+    /**
+     * Determine whether the given substring is a method name: {@code [A-Z]+}.
+     *
+     * @param string string
+     * @param from start index (inclusive)
+     * @param to end index (exclusive)
+     * @return true if valid
+     */
+    public static boolean isMethod(String string, int from, int to) {
+        if (from >= to)
+            return false;
+        for (int i = from; i < to; i++) {
+            final char ch = string.charAt(i);
+            if (ch < 'A' || ch > 'Z')
+                return false;
+        }
+        return true;
+    }
+
+    public static boolean isMethod(String string) {
+        return Util.isMethod(string, 0, string.length());
+    }
+
+    /**
+     * Determine whether the given substring is a header name: {@code \p{Alpha}[-!#$%&'*+0-9A-Za-z^_`{|}~]*}.
+     *
+     * @param string string
+     * @param from start index (inclusive)
+     * @param to end index (exclusive)
+     * @return true if valid
+     */
+    public static boolean isHeaderName(String string, int from, int to) {
+        if (from >= to || !Util.isAlpha(string.charAt(from)))
+            return false;
+        for (int i = from + 1; i < to; i++) {
+            if (!Util.isTokenChar(string.charAt(i)))
+                return false;
+        }
+        return true;
+    }
+
+    public static boolean isHeaderName(String string) {
+        return Util.isHeaderName(string, 0, string.length());
+    }
+
+    /**
+     * Determine whether the given suffix is a header value: {@code [\t\x20-\x{ffff}]*}.
+     *
+     * <p>
+     * As with the regular expression, matching is by code point, so supplementary characters are not allowed.
+     * </p>
+     *
+     * @param string string
+     * @param from start index (inclusive)
+     * @return true if valid
+     */
+    public static boolean isHeaderValue(String string, int from) {
+        final int length = string.length();
+        for (int i = from; i < length; i++) {
+            final char ch = string.charAt(i);
+            if (ch < ' ' && ch != '\t')
+                return false;
+            if (Character.isHighSurrogate(ch) && i + 1 < length && Character.isLowSurrogate(string.charAt(i + 1)))
+                return false;
+        }
+        return true;
+    }
+
+    public static boolean isHeaderValue(String string) {
+        return Util.isHeaderValue(string, 0);
+    }
+
+    /**
+     * Determine whether the given suffix contains no line terminators, i.e., matches {@code .*}.
+     *
+     * @param string string
+     * @param from start index (inclusive)
+     * @return true if valid
+     */
+    public static boolean isLineText(String string, int from) {
+        final int length = string.length();
+        for (int i = from; i < length; i++) {
+            switch (string.charAt(i)) {
+            case '\n':
+            case '\r':
+            case '\u0085':
+            case '\u2028':
+            case '\u2029':
+                return false;
+            default:
+                break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parse the given substring as a non-negative decimal number: {@code [0-9]+}.
+     *
+     * @param string string
+     * @param from start index (inclusive)
+     * @param to end index (exclusive)
+     * @return parsed value, or -1 if the substring is empty, contains a non-digit, or overflows a {@code long}
+     */
+    public static long parseDecimal(String string, int from, int to) {
+        if (from >= to)
+            return -1;
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            final int digit = string.charAt(i) - '0';
+            if (digit < 0 || digit > 9 || value > (Long.MAX_VALUE - digit) / 10)
+                return -1;
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    public static boolean isDigit(char ch) {
+        return ch >= '0' && ch <= '9';
+    }
+
+    public static boolean isAlpha(char ch) {
+        return (ch >= 'A' && ch <= 'Z') || (ch >= 'a' && ch <= 'z');
+    }
+
+    public static boolean isAlnum(char ch) {
+        return Util.isAlpha(ch) || Util.isDigit(ch);
+    }
+
+    public static boolean isTokenChar(char ch) {
+        if (Util.isAlnum(ch))
+            return true;
+        switch (ch) {
+        case '-':
+        case '!':
+        case '#':
+        case '$':
+        case '%':
+        case '&':
+        case '\'':
+        case '*':
+        case '+':
+        case '^':
+        case '_':
+        case '`':
+        case '{':
+        case '|':
+        case '}':
+        case '~':
+            return true;
+        default:
+            return false;
+        }
+    }
+}
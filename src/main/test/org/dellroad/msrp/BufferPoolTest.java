@@ -0,0 +1,70 @@
+
+/*
+ * Copyright (C) 2014 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.msrp;
+
+import java.nio.ByteBuffer;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class BufferPoolTest extends TestSupport {
+
+    @Test
+    public void testPool() throws Exception {
+        final BufferPool pool = new BufferPool(false, 2);
+
+        // Check size classes
+        Assert.assertEquals(pool.acquire(0).capacity(), BufferPool.MIN_BUFFER_SIZE);
+        Assert.assertEquals(pool.acquire(BufferPool.MIN_BUFFER_SIZE).capacity(), BufferPool.MIN_BUFFER_SIZE);
+        Assert.assertEquals(pool.acquire(1000).capacity(), 1024);
+        Assert.assertEquals(pool.acquire(1024).capacity(), 1024);
+        Assert.assertEquals(pool.acquire(1025).capacity(), 2048);
+
+        // Check reuse
+        final ByteBuffer buf1 = pool.acquire(1500);
+        final ByteBuffer buf2 = pool.acquire(1500);
+        final ByteBuffer buf3 = pool.acquire(1500);
+        buf1.put((byte)1).flip();
+        pool.release(buf1);
+        pool.release(buf2);
+        pool.release(buf3);                                 // exceeds maxIdlePerClass
+        final ByteBuffer buf4 = pool.acquire(2000);
+        Assert.assertSame(buf4, buf2);
+        Assert.assertSame(pool.acquire(2048), buf1);
+        Assert.assertEquals(buf1.position(), 0);
+        Assert.assertEquals(buf1.limit(), buf1.capacity());
+        Assert.assertNotSame(pool.acquire(2048), buf3);
+
+        // Foreign buffers are ignored
+        pool.release(ByteBuffer.allocate(1000));
+        pool.release(ByteBuffer.allocateDirect(1024));
+        Assert.assertEquals(pool.acquire(1000).capacity(), 1024);
+    }
+
+    @Test
+    public void testSizer() throws Exception {
+        final ReceiveBufferSizer sizer = new ReceiveBufferSizer(1000, 10000);
+        Assert.assertEquals(sizer.getSize(), 1024);
+
+        // Full reads grow immediately, up to the maximum
+        for (int expected : new int[] { 2048, 4096, 8192, 8192 }) {
+            sizer.record(sizer.getSize());
+            Assert.assertEquals(sizer.getSize(), expected);
+        }
+
+        // Small reads shrink only after two in a row
+        sizer.record(100);
+        Assert.assertEquals(sizer.getSize(), 8192);
+        sizer.record(5000);
+        sizer.record(100);
+        Assert.assertEquals(sizer.getSize(), 8192);
+        sizer.record(100);
+        Assert.assertEquals(sizer.getSize(), 4096);
+        for (int i = 0; i < 20; i++)
+            sizer.record(0);
+        Assert.assertEquals(sizer.getSize(), 1024);
+    }
+}
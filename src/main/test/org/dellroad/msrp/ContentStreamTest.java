@@ -0,0 +1,312 @@
+
+/*
+ * Copyright (C) 2014 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.msrp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dellroad.msrp.msg.Header;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+public class ContentStreamTest extends TestSupport {
+
+    private static final Executor DIRECT = Runnable::run;
+
+    private Msrp msrp;
+    private EventLoop eventLoop;
+    private SocketChannel socketChannel;
+
+    @BeforeClass
+    public void setup() throws Exception {
+        this.msrp = new Msrp();
+        this.msrp.setListenAddress(new InetSocketAddress("127.0.0.1", 2855));
+        this.eventLoop = new EventLoop(this.msrp, 0);
+        this.socketChannel = SocketChannel.open();
+        this.socketChannel.configureBlocking(false);
+    }
+
+    @AfterClass
+    public void teardown() throws Exception {
+        this.socketChannel.close();
+        this.eventLoop.close();
+    }
+
+    @Test
+    public void testNoDeliveryWithoutDemand() throws Exception {
+        final Receiver receiver = new Receiver();
+        final ContentStream stream = this.newStream(new Listener(receiver), DIRECT);
+        stream.start();
+        stream.offer(null, 0, new byte[] { 1, 2 });
+        stream.offer(null, 2, new byte[] { 3 });
+        stream.finish(null);
+        Assert.assertEquals(receiver.events, Collections.emptyList());
+
+        // Each unit of demand releases exactly one chunk; completion needs no demand
+        receiver.subscription.request(1);
+        Assert.assertEquals(receiver.events, Collections.singletonList("0:2"));
+        receiver.subscription.request(1);
+        Assert.assertEquals(receiver.events, Arrays.asList("0:2", "2:1", "complete"));
+    }
+
+    @Test
+    public void testPauseAndResume() throws Exception {
+        final Receiver receiver = new Receiver();
+        final RecordingConnection connection = this.newConnection();
+        final ContentStream stream = this.newStream(new Listener(receiver), DIRECT);
+        stream.start();
+
+        // Reading is paused only once the buffer fills
+        for (int i = 0; i < ContentStream.MAX_BUFFERED_CHUNKS - 1; i++)
+            stream.offer(connection, i, new byte[] { (byte)i });
+        Assert.assertEquals(connection.events, Collections.emptyList());
+        stream.offer(connection, ContentStream.MAX_BUFFERED_CHUNKS - 1, new byte[] { 0 });
+        Assert.assertEquals(connection.events, Collections.singletonList("pause"));
+        stream.offer(connection, ContentStream.MAX_BUFFERED_CHUNKS, new byte[] { 0 });
+        Assert.assertEquals(connection.events, Collections.singletonList("pause"));
+
+        // Reading resumes once fewer than half remain buffered
+        final int buffered = ContentStream.MAX_BUFFERED_CHUNKS + 1;
+        final int toResume = buffered - (ContentStream.MAX_BUFFERED_CHUNKS / 2 - 1);
+        receiver.subscription.request(toResume - 1);
+        Assert.assertEquals(connection.events, Collections.singletonList("pause"));
+        receiver.subscription.request(1);
+        Assert.assertEquals(connection.events, Arrays.asList("pause", "resume"));
+        Assert.assertEquals(receiver.events.size(), toResume);
+    }
+
+    @Test
+    public void testCancelResumesReading() throws Exception {
+        final Receiver receiver = new Receiver();
+        final RecordingConnection connection = this.newConnection();
+        final ContentStream stream = this.newStream(new Listener(receiver), DIRECT);
+        stream.start();
+        for (int i = 0; i < ContentStream.MAX_BUFFERED_CHUNKS; i++)
+            stream.offer(connection, i, new byte[] { (byte)i });
+        Assert.assertEquals(connection.events, Collections.singletonList("pause"));
+
+        // Canceling discards everything and lets the connection read again
+        receiver.subscription.cancel();
+        Assert.assertEquals(connection.events, Arrays.asList("pause", "resume"));
+        receiver.subscription.request(100);
+        stream.offer(connection, ContentStream.MAX_BUFFERED_CHUNKS, new byte[] { 0 });
+        stream.finish(null);
+        Assert.assertEquals(receiver.events, Collections.emptyList());
+        Assert.assertEquals(connection.events, Arrays.asList("pause", "resume"));
+    }
+
+    @Test
+    public void testFinishWithCause() throws Exception {
+        final Receiver receiver = new Receiver();
+        final RecordingConnection connection = this.newConnection();
+        final ContentStream stream = this.newStream(new Listener(receiver), DIRECT);
+        stream.start();
+        for (int i = 0; i < ContentStream.MAX_BUFFERED_CHUNKS; i++)
+            stream.offer(connection, i, new byte[] { (byte)i });
+        receiver.subscription.request(1);
+        Assert.assertEquals(receiver.events, Collections.singletonList("0:1"));
+
+        // Abort drops the queued chunks and is delivered without further demand
+        stream.finish(new Exception("aborted"));
+        Assert.assertEquals(connection.events, Arrays.asList("pause", "resume"));
+        Assert.assertEquals(receiver.events, Arrays.asList("0:1", "aborted:aborted"));
+        receiver.subscription.request(100);
+        Assert.assertEquals(receiver.events, Arrays.asList("0:1", "aborted:aborted"));
+    }
+
+    @Test
+    public void testNullReceiverCancels() throws Exception {
+        final Listener listener = new Listener(null);
+        final RecordingConnection connection = this.newConnection();
+        final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        final ContentStream stream = this.newStream(listener, tasks::add);
+        stream.start();
+        for (int i = 0; i < ContentStream.MAX_BUFFERED_CHUNKS; i++)
+            stream.offer(connection, i, new byte[] { (byte)i });
+        Assert.assertEquals(connection.events, Collections.singletonList("pause"));
+        Assert.assertEquals(listener.notified, 0);
+
+        // Returning no receiver cancels, so reading resumes and later chunks are ignored
+        while (!tasks.isEmpty())
+            tasks.removeFirst().run();
+        Assert.assertEquals(listener.notified, 1);
+        Assert.assertEquals(connection.events, Arrays.asList("pause", "resume"));
+        for (int i = 0; i < ContentStream.MAX_BUFFERED_CHUNKS; i++)
+            stream.offer(connection, i, new byte[] { (byte)i });
+        stream.finish(null);
+        Assert.assertEquals(connection.events, Arrays.asList("pause", "resume"));
+        Assert.assertTrue(tasks.isEmpty());
+    }
+
+    @Test
+    public void testSerialDelivery() throws Exception {
+        final int numChunks = 200;
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final AtomicInteger active = new AtomicInteger();
+            final AtomicInteger overlaps = new AtomicInteger();
+            final CountDownLatch done = new CountDownLatch(1);
+            final Receiver receiver = new Receiver() {
+                @Override
+                protected void record(String event) {
+                    if (active.incrementAndGet() != 1)
+                        overlaps.incrementAndGet();
+                    Thread.yield();
+                    super.record(event);
+                    this.subscription.request(1 + ContentStreamTest.this.random.nextInt(2));
+                    active.decrementAndGet();
+                    if (event.equals("complete"))
+                        done.countDown();
+                }
+            };
+            final ContentStream stream = this.newStream(new Listener(receiver), executor);
+            stream.start();
+            for (int i = 0; i < numChunks; i++) {
+                stream.offer(null, i, new byte[] { (byte)i });
+                if (i == 0)
+                    receiver.awaitSubscription().request(1);
+            }
+            stream.finish(null);
+            Assert.assertTrue(done.await(10, TimeUnit.SECONDS), "timed out");
+            Assert.assertEquals(overlaps.get(), 0);
+            final List<String> expected = new ArrayList<>();
+            for (int i = 0; i < numChunks; i++)
+                expected.add(i + ":1");
+            expected.add("complete");
+            Assert.assertEquals(receiver.getEvents(), expected);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private ContentStream newStream(StreamingSessionListener listener, Executor executor) {
+        final SortedSet<Header> headers = new TreeSet<>(Header.SORT_BY_NAME);
+        return new ContentStream(null, listener, executor, Collections.<MsrpUri>emptyList(),
+          "msg1234", "text/plain", headers, false, false);
+    }
+
+    private RecordingConnection newConnection() throws Exception {
+        return new RecordingConnection(this.msrp, this.eventLoop, new Endpoint("127.0.0.1", 2855), this.socketChannel);
+    }
+
+// Listener
+
+    private static class Listener implements StreamingSessionListener {
+
+        private final Receiver receiver;
+        private int notified;
+
+        Listener(Receiver receiver) {
+            this.receiver = receiver;
+        }
+
+        @Override
+        public ContentReceiver sessionReceivingMessage(Session session, List<MsrpUri> fromPath, String messageId,
+          String contentType, SortedSet<Header> headers, boolean successReport, boolean failureReport,
+          ContentSubscription subscription) {
+            this.notified++;
+            if (this.receiver != null)
+                this.receiver.setSubscription(subscription);
+            return this.receiver;
+        }
+
+        @Override
+        public void sessionClosed(Session session, Exception cause) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void sessionReceivedMessage(Session session, List<MsrpUri> fromPath, String messageId, byte[] content,
+          String contentType, SortedSet<Header> headers, boolean successReport, boolean failureReport) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+// Receiver
+
+    private static class Receiver implements ContentReceiver {
+
+        protected final List<String> events = new ArrayList<>();
+        protected volatile ContentSubscription subscription;
+
+        synchronized void setSubscription(ContentSubscription subscription) {
+            this.subscription = subscription;
+            this.notifyAll();
+        }
+
+        synchronized ContentSubscription awaitSubscription() throws InterruptedException {
+            while (this.subscription == null)
+                this.wait();
+            return this.subscription;
+        }
+
+        synchronized List<String> getEvents() {
+            return new ArrayList<>(this.events);
+        }
+
+        @Override
+        public void contentReceived(long offset, ByteBuffer data) {
+            this.record(offset + ":" + data.remaining());
+        }
+
+        @Override
+        public void contentComplete() {
+            this.record("complete");
+        }
+
+        @Override
+        public void contentAborted(Exception cause) {
+            this.record("aborted:" + cause.getMessage());
+        }
+
+        protected void record(String event) {
+            synchronized (this) {
+                this.events.add(event);
+            }
+        }
+    }
+
+// RecordingConnection
+
+    private static class RecordingConnection extends Connection {
+
+        private final List<String> events = new ArrayList<>();
+
+        RecordingConnection(Msrp msrp, EventLoop eventLoop, Endpoint endpoint, SocketChannel socketChannel)
+          throws IOException {
+            super(msrp, eventLoop, endpoint, socketChannel);
+        }
+
+        @Override
+        public synchronized void pauseReading(Object key) {
+            this.events.add("pause");
+            super.pauseReading(key);
+        }
+
+        @Override
+        public synchronized void resumeReading(Object key) {
+            this.events.add("resume");
+            super.resumeReading(key);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+
+/*
+ * Copyright (C) 2014 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.msrp;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.dellroad.msrp.msg.ByteRange;
+import org.dellroad.msrp.msg.MsrpHeaders;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class FileChunkRequestTest extends TestSupport {
+
+    @Test
+    public void testFileChunkRequest() throws Exception {
+        final Path file = Files.createTempFile("msrp", ".tmp");
+        try {
+            Files.write(file, "0123456789".getBytes(StandardCharsets.UTF_8));
+            final FileContent content = new FileContent(FileChannel.open(file, StandardOpenOption.READ));
+            final MsrpHeaders headers = new MsrpHeaders();
+            headers.setMessageId("msg1234");
+            headers.setByteRange(new ByteRange(3, 6, 10));
+            headers.setContentType("text/plain");
+            final FileChunkRequest request = new FileChunkRequest("tx1234", headers, content, 2, 4);
+            content.release();
+
+            // The file region is not a body, but it is encoded as one
+            Assert.assertNull(request.getBody());
+            Assert.assertTrue(this.encode(request).endsWith("\r\n\r\n2345\r\n-------tx1234$\r\n"));
+
+            // Setting a body replaces the file region
+            request.setBody("abc".getBytes(StandardCharsets.UTF_8));
+            Assert.assertTrue(this.encode(request).endsWith("\r\n\r\nabc\r\n-------tx1234$\r\n"));
+            request.setBody(null);
+
+            // Once released, the region can no longer be encoded
+            request.release();
+            try {
+                request.encode(true);
+                throw new Exception("expected exception after release");
+            } catch (RuntimeException e) {
+                Assert.assertTrue(e.getCause() instanceof IOException, "unexpected exception " + e);
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private String encode(FileChunkRequest request) {
+        return new String(request.encode(true), StandardCharsets.UTF_8);
+    }
+}
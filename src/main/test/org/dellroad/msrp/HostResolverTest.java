@@ -0,0 +1,36 @@
+
+/*
+ * Copyright (C) 2014 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.msrp;
+
+import java.net.InetAddress;
+import java.util.concurrent.CompletableFuture;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class HostResolverTest extends TestSupport {
+
+    @Test
+    public void testResolve() throws Exception {
+        final HostResolver resolver = new HostResolver("test resolver", 60000L, 60000L);
+        try {
+
+            // First lookup is asynchronous
+            final InetAddress address = resolver.resolve("127.0.0.1").get();
+            Assert.assertEquals(address, InetAddress.getByName("127.0.0.1"));
+
+            // Second lookup is cached
+            final CompletableFuture<InetAddress> future = resolver.resolve("127.0.0.1");
+            Assert.assertTrue(future.isDone());
+            Assert.assertEquals(future.get(), address);
+        } finally {
+            resolver.shutdown();
+        }
+
+        // Lookups after shutdown fail
+        Assert.assertNull(resolver.resolve("127.0.0.2").get());
+    }
+}
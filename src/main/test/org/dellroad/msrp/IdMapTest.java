@@ -0,0 +1,90 @@
+
+/*
+ * Copyright (C) 2014 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.msrp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.dellroad.msrp.msg.MsrpMessage;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class IdMapTest extends TestSupport {
+
+    @Test
+    public void testDecode() throws Exception {
+        Assert.assertEquals(IdMap.decode("0000000000000000"), 0L);
+        Assert.assertEquals(IdMap.decode("00000000000000ff"), 255L);
+        Assert.assertEquals(IdMap.decode("8000000000000000"), Long.MIN_VALUE);
+        Assert.assertEquals(IdMap.decode("00000000000000FF"), -1L);
+        Assert.assertEquals(IdMap.decode("abcd"), -1L);
+        for (int i = 0; i < 100; i++) {
+            final String id = MsrpMessage.randomId();
+            Assert.assertEquals(String.format("%016x", IdMap.decode(id)), id);
+        }
+    }
+
+    @Test
+    public void testRandom() throws Exception {
+        final String[] ids = new String[200];
+        for (int i = 0; i < ids.length; i++) {
+            switch (i % 4) {
+            case 0:
+                ids[i] = "peer-" + i;
+                break;
+            case 1:
+                ids[i] = String.format("%016x", (long)i);                  // clustered keys
+                break;
+            default:
+                ids[i] = MsrpMessage.randomId();
+                break;
+            }
+        }
+        ids[0] = "ffffffffffffffff";
+        for (int iter = 0; iter < 100; iter++) {
+            final IdMap<Integer> map = new IdMap<>();
+            final HashMap<String, Integer> expected = new HashMap<>();
+            for (int i = 0; i < 500; i++) {
+                final String id = ids[this.random.nextInt(ids.length)];
+                final int value = this.random.nextInt(10);
+                switch (this.random.nextInt(6)) {
+                case 0:
+                case 1:
+                    Assert.assertEquals(map.put(id, value), expected.put(id, value));
+                    break;
+                case 2:
+                    Assert.assertEquals(map.remove(id), expected.remove(id));
+                    break;
+                case 3:
+                    final Integer current = map.get(id);
+                    Assert.assertEquals(map.remove(id, current), current != null);
+                    expected.remove(id);
+                    break;
+                case 4:
+                    map.removeIf(v -> v == value);
+                    expected.values().removeIf(v -> v == value);
+                    break;
+                default:
+                    Assert.assertEquals(map.get(id), expected.get(id));
+                    break;
+                }
+                Assert.assertEquals(map.size(), expected.size());
+            }
+            for (String id : ids)
+                Assert.assertEquals(map.get(id), expected.get(id));
+            final ArrayList<Integer> values = new ArrayList<>();
+            map.forEach(values::add);
+            Assert.assertEquals(values.size(), expected.size());
+            values.sort(null);
+            final ArrayList<Integer> expectedValues = new ArrayList<>(expected.values());
+            expectedValues.sort(null);
+            Assert.assertEquals(values, expectedValues);
+            map.clear();
+            Assert.assertTrue(map.isEmpty());
+            Assert.assertFalse(map.iterator().hasNext());
+        }
+    }
+}
@@ -0,0 +1,195 @@
+
+/*
+ * Copyright (C) 2014 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.msrp;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.stream.Stream;
+
+import org.dellroad.msrp.msg.ByteRange;
+import org.dellroad.msrp.msg.MsrpHeaders;
+import org.dellroad.msrp.msg.MsrpMessage;
+import org.dellroad.msrp.msg.MsrpRequest;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class InputChunksTest extends TestSupport {
+
+    private static final String MESSAGE_ID = "msg1234";
+
+    @Test
+    public void testSpillMidMessage() throws Exception {
+        final Path dir = Files.createTempDirectory("msrp");
+        try {
+            final byte[] content = this.randomContent(25);
+            final InputChunks chunks = new InputChunks(MESSAGE_ID, 1000, true, 10, dir);
+
+            // Below the threshold, content stays in memory
+            Assert.assertFalse(chunks.handleSend(this.send(content, 0, 8, -1, false)));
+            Assert.assertNull(chunks.getContentFile());
+            Assert.assertEquals(chunks.getContent(), Arrays.copyOf(content, 8));
+            Assert.assertEquals(this.list(dir), 0);
+
+            // Crossing the threshold moves what we have so far into the file
+            Assert.assertFalse(chunks.handleSend(this.send(content, 8, 16, -1, false)));
+            final Path file = chunks.getContentFile();
+            Assert.assertNotNull(file);
+            Assert.assertEquals(file.getParent(), dir);
+            Assert.assertNull(chunks.getContent());
+            Assert.assertEquals(Files.readAllBytes(file), Arrays.copyOf(content, 16));
+
+            // The rest goes straight to the file
+            Assert.assertTrue(chunks.handleSend(this.send(content, 16, 25, 25, true)));
+            Assert.assertEquals(chunks.getContentFile(), file);
+            Assert.assertEquals(Files.readAllBytes(file), content);
+
+            // Discarding deletes the file, and is idempotent
+            chunks.discard();
+            Assert.assertNull(chunks.getContentFile());
+            Assert.assertFalse(Files.exists(file));
+            chunks.discard();
+        } finally {
+            this.delete(dir);
+        }
+    }
+
+    @Test
+    public void testSpillOutOfOrder() throws Exception {
+        final Path dir = Files.createTempDirectory("msrp");
+        try {
+            final byte[] content = this.randomContent(50);
+            final InputChunks chunks = new InputChunks(MESSAGE_ID, 1000, true, 0, dir);
+
+            // Chunks are written at their own offsets, leaving holes until they are filled
+            Assert.assertFalse(chunks.handleSend(this.send(content, 30, 40, 50, false)));
+            Assert.assertFalse(chunks.handleSend(this.send(content, 10, 20, 50, false)));
+            Assert.assertFalse(chunks.handleSend(this.send(content, 0, 10, 50, false)));
+            Assert.assertEquals(chunks.getReceivedRanges(),
+              Arrays.asList(new ByteRange(1, 20, 50), new ByteRange(31, 40, 50)));
+            Assert.assertFalse(chunks.handleSend(this.send(content, 20, 30, 50, false)));
+            Assert.assertTrue(chunks.handleSend(this.send(content, 40, 50, 50, true)));
+            Assert.assertEquals(Files.readAllBytes(chunks.getContentFile()), content);
+            chunks.discard();
+        } finally {
+            this.delete(dir);
+        }
+    }
+
+    @Test
+    public void testDiscardIncomplete() throws Exception {
+        final Path dir = Files.createTempDirectory("msrp");
+        try {
+            final byte[] content = this.randomContent(20);
+            final InputChunks chunks = new InputChunks(MESSAGE_ID, 1000, true, 0, dir);
+            Assert.assertFalse(chunks.handleSend(this.send(content, 0, 10, 20, false)));
+            Assert.assertEquals(this.list(dir), 1);
+
+            // Discarding while the file is still open for writing closes and deletes it
+            chunks.discard();
+            Assert.assertNull(chunks.getContentFile());
+            Assert.assertEquals(this.list(dir), 0);
+        } finally {
+            this.delete(dir);
+        }
+    }
+
+    @Test
+    public void testAdoptSingleChunk() throws Exception {
+        final byte[] content = this.randomContent(100);
+        final InputChunks chunks = new InputChunks(MESSAGE_ID, 1000);
+        final MsrpRequest request = this.send(content, 0, 100, 100, true);
+        Assert.assertTrue(chunks.handleSend(request));
+        Assert.assertSame(chunks.getContent(), request.getBody());
+    }
+
+    @Test
+    public void testGrowUnknownTotal() throws Exception {
+        final byte[] content = this.randomContent(50);
+        final InputChunks chunks = new InputChunks(MESSAGE_ID, 1000);
+
+        // The first chunk is adopted, then the buffer doubles as needed
+        final int[] capacities = { 10, 20, 40, 40 };
+        for (int i = 0; i < capacities.length; i++) {
+            Assert.assertFalse(chunks.handleSend(this.send(content, i * 10, i * 10 + 10, -1, false)));
+            Assert.assertEquals(chunks.getBufferCapacity(), capacities[i]);
+        }
+        Assert.assertTrue(chunks.handleSend(this.send(content, 40, 50, -1, true)));
+        Assert.assertEquals(chunks.getBufferCapacity(), 80);
+
+        // Excess capacity is trimmed when the content is retrieved
+        Assert.assertEquals(chunks.getContent(), content);
+        Assert.assertEquals(chunks.getBufferCapacity(), 50);
+    }
+
+    @Test
+    public void testExactKnownTotal() throws Exception {
+        final byte[] content = this.randomContent(50);
+        final InputChunks chunks = new InputChunks(MESSAGE_ID, 1000);
+
+        // The buffer is allocated once at the total length and never reallocated or trimmed
+        Assert.assertFalse(chunks.handleSend(this.send(content, 0, 10, 50, false)));
+        final byte[] buf = chunks.getContent();
+        Assert.assertEquals(buf.length, 50);
+        for (int offset = 10; offset < 40; offset += 10) {
+            Assert.assertFalse(chunks.handleSend(this.send(content, offset, offset + 10, 50, false)));
+            Assert.assertSame(chunks.getContent(), buf);
+        }
+        Assert.assertTrue(chunks.handleSend(this.send(content, 40, 50, 50, true)));
+        Assert.assertSame(chunks.getContent(), buf);
+        Assert.assertEquals(buf, content);
+    }
+
+    @Test
+    public void testOutOfOrder() throws Exception {
+        final byte[] content = this.randomContent(50);
+        final InputChunks chunks = new InputChunks(MESSAGE_ID, 1000);
+
+        // Chunks land at their own offsets, and earlier content survives each reallocation
+        Assert.assertFalse(chunks.handleSend(this.send(content, 20, 30, -1, false)));
+        Assert.assertFalse(chunks.handleSend(this.send(content, 0, 10, -1, false)));
+        Assert.assertFalse(chunks.handleSend(this.send(content, 40, 50, -1, false)));
+        Assert.assertEquals(chunks.getReceivedRanges(),
+          Arrays.asList(new ByteRange(1, 10, -1), new ByteRange(21, 30, -1), new ByteRange(41, 50, -1)));
+        Assert.assertFalse(chunks.handleSend(this.send(content, 10, 20, -1, false)));
+        Assert.assertTrue(chunks.handleSend(this.send(content, 30, 40, 50, true)));
+        Assert.assertEquals(chunks.getContent(), content);
+    }
+
+// Helpers
+
+    private byte[] randomContent(int length) {
+        final byte[] content = new byte[length];
+        this.random.nextBytes(content);
+        return content;
+    }
+
+    // Build a SEND request carrying content[offset, limit)
+    private MsrpRequest send(byte[] content, int offset, int limit, long total, boolean complete) {
+        final MsrpHeaders headers = new MsrpHeaders();
+        headers.setMessageId(MESSAGE_ID);
+        headers.setByteRange(new ByteRange(offset + 1, limit, total));
+        headers.setContentType("application/octet-stream");
+        final MsrpRequest request = new MsrpRequest(MsrpMessage.randomId(), MsrpConstants.METHOD_SEND,
+          headers, Arrays.copyOfRange(content, offset, limit));
+        request.setComplete(complete);
+        return request;
+    }
+
+    private long list(Path dir) throws Exception {
+        try (Stream<Path> stream = Files.list(dir)) {
+            return stream.count();
+        }
+    }
+
+    private void delete(Path dir) throws Exception {
+        try (Stream<Path> stream = Files.list(dir)) {
+            for (Path file : (Iterable<Path>)stream::iterator)
+                Files.delete(file);
+        }
+        Files.delete(dir);
+    }
+}
@@ -0,0 +1,29 @@
+
+/*
+ * Copyright (C) 2014 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.msrp;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class MsrpUriTest extends TestSupport {
+
+    @Test
+    public void testKey() throws Exception {
+        final MsrpUri uri1 = new MsrpUri("msrp://Example.COM:1234/abcd;tcp");
+        final MsrpUri uri2 = new MsrpUri("MSRP://example.com:1234/abcd;tcp;foo=bar");
+        Assert.assertEquals(uri1.getKey(), uri2.getKey());
+        Assert.assertEquals(uri1.getKey().hashCode(), uri2.getKey().hashCode());
+        Assert.assertEquals(MsrpUriComparator.INSTANCE.compare(uri1, uri2), 0);
+
+        // Session ID is case sensitive, port is significant
+        final MsrpUri uri3 = new MsrpUri("msrp://example.com:1234/ABCD;tcp");
+        final MsrpUri uri4 = new MsrpUri("msrp://example.com/abcd;tcp");
+        Assert.assertNotEquals(uri1.getKey(), uri3.getKey());
+        Assert.assertNotEquals(uri1.getKey(), uri4.getKey());
+        Assert.assertTrue(MsrpUriComparator.INSTANCE.compare(uri1, uri3) > 0);
+        Assert.assertTrue(MsrpUriComparator.INSTANCE.compare(uri4, uri1) < 0);
+    }
+}
@@ -0,0 +1,75 @@
+
+/*
+ * Copyright (C) 2014 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.msrp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class OrphanTest extends TestSupport {
+
+    @Test
+    public void testOrphanExpiresAfterRestart() throws Exception {
+        final int port = 20000 + this.random.nextInt(20000);
+        final Msrp msrp = new Msrp();
+        msrp.setListenAddress(new InetSocketAddress("127.0.0.1", port));
+        msrp.setOrphanHoldTime(200);
+        msrp.start();
+        try {
+
+            // Leave an orphan held when we stop
+            try (Socket socket = this.connect(port)) {
+                this.sendOrphan(socket, port, "tx1abcd");
+                Thread.sleep(50);
+                msrp.stop();
+            }
+
+            // After restarting, a new orphan must still expire with a 481
+            msrp.start();
+            try (Socket socket = this.connect(port)) {
+                this.sendOrphan(socket, port, "tx2abcd");
+                final String line = this.readLine(socket.getInputStream());
+                Assert.assertEquals(line, "MSRP tx2abcd 481 Session does not exist");
+            }
+        } finally {
+            msrp.stop();
+        }
+    }
+
+    private Socket connect(int port) throws Exception {
+        final Socket socket = new Socket("127.0.0.1", port);
+        socket.setSoTimeout(2000);
+        return socket;
+    }
+
+    private void sendOrphan(Socket socket, int port, String transactionId) throws Exception {
+        final String message = "MSRP " + transactionId + " SEND\r\n"
+          + "To-Path: msrp://127.0.0.1:" + port + "/nosuchsession;tcp\r\n"
+          + "From-Path: msrp://127.0.0.1:9/peersession;tcp\r\n"
+          + "Message-ID: msg" + transactionId + "\r\n"
+          + "Byte-Range: 1-5/5\r\n"
+          + "Content-Type: text/plain\r\n"
+          + "\r\n"
+          + "hello\r\n"
+          + "-------" + transactionId + "$\r\n";
+        socket.getOutputStream().write(message.getBytes(StandardCharsets.UTF_8));
+        socket.getOutputStream().flush();
+    }
+
+    private String readLine(InputStream input) throws Exception {
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        for (int b; (b = input.read()) != '\n'; ) {
+            Assert.assertTrue(b != -1, "connection closed");
+            buf.write(b);
+        }
+        return new String(buf.toByteArray(), StandardCharsets.UTF_8).trim();
+    }
+}
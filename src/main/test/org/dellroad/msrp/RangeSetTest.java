@@ -0,0 +1,68 @@
+
+/*
+ * Copyright (C) 2014 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.msrp;
+
+import java.util.BitSet;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class RangeSetTest extends TestSupport {
+
+    @Test
+    public void testRangeSet() throws Exception {
+        final RangeSet set = new RangeSet();
+        Assert.assertEquals(set.size(), 0);
+        Assert.assertTrue(set.contains(5, 5));
+        Assert.assertFalse(set.contains(0, 1));
+
+        // Disjoint ranges, added out of order
+        set.add(20, 30);
+        set.add(0, 10);
+        set.add(40, 50);
+        Assert.assertEquals(set.toString(), "[[0, 10), [20, 30), [40, 50)]");
+        Assert.assertTrue(set.contains(22, 28));
+        Assert.assertFalse(set.contains(5, 25));
+
+        // Adjacent ranges coalesce
+        set.add(10, 20);
+        Assert.assertEquals(set.toString(), "[[0, 30), [40, 50)]");
+
+        // Overlapping several ranges
+        set.add(60, 70);
+        set.add(25, 65);
+        Assert.assertEquals(set.toString(), "[[0, 70)]");
+        Assert.assertTrue(set.contains(0, 70));
+        Assert.assertFalse(set.contains(0, 71));
+    }
+
+    @Test
+    public void testRandom() throws Exception {
+        for (int iter = 0; iter < 200; iter++) {
+            final RangeSet set = new RangeSet();
+            final BitSet bits = new BitSet();
+            for (int i = 0; i < 50; i++) {
+                final int start = this.random.nextInt(500);
+                final int end = start + this.random.nextInt(20);
+                set.add(start, end);
+                bits.set(start, end);
+            }
+
+            // Verify ranges match bits and are sorted, disjoint, and non-adjacent
+            int index = 0;
+            for (int start = bits.nextSetBit(0); start >= 0; start = bits.nextSetBit(start)) {
+                final int end = bits.nextClearBit(start);
+                Assert.assertEquals(set.getStart(index), start);
+                Assert.assertEquals(set.getEnd(index), end);
+                Assert.assertTrue(set.contains(start, end));
+                Assert.assertFalse(set.contains(start, end + 1));
+                index++;
+                start = end;
+            }
+            Assert.assertEquals(set.size(), index);
+        }
+    }
+}
@@ -0,0 +1,221 @@
+
+/*
+ * Copyright (C) 2014 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.msrp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.dellroad.msrp.msg.Header;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Verifies that incoming messages spilled to a temporary file are cleaned up by {@link Session}.
+ */
+public class SpillTest extends TestSupport {
+
+    private static final int SPILL_THRESHOLD = 100;
+
+    private final LinkedBlockingQueue<byte[]> received = new LinkedBlockingQueue<>();
+
+    private int port;
+    private Path dir;
+    private Msrp msrp;
+    private ExecutorService executor;
+    private int sessionCount;
+
+    @BeforeClass
+    public void setup() throws Exception {
+        this.port = 20000 + this.random.nextInt(20000);
+        this.dir = Files.createTempDirectory("msrp");
+        this.msrp = new Msrp();
+        this.msrp.setListenAddress(new InetSocketAddress("127.0.0.1", this.port));
+        this.msrp.setSpillThreshold(SPILL_THRESHOLD);
+        this.msrp.setSpillDirectory(this.dir);
+        this.msrp.start();
+        this.executor = Executors.newSingleThreadExecutor();
+    }
+
+    @AfterClass
+    public void teardown() throws Exception {
+        this.msrp.stop();
+        this.executor.shutdownNow();
+        try (Stream<Path> stream = Files.list(this.dir)) {
+            for (Path file : (Iterable<Path>)stream::iterator)
+                Files.delete(file);
+        }
+        Files.delete(this.dir);
+    }
+
+    @Test
+    public void testDiscardOnAbort() throws Exception {
+        final String sessionId = this.createSession();
+        try (Socket socket = this.connect()) {
+            this.sendChunk(socket, sessionId, "tx1abcd", 1, 200, 300, '+');
+            this.awaitFiles(1);
+            this.sendChunk(socket, sessionId, "tx2abcd", 201, 50, 300, '#');
+            this.awaitFiles(0);
+        }
+    }
+
+    @Test
+    public void testDiscardOnClose() throws Exception {
+        final String sessionId = this.createSession();
+        try (Socket socket = this.connect()) {
+            this.sendChunk(socket, sessionId, "tx1abcd", 1, 200, 300, '+');
+            this.awaitFiles(1);
+            this.findSession(sessionId).close(null);
+            this.awaitFiles(0);
+        }
+    }
+
+    @Test
+    public void testDiscardOnTimeout() throws Exception {
+        final String sessionId = this.createSession();
+        try (Socket socket = this.connect()) {
+            this.sendChunk(socket, sessionId, "tx1abcd", 1, 200, 300, '+');
+            this.awaitFiles(1);
+
+            // Make the message look idle for longer than allowed, then run the idle check
+            final Session session = this.findSession(sessionId);
+            final Field inputChunksField = Session.class.getDeclaredField("inputChunks");
+            inputChunksField.setAccessible(true);
+            @SuppressWarnings("unchecked")
+            final IdMap<InputChunks> inputChunks = (IdMap<InputChunks>)inputChunksField.get(session);
+            final InputChunks chunks = inputChunks.get("msg" + sessionId);
+            Assert.assertNotNull(chunks);
+            final Field timestampField = InputChunks.class.getDeclaredField("timestamp");
+            timestampField.setAccessible(true);
+            timestampField.setLong(chunks, System.nanoTime() - TimeUnit.HOURS.toNanos(1));
+            final Method checkInputIdle = Session.class.getDeclaredMethod("checkInputIdle", InputChunks.class);
+            checkInputIdle.setAccessible(true);
+            checkInputIdle.invoke(session, chunks);
+            this.awaitFiles(0);
+
+            // The failure REPORT covers the content received before the timeout
+            String line;
+            while (!(line = this.readLine(socket.getInputStream())).endsWith(" REPORT"))
+                ;
+            while (!(line = this.readLine(socket.getInputStream())).startsWith("Byte-Range:"))
+                Assert.assertFalse(line.isEmpty(), "no Byte-Range in REPORT");
+            Assert.assertEquals(line, "Byte-Range: 1-200/300");
+        }
+    }
+
+    @Test
+    public void testDefaultFileDelivery() throws Exception {
+        final String sessionId = this.createSession();
+        try (Socket socket = this.connect()) {
+            final byte[] content1 = this.sendChunk(socket, sessionId, "tx1abcd", 1, 200, 300, '+');
+            final byte[] content2 = this.sendChunk(socket, sessionId, "tx2abcd", 201, 100, 300, '$');
+
+            // The default sessionReceivedMessageFile() reads the file into memory and deletes it
+            final byte[] content = this.received.poll(5, TimeUnit.SECONDS);
+            Assert.assertNotNull(content, "message not received");
+            final byte[] expected = Arrays.copyOf(content1, content1.length + content2.length);
+            System.arraycopy(content2, 0, expected, content1.length, content2.length);
+            Assert.assertEquals(content, expected);
+            this.awaitFiles(0);
+        }
+    }
+
+// Helpers
+
+    private String createSession() throws Exception {
+        final String sessionId = "spill" + ++this.sessionCount;
+        final MsrpUri localURI = new MsrpUri("msrp://127.0.0.1:" + this.port + "/" + sessionId + ";tcp");
+        final MsrpUri remoteURI = new MsrpUri("msrp://127.0.0.1:9/peer" + sessionId + ";tcp");
+        this.msrp.createSession(localURI, remoteURI, null, new SessionListener() {
+            @Override
+            public void sessionClosed(Session session, Exception cause) {
+            }
+            @Override
+            public void sessionReceivedMessage(Session session, List<MsrpUri> fromPath, String messageId, byte[] content,
+              String contentType, SortedSet<Header> headers, boolean successReport, boolean failureReport) {
+                SpillTest.this.received.add(content);
+            }
+        }, this.executor, false);
+        return sessionId;
+    }
+
+    private Session findSession(String sessionId) throws Exception {
+        for (Session session : this.msrp.getSessions().values()) {
+            if (session.getLocalUri().getSessionId().equals(sessionId))
+                return session;
+        }
+        throw new AssertionError("session " + sessionId + " not found");
+    }
+
+    private Socket connect() throws Exception {
+        final Socket socket = new Socket("127.0.0.1", this.port);
+        socket.setSoTimeout(5000);
+        return socket;
+    }
+
+    // Send a SEND chunk and wait for its response; returns the chunk content
+    private byte[] sendChunk(Socket socket, String sessionId, String transactionId, int start, int length, int total, char flag)
+      throws Exception {
+        final byte[] content = new byte[length];
+        for (int i = 0; i < length; i++)
+            content[i] = (byte)('a' + this.random.nextInt(26));
+        final String header = "MSRP " + transactionId + " SEND\r\n"
+          + "To-Path: msrp://127.0.0.1:" + this.port + "/" + sessionId + ";tcp\r\n"
+          + "From-Path: msrp://127.0.0.1:9/peer" + sessionId + ";tcp\r\n"
+          + "Message-ID: msg" + sessionId + "\r\n"
+          + "Byte-Range: " + start + "-" + (start + length - 1) + "/" + total + "\r\n"
+          + "Content-Type: application/octet-stream\r\n"
+          + "\r\n";
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        buf.write(header.getBytes(StandardCharsets.UTF_8));
+        buf.write(content);
+        buf.write(("\r\n-------" + transactionId + flag + "\r\n").getBytes(StandardCharsets.UTF_8));
+        socket.getOutputStream().write(buf.toByteArray());
+        socket.getOutputStream().flush();
+        Assert.assertEquals(this.readLine(socket.getInputStream()), "MSRP " + transactionId + " 200 OK");
+        while (!this.readLine(socket.getInputStream()).equals("-------" + transactionId + "$"))
+            ;
+        return content;
+    }
+
+    private String readLine(InputStream input) throws Exception {
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        for (int b; (b = input.read()) != '\n'; ) {
+            Assert.assertTrue(b != -1, "connection closed");
+            buf.write(b);
+        }
+        return new String(buf.toByteArray(), StandardCharsets.UTF_8).trim();
+    }
+
+    // Wait for the number of files in the spill directory to reach the expected count
+    private void awaitFiles(long expected) throws Exception {
+        long count = -1;
+        for (int i = 0; i < 100; i++) {
+            try (Stream<Path> stream = Files.list(this.dir)) {
+                if ((count = stream.count()) == expected)
+                    return;
+            }
+            Thread.sleep(20);
+        }
+        Assert.assertEquals(count, expected, "spill file count");
+    }
+}
@@ -0,0 +1,81 @@
+
+/*
+ * Copyright (C) 2014 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.msrp;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TimerWheelTest extends TestSupport {
+
+    private static final long MILLIS = 1000000L;
+
+    @Test
+    public void testWheel() throws Exception {
+        final AtomicLong clock = new AtomicLong(this.random.nextLong());
+        final TimerWheel wheel = new TimerWheel(10, 4, clock::get);
+        final ArrayList<Runnable> expired = new ArrayList<>();
+        final Runnable task1 = () -> { };
+        final Runnable task2 = () -> { };
+        final Runnable task3 = () -> { };
+
+        // Empty wheel
+        Assert.assertEquals(wheel.nextWakeupTime(), -1);
+        wheel.expire(expired);
+        Assert.assertTrue(expired.isEmpty());
+
+        // Schedule tasks, one of which goes around the wheel more than once
+        clock.addAndGet(3 * MILLIS);
+        final long start = clock.get();
+        final TimerWheel.Timeout timeout1 = wheel.schedule(20, task1);
+        final TimerWheel.Timeout timeout2 = wheel.schedule(100, task2);
+        wheel.schedule(30, task3);
+        Assert.assertEquals(wheel.size(), 3);
+        Assert.assertTrue(wheel.nextWakeupTime() - start <= 40 * MILLIS);
+
+        // Cancel
+        Assert.assertTrue(timeout2.cancel());
+        Assert.assertFalse(timeout2.cancel());
+        Assert.assertEquals(wheel.size(), 2);
+
+        // Nothing should expire early, or more than one tick late
+        while (wheel.size() > 0) {
+            wheel.expire(expired);
+            final long elapsed = clock.get() - start;
+            if (expired.contains(task1))
+                Assert.assertTrue(elapsed >= 20 * MILLIS, "expired early");
+            else
+                Assert.assertTrue(elapsed < 30 * MILLIS, "expired late");
+            if (expired.contains(task3))
+                Assert.assertTrue(elapsed >= 30 * MILLIS, "expired early");
+            else
+                Assert.assertTrue(elapsed < 40 * MILLIS, "expired late");
+            clock.addAndGet(MILLIS);
+        }
+        Assert.assertEquals(expired.size(), 2);
+        Assert.assertSame(expired.get(0), task1);
+        Assert.assertSame(expired.get(1), task3);
+        Assert.assertFalse(timeout1.cancel());
+        Assert.assertEquals(wheel.nextWakeupTime(), -1);
+
+        // Long delays take multiple rounds
+        final TimerWheel.Timeout timeout4 = wheel.schedule(120, task1);
+        clock.addAndGet(60 * MILLIS);
+        expired.clear();
+        wheel.expire(expired);
+        Assert.assertTrue(expired.isEmpty());
+        Assert.assertTrue(wheel.nextWakeupTime() <= timeout4.getDeadline() + 10 * MILLIS);
+        clock.set(timeout4.getDeadline() - 1);
+        wheel.expire(expired);
+        Assert.assertTrue(expired.isEmpty());
+        clock.set(timeout4.getDeadline() + 10 * MILLIS);
+        wheel.expire(expired);
+        Assert.assertEquals(expired.size(), 1);
+        Assert.assertEquals(wheel.size(), 0);
+    }
+}
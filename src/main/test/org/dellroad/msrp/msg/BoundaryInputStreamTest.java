@@ -10,6 +10,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import org.dellroad.msrp.TestSupport;
@@ -50,6 +51,103 @@ public class BoundaryInputStreamTest extends TestSupport {
         Assert.assertEquals(remain, after);
     }
 
+    @Test(dataProvider = "cases")
+    public void testBulk(String filename, String txid, int length, char flag, String after) throws Exception {
+
+        // Read data
+        final byte[] data = this.readResource(filename);
+
+        // Feed data in randomly sized pieces until boundary or end of data
+        final BoundaryInputParser parser = new BoundaryInputParser(txid);
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        int offset = 0;
+        boolean found = false;
+        while (!found && offset < data.length) {
+            final int size = Math.min(1 + this.random.nextInt(48), data.length - offset);
+            final ByteBuffer input = ByteBuffer.wrap(data, offset, size);
+            while (input.hasRemaining()) {
+                final ByteBuffer content = parser.inputContentBytes(input);
+                if (content == null) {
+                    found = true;
+                    break;
+                }
+                while (content.hasRemaining())
+                    body.write(content.get());
+            }
+            offset = input.position();
+        }
+
+        // Verify result
+        if (length == -1) {
+            Assert.assertFalse(found, "expected no boundary but found one");
+            return;
+        }
+        Assert.assertTrue(found, "expected boundary but did not find one");
+        Assert.assertEquals(body.toByteArray(), Arrays.copyOfRange(data, 0, length));
+        Assert.assertEquals(parser.getFlagByte(), (byte)flag);
+        Assert.assertTrue(parser.isOnBoundary());
+        Assert.assertEquals(new String(data, offset, data.length - offset, "UTF-8"), after);
+    }
+
+    @Test
+    public void testBulkRandom() throws Exception {
+        final String txid = "abcd1234";
+        final byte[] terminator = ("\r\n-------" + txid + "$\r\n").getBytes("UTF-8");
+        for (int iteration = 0; iteration < 200; iteration++) {
+
+            // Build body containing lots of partial boundary strings
+            final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            final int pieces = this.random.nextInt(20);
+            for (int i = 0; i < pieces; i++) {
+                if (this.random.nextBoolean())
+                    buf.write(terminator, 0, this.random.nextInt(terminator.length));
+                else
+                    buf.write('a' + this.random.nextInt(4));
+            }
+            buf.write(terminator, 0, terminator.length);
+            buf.write('x');
+            final byte[] data = buf.toByteArray();
+
+            // Find the first boundary the slow way (the pieces could combine to form one)
+            int match = 0;
+            while (!this.isTerminatorAt(data, match, terminator))
+                match++;
+            final byte[] expected = Arrays.copyOf(data, match);
+
+            // Parse using random split points
+            final BoundaryInputParser parser = new BoundaryInputParser(txid);
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            int offset = 0;
+            boolean found = false;
+            while (!found) {
+                Assert.assertTrue(offset < data.length, "boundary not found in " + Arrays.toString(data));
+                final ByteBuffer input = ByteBuffer.wrap(data, offset, Math.min(1 + this.random.nextInt(40), data.length - offset));
+                while (!found && input.hasRemaining()) {
+                    final ByteBuffer content = parser.inputContentBytes(input);
+                    if (content == null)
+                        found = true;
+                    else {
+                        while (content.hasRemaining())
+                            body.write(content.get());
+                    }
+                }
+                offset = input.position();
+            }
+            Assert.assertEquals(body.toByteArray(), expected);
+            Assert.assertEquals(offset, match + terminator.length);
+            Assert.assertEquals(parser.getFlagByte(), data[match + terminator.length - 3]);
+        }
+    }
+
+    private boolean isTerminatorAt(byte[] data, int offset, byte[] terminator) {
+        for (int i = 0; i < terminator.length; i++) {
+            final byte b = data[offset + i];
+            if (i == terminator.length - 3 ? b != '$' && b != '+' && b != '#' : b != terminator[i])
+                return false;
+        }
+        return true;
+    }
+
     private byte[] readAll(InputStream input) throws IOException {
         final ByteArrayOutputStream buf = new ByteArrayOutputStream();
         final byte[] tmp = new byte[1024];
@@ -0,0 +1,40 @@
+
+/*
+ * Copyright (C) 2014 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.msrp.msg;
+
+import java.util.Locale;
+
+import org.dellroad.msrp.TestSupport;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class KnownHeaderTest extends TestSupport {
+
+    @Test
+    public void testFind() throws Exception {
+        for (KnownHeader header : KnownHeader.values()) {
+            final String name = header.getName();
+            Assert.assertSame(KnownHeader.find(name, 0, name.length()), header);
+            final String line = "x" + name.toUpperCase(Locale.ROOT) + ": foo";
+            Assert.assertSame(KnownHeader.find(line, 1, 1 + name.length()), header);
+            Assert.assertNull(KnownHeader.find(line, 1, name.length()));
+            Assert.assertNull(KnownHeader.find(name + "x", 0, name.length() + 1));
+        }
+        Assert.assertNull(KnownHeader.find("", 0, 0));
+        Assert.assertNull(KnownHeader.find("Foo-Bar", 0, 7));
+        Assert.assertNull(KnownHeader.find("Content-Typo", 0, 12));
+    }
+
+    @Test
+    public void testSortKey() throws Exception {
+        final Header header1 = new Header("content-type", "text/plain");
+        final Header header2 = new Header("Content-Type", "text/html");
+        final Header header3 = new Header("X-Foo", "bar");
+        Assert.assertEquals(Header.SORT_BY_NAME.compare(header1, header2), 0);
+        Assert.assertTrue(Header.SORT_BY_NAME.compare(header1, header3) < 0);
+        Assert.assertEquals(Header.SORT_BY_NAME.compare(header3, new Header("x-foo", "baz")), 0);
+    }
+}
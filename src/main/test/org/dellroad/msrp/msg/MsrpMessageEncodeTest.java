@@ -0,0 +1,31 @@
+
+/*
+ * Copyright (C) 2014 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.msrp.msg;
+
+import java.nio.charset.StandardCharsets;
+
+import org.dellroad.msrp.MsrpUri;
+import org.dellroad.msrp.TestSupport;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class MsrpMessageEncodeTest extends TestSupport {
+
+    @Test
+    public void testEncodeUtf8() throws Exception {
+        for (String comment : new String[] { "OK", "caf\u00e9", "\u20ac100", "smile \ud83d\ude00", "\u00e9\u20ac\ud83d\ude00x" }) {
+            final MsrpHeaders headers = new MsrpHeaders();
+            headers.getToPath().add(new MsrpUri("msrp://alice.example.com:7777/iau39soe2843z;tcp"));
+            headers.getFromPath().add(new MsrpUri("msrp://bob.example.com:8888/9di4eae923wzd;tcp"));
+            final MsrpResponse response = new MsrpResponse("tx1234", 200, comment, headers);
+            final byte[] encoded = response.encode(true);
+            final String text = new String(encoded, StandardCharsets.UTF_8);
+            Assert.assertEquals(text.getBytes(StandardCharsets.UTF_8), encoded);
+            Assert.assertTrue(text.startsWith("MSRP tx1234 200 " + comment + "\r\n"), text);
+            Assert.assertTrue(text.endsWith("-------tx1234$\r\n"), text);
+        }
+    }
+}
@@ -8,6 +8,8 @@ package org.dellroad.msrp.msg;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.regex.Pattern;
 
 import org.dellroad.msrp.TestSupport;
@@ -29,6 +31,10 @@ public class MsrpMessageParseTest extends TestSupport {
         final byte[] buf = msg1.encode(true);
         final T msg2 = this.readOneMessage(new ByteArrayInputStream(buf), type);
         Assert.assertEquals(msg1, msg2);
+
+        // Parse the same message in bulk, split into random pieces, and verify it's the same
+        final MsrpMessage msg3 = this.readOneMessageBulk(this.readResource(filename));
+        Assert.assertEquals(msg3, msg1);
     }
 
     @DataProvider(name = "validCases")
@@ -38,6 +44,38 @@ public class MsrpMessageParseTest extends TestSupport {
         };
     }
 
+// Path caching
+
+    @Test
+    public void testPathCache() throws Exception {
+        final String toPath = "msrp://relay.example.com:2855/kjhd37s2s20w2a;tcp msrp://bob.example.com:8888/9di4eae923wzd;tcp";
+        final String fromPath = "msrp://alice.example.com:7777/iau39soe2843z;tcp";
+        final StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < 2; i++) {
+            buf.append("MSRP tx" + i + "abcd SEND\r\n")
+              .append("To-Path: " + toPath + "\r\n")
+              .append("From-Path: " + fromPath + "\r\n")
+              .append("Message-ID: 456so39s\r\n")
+              .append("Byte-Range: 1-5/10\r\n")
+              .append("Content-Type: text/plain\r\n")
+              .append("\r\n")
+              .append("hello\r\n")
+              .append("-------tx" + i + "abcd+\r\n");
+        }
+        final MsrpInputParser parser = new MsrpInputParser();
+        final ArrayList<MsrpMessage> messages = new ArrayList<>();
+        parser.parse(ByteBuffer.wrap(buf.toString().getBytes("UTF-8")), messages::add);
+        Assert.assertEquals(messages.size(), 2);
+        final MsrpHeaders headers1 = messages.get(0).getHeaders();
+        final MsrpHeaders headers2 = messages.get(1).getHeaders();
+        Assert.assertEquals(headers1.getToPath().size(), 2);
+        Assert.assertEquals(headers1.getToPath().get(1).getSessionId(), "9di4eae923wzd");
+        Assert.assertEquals(headers2.getToPath(), headers1.getToPath());
+        Assert.assertNotSame(headers2.getToPath(), headers1.getToPath());
+        Assert.assertSame(headers2.getToPath().get(0), headers1.getToPath().get(0));
+        Assert.assertSame(headers2.getFromPath().get(0), headers1.getFromPath().get(0));
+    }
+
 // INVALID test cases
 
     @Test(dataProvider = "invalidCases")
@@ -51,6 +89,17 @@ public class MsrpMessageParseTest extends TestSupport {
         }
     }
 
+    @Test(dataProvider = "invalidCases")
+    public void testInvalidBulk(String filename, String errpat) throws Exception {
+        try {
+            final MsrpMessage msg = this.readOneMessageBulk(this.readResource(filename));
+            throw new Exception("expected exception but got " + msg);
+        } catch (ProtocolException e) {
+            if (e.getMessage() == null || !Pattern.compile(errpat).matcher(e.getMessage()).matches())
+                throw new Exception("expected exception message matching `" + errpat + "' but was `" + e.getMessage() + "'");
+        }
+    }
+
     // Read exactly one message from input
     private <T extends MsrpMessage> T readOneMessage(InputStream input, Class<T> type) throws IOException {
         final MsrpInputStream msrp = new MsrpInputStream(input);
@@ -61,6 +110,23 @@ public class MsrpMessageParseTest extends TestSupport {
         return type.cast(msg);
     }
 
+    // Read exactly one message from input using the bulk parsing API, feeding it randomly sized pieces
+    private MsrpMessage readOneMessageBulk(byte[] data) throws IOException {
+        final MsrpInputParser parser = new MsrpInputParser();
+        final ArrayList<MsrpMessage> messages = new ArrayList<>();
+        for (int offset = 0; offset < data.length; ) {
+            final int length = Math.min(1 + this.random.nextInt(32), data.length - offset);
+            final ByteBuffer buf = ByteBuffer.wrap(data, offset, length);
+            final int before = messages.size();
+            Assert.assertEquals(parser.parse(buf, messages::add), messages.size() - before);
+            Assert.assertFalse(buf.hasRemaining());
+            offset += length;
+        }
+        Assert.assertEquals(messages.size(), 1, "expected exactly one message but got " + messages);
+        Assert.assertTrue(parser.isBetweenMessages());
+        return messages.get(0);
+    }
+
     @DataProvider(name = "invalidCases")
     public Object[][] invalidCases() throws IOException {
         return new Object[][] {
@@ -0,0 +1,130 @@
+
+/*
+ * Copyright (C) 2014 Archie L. Cobbs. All rights reserved.
+ */
+
+package org.dellroad.msrp.msg;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.dellroad.msrp.TestSupport;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Verifies the hand-written syntax checks against the regular expressions they replaced.
+ */
+public class SyntaxTest extends TestSupport {
+
+    private static final Pattern IDENT = Pattern.compile("\\p{Alnum}[-\\p{Alnum}.+%=]{3,31}");
+    private static final Pattern METHOD = Pattern.compile("[A-Z]+");
+    private static final Pattern HEADER_NAME = Pattern.compile("\\p{Alpha}[-!#$%&'*+0-9A-Za-z^_`{|}~]*");
+    private static final Pattern HEADER_VALUE = Pattern.compile("[\\t\\u0020-\\uffff]*");
+    private static final Pattern HEADER = Pattern.compile("(" + HEADER_NAME + "): (" + HEADER_VALUE + ")");
+    private static final Pattern BYTE_RANGE = Pattern.compile("([0-9]+)-(([0-9]+)|\\*)/(([0-9]+)|\\*)");
+    private static final Pattern STATUS = Pattern.compile("([0-9]{3}) ([0-9]{3})( (.*))?");
+    private static final Pattern REQUEST_LINE = Pattern.compile("MSRP (\\p{Alnum}[-.+%=\\p{Alnum}]{3,31}) ([A-Z]+)");
+    private static final Pattern RESPONSE_LINE = Pattern.compile("MSRP (\\p{Alnum}[-.+%=\\p{Alnum}]{3,31}) ([0-9]{3})( (.*))?");
+
+    // Characters likely to hit the edges of the syntax rules
+    private static final String ALPHABET = "aZ09-.+%=*/: \t!~{|}_'\"@\r\n\u0085\u2028\u007f\u00e9\ud83d\ude00\ud800\u0000";
+
+    @Test
+    public void testSyntax() throws Exception {
+        for (int i = 0; i < 200000; i++) {
+            final String s = this.randomString();
+            Assert.assertEquals(Util.isIdent(s), IDENT.matcher(s).matches(), "ident " + s);
+            Assert.assertEquals(Util.isMethod(s), METHOD.matcher(s).matches(), "method " + s);
+            Assert.assertEquals(Util.isHeaderName(s), HEADER_NAME.matcher(s).matches(), "header name " + s);
+            Assert.assertEquals(Util.isHeaderValue(s), HEADER_VALUE.matcher(s).matches(), "header value " + s);
+            this.checkHeader(s);
+            this.checkByteRange(s);
+            this.checkStatus(s);
+            this.checkStartLine(s);
+        }
+    }
+
+    private void checkHeader(String s) {
+        final String line = this.random.nextBoolean() ? s : "X-Foo" + s;
+        if (line.indexOf('\r') != -1 || line.indexOf('\n') != -1 || !new String(line.getBytes(Util.UTF8), Util.UTF8).equals(line))
+            return;
+        final MsrpInputParser parser = new MsrpInputParser();
+        boolean valid = true;
+        try {
+            for (byte b : ("MSRP abcd SEND\r\nTo-Path: msrp://a.com/b;tcp\r\nFrom-Path: msrp://c.com/d;tcp\r\n"
+              + line + "\r\n").getBytes(Util.UTF8))
+                parser.inputMessageByte(b);
+        } catch (ProtocolException e) {
+            valid = !e.getMessage().startsWith("invalid header line");
+        }
+        Assert.assertEquals(valid, HEADER.matcher(line).matches() || line.isEmpty(), "header " + line);
+    }
+
+    private void checkByteRange(String s) {
+        final String string = this.random.nextBoolean() ? s : this.random.nextInt(10) + "-" + s;
+        boolean valid;
+        try {
+            ByteRange.fromString(string);
+            valid = true;
+        } catch (IllegalArgumentException e) {
+            valid = false;
+        }
+        final Matcher matcher = BYTE_RANGE.matcher(string);
+        if (!matcher.matches()) {
+            Assert.assertFalse(valid, "byte range " + string);
+            return;
+        }
+        boolean expected;
+        try {
+            new ByteRange(Long.parseLong(matcher.group(1)),
+              !matcher.group(2).equals("*") ? Long.parseLong(matcher.group(3)) : -1,
+              !matcher.group(4).equals("*") ? Long.parseLong(matcher.group(5)) : -1);
+            expected = true;
+        } catch (IllegalArgumentException e) {
+            expected = false;
+        }
+        Assert.assertEquals(valid, expected, "byte range " + string);
+    }
+
+    private void checkStatus(String s) {
+        final String string = this.random.nextBoolean() ? s : "000 200" + s;
+        Status status;
+        try {
+            status = Status.fromString(string);
+        } catch (IllegalArgumentException e) {
+            status = null;
+        }
+        final Matcher matcher = STATUS.matcher(string);
+        if (!matcher.matches()) {
+            Assert.assertNull(status, "status " + string);
+            return;
+        }
+        Assert.assertNotNull(status, "status " + string);
+        Assert.assertEquals(status.getComment(), matcher.group(4), "status " + string);
+    }
+
+    private void checkStartLine(String s) {
+        final String line = this.random.nextBoolean() ? "MSRP " + s : "MSRP abcd " + s;
+        if (line.indexOf('\r') != -1 || line.indexOf('\n') != -1 || !new String(line.getBytes(Util.UTF8), Util.UTF8).equals(line))
+            return;
+        final MsrpInputParser parser = new MsrpInputParser();
+        boolean valid = true;
+        try {
+            for (byte b : (line + "\r\n").getBytes(Util.UTF8))
+                parser.inputMessageByte(b);
+        } catch (ProtocolException e) {
+            valid = false;
+        }
+        final boolean expected = REQUEST_LINE.matcher(line).matches() || RESPONSE_LINE.matcher(line).matches();
+        Assert.assertEquals(valid, expected, "start line " + line);
+    }
+
+    private String randomString() {
+        final int length = this.random.nextInt(12);
+        final StringBuilder buf = new StringBuilder(length);
+        for (int i = 0; i < length; i++)
+            buf.append(ALPHABET.charAt(this.random.nextInt(ALPHABET.length())));
+        return buf.toString();
+    }
+}